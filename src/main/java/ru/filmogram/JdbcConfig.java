@@ -1,10 +1,10 @@
 package ru.filmogram;
 
+import com.zaxxer.hikari.HikariDataSource;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.jdbc.datasource.DriverManagerDataSource;
 
 import javax.sql.DataSource;
 
@@ -20,13 +20,34 @@ public class JdbcConfig {
     @Value("${spring.datasource.password}")
     private String password;
 
-    @Bean
-    public DataSource dataSource() {
-        DriverManagerDataSource dataSource = new DriverManagerDataSource();
+    @Value("${spring.datasource.hikari.minimum-idle}")
+    private int minimumIdle;
+
+    @Value("${spring.datasource.hikari.maximum-pool-size}")
+    private int maximumPoolSize;
+
+    @Value("${spring.datasource.hikari.connection-timeout}")
+    private long connectionTimeout;
+
+    @Value("${spring.datasource.hikari.leak-detection-threshold}")
+    private long leakDetectionThreshold;
+
+    /*
+     * Соединения берутся из пула HikariCP, а не открываются заново на каждый запрос.
+     * Метрики пула (hikaricp.connections.active, idle, pending, acquire) публикует actuator
+     */
+    @Bean(destroyMethod = "close")
+    public HikariDataSource dataSource() {
+        HikariDataSource dataSource = new HikariDataSource();
+        dataSource.setPoolName("filmorate");
         dataSource.setDriverClassName("org.h2.Driver");
-        dataSource.setUrl(jdbcUrl);
+        dataSource.setJdbcUrl(jdbcUrl);
         dataSource.setUsername(username);
         dataSource.setPassword(password);
+        dataSource.setMinimumIdle(minimumIdle);
+        dataSource.setMaximumPoolSize(maximumPoolSize);
+        dataSource.setConnectionTimeout(connectionTimeout);
+        dataSource.setLeakDetectionThreshold(leakDetectionThreshold);
         return dataSource;
     }
 
@@ -34,4 +55,4 @@ public class JdbcConfig {
     public JdbcTemplate jdbcTemplate(DataSource dataSource) {
         return new JdbcTemplate(dataSource);
     }
-}
\ No newline at end of file
+}
@@ -1,12 +1,25 @@
 package ru.filmogram.controllers;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import ru.filmogram.exceptions.ValidationException;
+import ru.filmogram.model.CursorPage;
 import ru.filmogram.model.Film;
+import ru.filmogram.model.FilmChanges;
+import ru.filmogram.model.FilmFacetPage;
 import ru.filmogram.services.FilmService;
 
+import javax.servlet.http.HttpServletRequest;
 import java.util.List;
+import java.util.function.Consumer;
+
+import static ru.filmogram.util.JsonStreams.importResult;
+import static ru.filmogram.util.JsonStreams.jsonArray;
 
 @RestController
 @RequestMapping("/films")
@@ -14,21 +27,57 @@ public class FilmController {
 
     private FilmService filmService;
 
+    private ObjectMapper objectMapper;
+
     @Autowired
-    public FilmController(FilmService filmService) {
+    public FilmController(FilmService filmService, ObjectMapper objectMapper) {
         this.filmService = filmService;
+        this.objectMapper = objectMapper;
     }
 
-    @GetMapping()
+    @GetMapping(params = {"stream!=true", "!genre", "!mpa", "!yearFrom", "!yearTo", "!sort"})
     public List<Film> findAll() {
         return filmService.findAll();
     }
 
+    /*
+     * Метод filter отдает фильмы, подходящие под фильтр, вместе с числом фильмов по жанрам, рейтингам и десятилетиям
+     */
+    @GetMapping(params = "stream!=true")
+    public FilmFacetPage filter(@RequestParam(required = false) List<Long> genre,
+                                @RequestParam(required = false) List<Long> mpa,
+                                @RequestParam(required = false) Integer yearFrom,
+                                @RequestParam(required = false) Integer yearTo,
+                                @RequestParam(required = false) String sort,
+                                @RequestParam(defaultValue = "10") Integer limit) throws ValidationException {
+        return filmService.filter(genre, mpa, yearFrom, yearTo, sort, limit);
+    }
+
+    @GetMapping(params = "stream=true")
+    public ResponseEntity<StreamingResponseBody> streamAll() {
+        return jsonArray(objectMapper, filmService::streamAll);
+    }
+
+    @GetMapping(params = {"limit", "stream!=true", "!genre", "!mpa", "!yearFrom", "!yearTo", "!sort"})
+    public CursorPage<Film> findPage(@RequestParam Integer limit, @RequestParam(required = false) String after)
+            throws ValidationException {
+        return filmService.findPage(limit, after);
+    }
+
     @PostMapping()
     public Film create(@RequestBody Film film) throws ValidationException {
         return filmService.create(film);
     }
 
+    /*
+     * Метод importFilms принимает JSON-массив или NDJSON с фильмами и отдает результат по каждой записи
+     */
+    @PostMapping("/batch")
+    public ResponseEntity<StreamingResponseBody> importFilms(HttpServletRequest request) {
+        return importResult(objectMapper, results -> filmService.importFilms(
+                objectMapper.readerFor(Film.class).readValues(request.getInputStream()), results));
+    }
+
     @PutMapping()
     public Film update(@RequestBody Film film) throws ValidationException {
         return filmService.update(film);
@@ -46,18 +95,71 @@ public class FilmController {
         return true;
     }
 
-    @GetMapping("/popular")
+    @GetMapping(value = "/popular", params = {"!count", "!genreId", "!mpaId", "!year", "stream!=true"})
     public List<Film> allPopular() throws ValidationException {
         return filmService.allPopularFilms();
     }
 
-    @GetMapping(value = "/popular", params = "count")
-    public List<Film> sortPopularCountFilm(@RequestParam Integer count) throws ValidationException {
-        return filmService.sortFilmCount(count);
+    @GetMapping(value = "/popular", params = "stream!=true")
+    public List<Film> sortPopularCountFilm(@RequestParam(required = false) Integer count,
+                                           @RequestParam(required = false) Long genreId,
+                                           @RequestParam(required = false) Long mpaId,
+                                           @RequestParam(required = false) Integer year) throws ValidationException {
+        return filmService.sortFilmCount(count, genreId, mpaId, year);
+    }
+
+    @GetMapping(value = "/popular", params = "stream=true")
+    public ResponseEntity<StreamingResponseBody> streamPopular(@RequestParam(required = false) Integer count)
+            throws ValidationException {
+        filmService.checkCount(count);
+        return jsonArray(objectMapper, (Consumer<Film> consumer) -> filmService.streamPopularFilms(count, consumer));
+    }
+
+    /*
+     * Метод popularStream подписывает клиента на изменения рейтинга популярности вместо опроса /films/popular:
+     * сначала приходит событие snapshot с рейтингом целиком, затем события diff с изменившимися местами
+     */
+    @GetMapping(value = "/popular/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter popularStream() {
+        return filmService.subscribePopular();
+    }
+
+    @GetMapping("/trending")
+    public List<Film> trending(@RequestParam(defaultValue = "24h") String window,
+                               @RequestParam(defaultValue = "10") Integer count) throws ValidationException {
+        return filmService.trending(window, count);
+    }
+
+    /*
+     * Метод changes отдает фильмы, измененные после токена since, и новый токен. При resync=true клиенту
+     * нужно заново загрузить каталог и продолжать с выданного токена
+     */
+    @GetMapping("/changes")
+    public FilmChanges changes(@RequestParam(required = false) String since,
+                               @RequestParam(defaultValue = "100") Integer limit) throws ValidationException {
+        return filmService.changes(since, limit);
+    }
+
+    @GetMapping("/search")
+    public List<Film> search(@RequestParam String q, @RequestParam(defaultValue = "10") Integer limit)
+            throws ValidationException {
+        return filmService.search(q, limit);
+    }
+
+    @GetMapping("/autocomplete")
+    public List<Film> autocomplete(@RequestParam String prefix, @RequestParam(defaultValue = "10") Integer limit)
+            throws ValidationException {
+        return filmService.autocomplete(prefix, limit);
     }
 
     @GetMapping("{id}")
     public Film getFilm(@PathVariable("id") Long id) throws ValidationException {
         return filmService.getIdFilm(id);
     }
+
+    @GetMapping("{id}/similar")
+    public List<Film> getSimilarFilms(@PathVariable("id") Long id, @RequestParam(defaultValue = "10") Integer limit)
+            throws ValidationException {
+        return filmService.similarFilms(id, limit);
+    }
 }
@@ -1,14 +1,24 @@
 package ru.filmogram.controllers;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import ru.filmogram.exceptions.ValidationException;
+import ru.filmogram.model.CursorPage;
+import ru.filmogram.model.Film;
 import ru.filmogram.model.User;
+import ru.filmogram.services.FilmService;
 import ru.filmogram.services.UserService;
 
+import javax.servlet.http.HttpServletRequest;
 import java.util.List;
 
+import static ru.filmogram.util.JsonStreams.importResult;
+import static ru.filmogram.util.JsonStreams.jsonArray;
+
 @RestController
 @RequestMapping("/users")
 @RequiredArgsConstructor
@@ -17,17 +27,43 @@ public class UserController {
     @Autowired
     private final UserService userService;
 
+    @Autowired
+    private final FilmService filmService;
+
+    @Autowired
+    private final ObjectMapper objectMapper;
+
     @GetMapping()
     public List<User> findAll() {
         return userService.findAll();
     }
 
+    @GetMapping(params = "stream=true")
+    public ResponseEntity<StreamingResponseBody> streamAll() {
+        return jsonArray(objectMapper, userService::streamAll);
+    }
+
+    @GetMapping(params = {"limit", "stream!=true"})
+    public CursorPage<User> findPage(@RequestParam Integer limit, @RequestParam(required = false) String after)
+            throws ValidationException {
+        return userService.findPage(limit, after);
+    }
+
     @PostMapping()
     public User create(@RequestBody User user)
             throws ValidationException {
         return userService.create(user);
     }
 
+    /*
+     * Метод importUsers принимает JSON-массив или NDJSON с пользователями и отдает результат по каждой записи
+     */
+    @PostMapping("/batch")
+    public ResponseEntity<StreamingResponseBody> importUsers(HttpServletRequest request) {
+        return importResult(objectMapper, results -> userService.importUsers(
+                objectMapper.readerFor(User.class).readValues(request.getInputStream()), results));
+    }
+
     @PutMapping()
     public User update(@RequestBody User user)
             throws ValidationException {
@@ -61,4 +97,18 @@ public class UserController {
             throws ValidationException {
         return userService.allCommonFriends(id, otherId);
     }
+
+    @GetMapping("/{id}/friends/suggestions")
+    public List<User> getFriendSuggestions(@PathVariable("id") Long id,
+                                           @RequestParam(defaultValue = "10") Integer limit)
+            throws ValidationException {
+        return userService.friendSuggestions(id, limit);
+    }
+
+    @GetMapping("/{id}/recommendations")
+    public List<Film> getRecommendations(@PathVariable("id") Long id,
+                                         @RequestParam(defaultValue = "10") Integer limit)
+            throws ValidationException {
+        return filmService.recommendations(id, limit);
+    }
 }
@@ -0,0 +1,193 @@
+package ru.filmogram.dao;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+
+/*
+ * Класс FilmChangeLog ведет журнал изменений фильмов для синхронизации каталога на клиенте.
+ * Создание и изменение фильма, like и снятие like добавляют в таблицу film_change строку с возрастающим номером seq
+ * в той же транзакции, что и само изменение. Номера выдаются в памяти, поэтому, как и индексы в памяти,
+ * журнал рассчитан на одно приложение на базу.
+ * Транзакции фиксируются не в порядке номеров, поэтому читатель получает изменения только до первого номера,
+ * чья транзакция еще не завершилась: иначе токен ушел бы дальше незафиксированной строки и клиент ее пропустил бы.
+ * Журнал уплотняется: у фильма остается только последняя строка, а строки старше retention-hours удаляются
+ * с переносом границы в film_change_horizon; клиенту с токеном до этой границы нужно загрузить каталог заново
+ */
+@Component
+@Slf4j
+public class FilmChangeLog {
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final Duration retention;
+
+    // выданные номера, транзакции которых еще не завершились: первый номер пачки -> последний
+    private final TreeMap<Long, Long> inFlight = new TreeMap<>();
+    private long lastSeq;
+    // изменения с номером не больше horizon удалены при уплотнении
+    private volatile long horizon;
+
+    public FilmChangeLog(JdbcTemplate jdbcTemplate,
+                         PlatformTransactionManager transactionManager,
+                         @Value("${filmorate.changes.retention-hours}") long retentionHours) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.retention = Duration.ofHours(retentionHours);
+    }
+
+    @PostConstruct
+    public synchronized void load() {
+        horizon = jdbcTemplate.queryForObject("SELECT seq FROM film_change_horizon WHERE id = 1", Long.class);
+        Long maxSeq = jdbcTemplate.queryForObject("SELECT MAX(seq) FROM film_change", Long.class);
+        lastSeq = Math.max(maxSeq == null ? 0 : maxSeq, horizon);
+    }
+
+    /*
+     * Метод record записывает изменения фильмов в текущей транзакции.
+     * Номера считаются незавершенными, пока транзакция не зафиксирована или не откачена
+     */
+    public void record(Collection<Long> filmIds) {
+        if (filmIds.isEmpty()) {
+            return;
+        }
+        long first = allocate(filmIds.size());
+        boolean inTransaction = TransactionSynchronizationManager.isSynchronizationActive();
+        if (inTransaction) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    release(first);
+                }
+            });
+        }
+        try {
+            List<Object[]> args = new ArrayList<>(filmIds.size());
+            long seq = first;
+            for (Long filmId : filmIds) {
+                args.add(new Object[]{seq++, filmId});
+            }
+            jdbcTemplate.batchUpdate("INSERT INTO film_change (seq, film_id) VALUES (?, ?)", args);
+        } finally {
+            if (!inTransaction) {
+                release(first);
+            }
+        }
+    }
+
+    /*
+     * Метод changesSince возвращает id не более limit фильмов, изменившихся после номера since, в порядке
+     * их последнего изменения. Без since, с удаленным при уплотнении или чужим номером клиенту нужна
+     * полная загрузка каталога, и он получает только номер, с которого продолжать после нее
+     */
+    public Changes changesSince(Long since, int limit) {
+        long bound = committedUpTo();
+        if (since == null || since < horizon || since > bound) {
+            return new Changes(List.of(), bound, false, true);
+        }
+        List<long[]> rows = jdbcTemplate.query(
+                "SELECT film_id, MAX(seq) AS seq FROM film_change " +
+                        "WHERE seq > ? AND seq <= ? " +
+                        "GROUP BY film_id " +
+                        "ORDER BY seq " +
+                        "LIMIT ?",
+                (rs, rowNum) -> new long[]{rs.getLong("film_id"), rs.getLong("seq")},
+                since, bound, limit + 1);
+        // уплотнение могло удалить строки во время чтения, граница переносится раньше удаления
+        if (since < horizon) {
+            return new Changes(List.of(), bound, false, true);
+        }
+        boolean more = rows.size() > limit;
+        if (more) {
+            rows = rows.subList(0, limit);
+        }
+        List<Long> filmIds = new ArrayList<>(rows.size());
+        for (long[] row : rows) {
+            filmIds.add(row[0]);
+        }
+        return new Changes(filmIds, more ? rows.get(limit - 1)[1] : bound, more, false);
+    }
+
+    /*
+     * Метод compact оставляет у каждого фильма только последнее изменение и удаляет изменения старше retention.
+     * Граница в памяти переносится до удаления, поэтому читатель, заставший удаление, узнает об этом
+     */
+    @Scheduled(fixedDelayString = "${filmorate.changes.compact-delay-ms}")
+    public void compact() {
+        int superseded = jdbcTemplate.update(
+                "DELETE FROM film_change AS c WHERE EXISTS (" +
+                        "SELECT 1 FROM film_change AS n WHERE n.film_id = c.film_id AND n.seq > c.seq)");
+        Long expired = jdbcTemplate.queryForObject(
+                "SELECT MAX(seq) FROM film_change WHERE changed_at < ?",
+                Long.class, Timestamp.from(Instant.now().minus(retention)));
+        if (expired != null && expired > horizon) {
+            horizon = expired;
+            transactionTemplate.executeWithoutResult(status -> {
+                jdbcTemplate.update("DELETE FROM film_change WHERE seq <= ?", expired);
+                jdbcTemplate.update("UPDATE film_change_horizon SET seq = ? WHERE id = 1", expired);
+            });
+        }
+        log.info("Журнал изменений уплотнен: удалено повторных изменений {}, граница {}", superseded, horizon);
+    }
+
+    // все номера не больше этой границы уже зафиксированы или откачены
+    public synchronized long committedUpTo() {
+        return inFlight.isEmpty() ? lastSeq : inFlight.firstKey() - 1;
+    }
+
+    private synchronized long allocate(int count) {
+        long first = lastSeq + 1;
+        lastSeq += count;
+        inFlight.put(first, lastSeq);
+        return first;
+    }
+
+    private synchronized void release(long first) {
+        inFlight.remove(first);
+    }
+
+    public static final class Changes {
+        private final List<Long> filmIds;
+        private final long next;
+        private final boolean more;
+        private final boolean resync;
+
+        private Changes(List<Long> filmIds, long next, boolean more, boolean resync) {
+            this.filmIds = filmIds;
+            this.next = next;
+            this.more = more;
+            this.resync = resync;
+        }
+
+        public List<Long> getFilmIds() {
+            return filmIds;
+        }
+
+        public long getNext() {
+            return next;
+        }
+
+        public boolean isMore() {
+            return more;
+        }
+
+        public boolean isResync() {
+            return resync;
+        }
+    }
+}
@@ -2,33 +2,82 @@ package ru.filmogram.dao;
 
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Primary;
 import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.simple.SimpleJdbcInsert;
-import org.springframework.jdbc.support.rowset.SqlRowSet;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import ru.filmogram.exceptions.ObjectNotFoundException;
 import ru.filmogram.exceptions.ValidationException;
 import ru.filmogram.mapper.FilmMapper;
 import ru.filmogram.model.Film;
+import ru.filmogram.model.FilmChanges;
+import ru.filmogram.model.FilmFacetPage;
+import ru.filmogram.model.FilmFilter;
 import ru.filmogram.model.Genre;
 import ru.filmogram.model.Mpa;
+import ru.filmogram.storage.film.FilmCache;
+import ru.filmogram.storage.film.FilmFacetIndex;
+import ru.filmogram.storage.film.FilmPopularityIndex;
+import ru.filmogram.storage.film.FilmSearchIndex;
 import ru.filmogram.storage.film.FilmStorage;
-
+import ru.filmogram.storage.film.FilmTitleIndex;
+import ru.filmogram.storage.film.LikesMatrix;
+import ru.filmogram.storage.film.SimilarFilmsIndex;
+import ru.filmogram.storage.film.TrendingFilmsIndex;
+
+import javax.annotation.PostConstruct;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
 
-import static ru.filmogram.util.Util.makeMpa;
+import static ru.filmogram.util.Util.encodeChangeToken;
 
 @Repository
 @Primary
 @Slf4j
 public class FilmDbStorageImpl implements FilmStorage {
 
+    private static final String FILM_COLUMNS = "SELECT f.film_id, " +
+            "f.film_name, " +
+            "f.description, " +
+            "f.releaseDate, " +
+            "f.duration, " +
+            "f.rate, " +
+            "f.rating_id ";
+
+    // рейтинг и жанры берутся из справочников в памяти, поэтому к таблицам rating и genre запросы не обращаются
+    private static final String FILM_SELECT = FILM_COLUMNS +
+            "FROM film AS f ";
+
+    // для потоковой выдачи жанры идут в той же выборке, строки одного фильма следуют подряд
+    private static final String FILM_WITH_GENRES_COLUMNS = FILM_COLUMNS + ", " +
+            "gf.genre_id ";
+
+    private static final String FILM_WITH_GENRES_JOINS = "LEFT JOIN genre_film AS gf ON f.film_id = gf.film_id ";
+
+    private final FilmMapper filmMapper = new FilmMapper();
 
     @Autowired
     private final JdbcTemplate jdbcTemplate;
@@ -39,187 +88,340 @@ public class FilmDbStorageImpl implements FilmStorage {
     @Autowired
     private MpaDbStorageImpl mpaDbStorage;
 
+    @Autowired
+    private FilmPopularityIndex popularityIndex;
+
+    @Autowired
+    private FilmCache filmCache;
+
+    @Autowired
+    private LikeWriteBuffer likeWriteBuffer;
+
+    @Autowired
+    private LikesMatrix likesMatrix;
+
+    @Autowired
+    private SimilarFilmsIndex similarFilms;
+
+    @Autowired
+    private FilmSearchIndex searchIndex;
+
+    @Autowired
+    private FilmTitleIndex titleIndex;
+
+    @Autowired
+    private FilmFacetIndex facetIndex;
+
+    @Autowired
+    private TrendingFilmsIndex trendingIndex;
+
+    @Autowired
+    private FilmChangeLog changeLog;
+
+    private final TransactionTemplate transactionTemplate;
+
+    // метаданные таблицы film читаются один раз при первой вставке, дальше запрос переиспользуется
+    private final SimpleJdbcInsert filmInsert;
+
+    // ограничение на размер списков, которые отдаются без пагинации
+    private final int maxListSize;
+
+    private final int streamFetchSize;
+
     public FilmDbStorageImpl(JdbcTemplate jdbcTemplate,
                              GenreDbStorageImpl genreDbStorage,
-                             MpaDbStorageImpl mpaDbStorage) {
+                             MpaDbStorageImpl mpaDbStorage,
+                             FilmPopularityIndex popularityIndex,
+                             FilmCache filmCache,
+                             LikeWriteBuffer likeWriteBuffer,
+                             LikesMatrix likesMatrix,
+                             SimilarFilmsIndex similarFilms,
+                             FilmSearchIndex searchIndex,
+                             FilmTitleIndex titleIndex,
+                             FilmFacetIndex facetIndex,
+                             TrendingFilmsIndex trendingIndex,
+                             FilmChangeLog changeLog,
+                             PlatformTransactionManager transactionManager,
+                             @Value("${filmorate.list.max-size}") int maxListSize,
+                             @Value("${filmorate.stream.fetch-size}") int streamFetchSize) {
         this.jdbcTemplate = jdbcTemplate;
         this.genreDbStorage = genreDbStorage;
         this.mpaDbStorage = mpaDbStorage;
+        this.popularityIndex = popularityIndex;
+        this.filmCache = filmCache;
+        this.likeWriteBuffer = likeWriteBuffer;
+        this.likesMatrix = likesMatrix;
+        this.similarFilms = similarFilms;
+        this.searchIndex = searchIndex;
+        this.titleIndex = titleIndex;
+        this.facetIndex = facetIndex;
+        this.trendingIndex = trendingIndex;
+        this.changeLog = changeLog;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.filmInsert = new SimpleJdbcInsert(jdbcTemplate)
+                .withTableName("film")
+                .usingColumns("film_name", "description", "releaseDate", "duration", "rating_id", "rate")
+                .usingGeneratedKeyColumns("film_id");
+        this.maxListSize = maxListSize;
+        this.streamFetchSize = streamFetchSize;
+    }
+
+    /*
+     * Метод rebuildPopularityIndex заполняет рейтинг популярности по таблице likes
+     */
+    @PostConstruct
+    public void rebuildPopularityIndex() {
+        jdbcTemplate.query(
+                "SELECT f.film_id, " +
+                        "COUNT(l.user_id) AS likes " +
+                        "FROM film AS f " +
+                        "LEFT JOIN likes AS l ON f.film_id = l.film_id " +
+                        "GROUP BY f.film_id",
+                rs -> {
+                    popularityIndex.set(rs.getLong("film_id"), rs.getInt("likes"));
+                });
+        log.info("Рейтинг популярности построен по {} фильмам", popularityIndex.size());
     }
 
+    /*
+     * Метод loadLikesMatrix заполняет матрицу лайков для рекомендаций по таблице likes в порядке первичного ключа
+     * и по ней считает похожие фильмы
+     */
+    @PostConstruct
+    public void loadLikesMatrix() {
+        LikesMatrix.Loader loader = likesMatrix.loader();
+        jdbcTemplate.query(
+                JdbcStreams.forwardOnly("SELECT film_id, user_id FROM likes ORDER BY film_id, user_id",
+                        streamFetchSize),
+                rs -> {
+                    loader.add(rs.getLong("film_id"), rs.getLong("user_id"));
+                });
+        log.info("Матрица лайков построена по {} лайкам", loader.finish());
+        similarFilms.rebuild();
+    }
+
+    /*
+     * Метод loadSearchIndex строит поисковый индекс по названиям и описаниям и индекс названий для автодополнения,
+     * читая таблицу film курсором: строки копятся пачками по streamFetchSize, текст каждой пачки разбирается параллельно
+     */
+    @PostConstruct
+    public void loadSearchIndex() {
+        List<FilmSearchIndex.Document> batch = new ArrayList<>(streamFetchSize);
+        Map<Long, String> names = new HashMap<>();
+        jdbcTemplate.query(
+                JdbcStreams.forwardOnly("SELECT film_id, film_name, description FROM film", streamFetchSize),
+                rs -> {
+                    long filmId = rs.getLong("film_id");
+                    String name = rs.getString("film_name");
+                    batch.add(new FilmSearchIndex.Document(filmId, name, rs.getString("description")));
+                    names.put(filmId, name);
+                    if (batch.size() == streamFetchSize) {
+                        searchIndex.index(batch);
+                        batch.clear();
+                    }
+                });
+        searchIndex.index(batch);
+        titleIndex.replace(names);
+        log.info("Поисковый индекс построен по {} фильмам", searchIndex.size());
+    }
+
+    /*
+     * Метод loadFacetIndex заполняет битовые карты жанров, рейтингов и годов, читая фильмы с жанрами курсором;
+     * строки одного фильма идут подряд
+     */
+    @PostConstruct
+    public void loadFacetIndex() {
+        long[] current = {-1};
+        Object[] values = new Object[2];
+        List<Long> genreIds = new ArrayList<>();
+        jdbcTemplate.query(
+                JdbcStreams.forwardOnly("SELECT f.film_id, f.rating_id, EXTRACT(YEAR FROM f.releaseDate) AS release_year, " +
+                        "gf.genre_id " +
+                        "FROM film AS f " +
+                        FILM_WITH_GENRES_JOINS +
+                        "ORDER BY f.film_id, gf.genre_id", streamFetchSize),
+                rs -> {
+                    long filmId = rs.getLong("film_id");
+                    if (filmId != current[0]) {
+                        if (current[0] >= 0) {
+                            facetIndex.put(current[0], (Long) values[0], (Integer) values[1], genreIds);
+                        }
+                        current[0] = filmId;
+                        values[0] = rs.getObject("rating_id", Long.class);
+                        values[1] = rs.getObject("release_year", Integer.class);
+                        genreIds.clear();
+                    }
+                    long genreId = rs.getLong("genre_id");
+                    if (!rs.wasNull()) {
+                        genreIds.add(genreId);
+                    }
+                });
+        if (current[0] >= 0) {
+            facetIndex.put(current[0], (Long) values[0], (Integer) values[1], genreIds);
+        }
+        log.info("Битовые карты фильтров построены по {} фильмам", facetIndex.size());
+    }
+
+    /*
+     * Метод loadTrendingIndex заполняет счетчики трендов лайками за последнюю неделю,
+     * более старые лайки ни в одно окно уже не попадают
+     */
+    @PostConstruct
+    public void loadTrendingIndex() {
+        Instant now = Instant.now();
+        trendingIndex.clear();
+        jdbcTemplate.query(
+                JdbcStreams.forwardOnly("SELECT film_id, created_at FROM likes WHERE created_at >= ?",
+                        streamFetchSize, Timestamp.from(now.minus(Duration.ofDays(7)))),
+                rs -> {
+                    trendingIndex.like(rs.getLong("film_id"), rs.getTimestamp("created_at").toInstant());
+                });
+        trendingIndex.refresh(now);
+        log.info("Счетчики трендов построены по {} фильмам", trendingIndex.size());
+    }
+
+    /*
+     * Метод createFilm вставляет фильм и его жанры в одной транзакции и возвращает фильм без повторного чтения:
+     * рейтинг и жанры берутся из справочников, поэтому неизвестный id отклоняется до записи
+     */
     @Override
+    @Transactional
     public Film createFilm(Film film) throws ValidationException {
 
         Mpa mpa = mpaDbStorage.getMpaId(film.getMpa().getId());
+        List<Genre> genres = resolveGenres(film);
 
-        SimpleJdbcInsert simpleJdbcInsert = new SimpleJdbcInsert(jdbcTemplate)
-                .withTableName("film")
-                .usingGeneratedKeyColumns("film_id");
-
-        Map<String, Object> parameters = new HashMap<String, Object>();
+        Map<String, Object> parameters = new HashMap<>();
         parameters.put("film_name", film.getName());
         parameters.put("description", film.getDescription());
         parameters.put("releaseDate", film.getReleaseDate());
         parameters.put("duration", film.getDuration());
         parameters.put("rating_id", mpa.getId());
-        if (film.getRate() != null) {
-            parameters.put("rate", film.getRate());
+        parameters.put("rate", film.getRate());
+
+        Long filmId = filmInsert.executeAndReturnKey(parameters).longValue();
+        insertGenres(filmId, genres);
+        changeLog.record(List.of(filmId));
+        afterCommit(() -> {
+            popularityIndex.register(filmId);
+            searchIndex.index(filmId, film.getName(), film.getDescription());
+            titleIndex.put(filmId, film.getName());
+            putFacets(filmId, mpa, film.getReleaseDate(), genres);
+        });
+
+        return savedFilm(filmId, film, mpa, genres);
+    }
+
+    /*
+     * Метод createFilms вставляет фильмы одним пакетом с получением сгенерированных id,
+     * затем одним пакетом их жанры; все в одной транзакции
+     */
+    @Override
+    @Transactional
+    public List<Film> createFilms(List<Film> films) {
+        List<Mpa> mpas = new ArrayList<>(films.size());
+        List<List<Genre>> genres = new ArrayList<>(films.size());
+        for (Film film : films) {
+            mpas.add(mpaDbStorage.getMpaId(film.getMpa().getId()));
+            genres.add(resolveGenres(film));
         }
 
-        Long filmId = simpleJdbcInsert.executeAndReturnKey(parameters).longValue();
+        List<Long> filmIds = JdbcBatches.insertReturningKeys(jdbcTemplate,
+                "INSERT INTO film (film_name, description, releaseDate, duration, rating_id, rate) " +
+                        "VALUES (?, ?, ?, ?, ?, ?)",
+                "film_id", new BatchPreparedStatementSetter() {
+                    @Override
+                    public void setValues(PreparedStatement statement, int i) throws SQLException {
+                        Film film = films.get(i);
+                        statement.setString(1, film.getName());
+                        statement.setString(2, film.getDescription());
+                        statement.setObject(3, film.getReleaseDate());
+                        statement.setLong(4, film.getDuration());
+                        statement.setLong(5, mpas.get(i).getId());
+                        statement.setObject(6, film.getRate());
+                    }
 
-        List<Genre> genres = new ArrayList<>();
-        if (film.getGenres() != null) {
-            for (Genre genre : film.getGenres()) {
-                if (!genres.contains(genre)) {
-                    genres.add(genreDbStorage.getGenre(genre.getId()));
-                    jdbcTemplate.update("INSERT INTO genre_film (film_id, genre_id) VALUES (?, ?)",
-                            filmId, genre.getId());
-                }
+                    @Override
+                    public int getBatchSize() {
+                        return films.size();
+                    }
+                });
+
+        List<Object[]> genreArgs = new ArrayList<>();
+        List<Film> savedFilms = new ArrayList<>(films.size());
+        List<FilmSearchIndex.Document> documents = new ArrayList<>(films.size());
+        for (int i = 0; i < films.size(); i++) {
+            Long filmId = filmIds.get(i);
+            for (Genre genre : genres.get(i)) {
+                genreArgs.add(new Object[]{filmId, genre.getId()});
             }
+            savedFilms.add(savedFilm(filmId, films.get(i), mpas.get(i), genres.get(i)));
+            documents.add(new FilmSearchIndex.Document(filmId, films.get(i).getName(), films.get(i).getDescription()));
         }
-
-        String query = "SELECT f.film_id," +
-                "              f.film_name," +
-                "              f.description," +
-                "              f.releaseDate," +
-                "              f.duration," +
-                "              f.rate," +
-                "              FROM film AS f" +
-                "              WHERE f.film_id = ?";
-        Film finalFilm = jdbcTemplate.queryForObject(
-                query, new Object[]{filmId}, new FilmMapper());
-        finalFilm.setMpa(mpa);
-        finalFilm.setGenres(genres);
-        finalFilm.setRate(film.getRate());
-        return finalFilm;
+        jdbcTemplate.batchUpdate("INSERT INTO genre_film (film_id, genre_id) VALUES (?, ?)", genreArgs);
+        changeLog.record(filmIds);
+        afterCommit(() -> {
+            filmIds.forEach(popularityIndex::register);
+            searchIndex.index(documents);
+            for (int i = 0; i < films.size(); i++) {
+                titleIndex.put(filmIds.get(i), films.get(i).getName());
+                putFacets(filmIds.get(i), mpas.get(i), films.get(i).getReleaseDate(), genres.get(i));
+            }
+        });
+        return savedFilms;
     }
 
     @Override
     public Film getFilmId(Long id) {
+        return filmCache.get(id, this::loadFilm);
+    }
 
-        Film finalFilm = null;
-        try {
-            SqlRowSet filmRows = jdbcTemplate.queryForRowSet(
-                    "          SELECT f.film_id," +
-                            "              f.film_name," +
-                            "              f.description," +
-                            "              f.releaseDate," +
-                            "              f.duration," +
-                            "              f.rate," +
-                            "              r.rating_name," +
-                            "              r.rating_id," +
-                            "              r.rating_name," +
-                            "              FROM film AS f" +
-                            "              LEFT JOIN genre_film AS gf ON f.film_id = gf.film_id" +
-                            "              LEFT JOIN genre AS g ON gf.genre_id = g.genre_id" +
-                            "              LEFT JOIN rating AS r ON f.rating_id = r.rating_id" +
-                            "              WHERE f.film_id = ?", id);
-            if (filmRows.next()) {
-                finalFilm = Film.builder()
-                        .id(filmRows.getLong("film_id"))
-                        .name(filmRows.getString("film_name"))
-                        .description(filmRows.getString("description"))
-                        .duration(Long.parseLong(filmRows.getString("duration")))
-                        .releaseDate(LocalDate.parse(filmRows.getString("releaseDate")))
-                        .rate(filmRows.getInt("rate"))
-                        .mpa(makeMpa(filmRows.getLong("rating_id"), filmRows.getString("rating_name")))
-                        .build();
-            } else {
-                throw new ObjectNotFoundException(String.format("Фильм %d не найден", id));
-            }
-
-            List<Long> genresId = jdbcTemplate.queryForList(
-                    "SELECT genre_id FROM genre_film WHERE film_id = ?", Long.class, id);
-
-            List<Genre> genres = new ArrayList<>();
-            if (genresId.size() > 0) {
-                for (Long genreId : genresId) {
-                    genres.add(genreDbStorage.getGenre(genreId));
-                }
-            }
-            finalFilm.setGenres(genres);
+    private Film loadFilm(Long id) {
 
+        List<Film> films;
+        try {
+            films = findFilms(FILM_SELECT + "WHERE f.film_id = ?", id);
         } catch (DataAccessException e) {
             throw new ObjectNotFoundException(String.format("Фильм %d не найден", id));
         }
-        return finalFilm;
+        if (films.isEmpty()) {
+            throw new ObjectNotFoundException(String.format("Фильм %d не найден", id));
+        }
+        return films.get(0);
     }
 
     @Override
     public List<Film> findAllFilm() {
-        ArrayList<Film> films = new ArrayList<>();
-
-        Film finalFilm = null;
         try {
-            SqlRowSet filmRows = jdbcTemplate.queryForRowSet(
-                    "          SELECT f.film_id," +
-                            "              f.film_name," +
-                            "              f.description," +
-                            "              f.releaseDate," +
-                            "              f.duration," +
-                            "              f.rate," +
-                            "              r.rating_name," +
-                            "              r.rating_id," +
-                            "              r.rating_name," +
-                            "              FROM film AS f" +
-                            "              LEFT JOIN genre_film AS gf ON f.film_id = gf.film_id" +
-                            "              LEFT JOIN genre AS g ON gf.genre_id = g.genre_id" +
-                            "              LEFT JOIN rating AS r ON f.rating_id = r.rating_id" +
-                            "              GROUP BY f.film_name" +
-                            "              ORDER BY f.film_id ASC");
-            while (filmRows.next()) {
-                finalFilm = Film.builder()
-                        .id(filmRows.getLong("film_id"))
-                        .name(filmRows.getString("film_name"))
-                        .description(filmRows.getString("description"))
-                        .duration(Long.parseLong(filmRows.getString("duration")))
-                        .releaseDate(LocalDate.parse(filmRows.getString("releaseDate")))
-                        .rate(filmRows.getInt("rate"))
-                        .mpa(makeMpa(filmRows.getLong("rating_id"), filmRows.getString("rating_name")))
-                        .build();
-
-                List<Long> genresId = jdbcTemplate.queryForList(
-                        "SELECT genre_id FROM genre_film WHERE film_id = ?", Long.class, finalFilm.getId());
-
-                List<Genre> genres = new ArrayList<>();
-                if (genresId.size() != 0) {
-                    for (Long genreId : genresId) {
-                        genres.add(genreDbStorage.getGenre(genreId));
-                    }
-                }
-                finalFilm.setGenres(genres);
-                films.add(finalFilm);
-            }
+            return findFilms(FILM_SELECT + "ORDER BY f.film_id ASC LIMIT ?", maxListSize);
         } catch (DataAccessException e) {
             throw new ObjectNotFoundException("Фильм не найден");
         }
-        return films;
     }
 
     @Override
-    public Film updateFilm(Film film) throws ValidationException {
-
-        List<Integer> filmId = jdbcTemplate.queryForList(
-                "SELECT film_id FROM film WHERE film_id = ?", Integer.class, film.getId());
-
-        if (filmId.size() == 0) {
-            log.info("Фильм не найден");
-            throw new ObjectNotFoundException("Фильм не найден");
-        }
+    public List<Film> findFilmsAfter(Long afterId, int limit) {
+        return findFilms(FILM_SELECT + "WHERE f.film_id > ? ORDER BY f.film_id ASC LIMIT ?", afterId, limit);
+    }
 
-        // проводит все логику работы с жанрами
-        ArrayList<Genre> genreFinal = getGenreFinalList(film);
+    /*
+     * Метод updateFilm обновляет фильм и применяет разницу между старым и новым набором жанров
+     * пакетными запросами в одной транзакции. Отсутствие фильма определяется по числу обновленных строк
+     */
+    @Override
+    @Transactional
+    public Film updateFilm(Film film) throws ValidationException {
 
         Mpa mpa = mpaDbStorage.getMpaId(film.getMpa().getId());
+        List<Genre> genres = resolveGenres(film);
 
-        jdbcTemplate.update(
+        int updated = jdbcTemplate.update(
                 "UPDATE film SET film_name = ?, " +
                         "description = ?, " +
                         "releaseDate = ?, " +
                         "duration = ?, " +
                         "rating_id = ?, " +
-                        "rate = ?" +
+                        "rate = ? " +
                         "WHERE film_id = ?",
                 film.getName(),
                 film.getDescription(),
@@ -228,217 +430,532 @@ public class FilmDbStorageImpl implements FilmStorage {
                 mpa.getId(),
                 film.getRate(),
                 film.getId());
-
-        Film finalFilm = null;
-        try {
-            String query = "SELECT f.film_id," +
-                    "              f.film_name," +
-                    "              f.description," +
-                    "              f.releaseDate," +
-                    "              f.duration," +
-                    "              f.rate" +
-                    "              FROM film AS f" +
-                    "              WHERE f.film_id = ?";
-            finalFilm = jdbcTemplate.queryForObject(
-                    query, new Object[]{film.getId()}, new FilmMapper());
-            finalFilm.setMpa(mpa);
-            finalFilm.setGenres(genreFinal);
-        } catch (DataAccessException e) {
+        if (updated == 0) {
+            log.info("Фильм не найден");
             throw new ObjectNotFoundException("Фильм не найден");
         }
-        return finalFilm;
-    }
 
-    /*
-     * Метод getGenreFinalList проводи всю работу с жанрами для метода updateFilm
-     */
-    private ArrayList<Genre> getGenreFinalList(Film film) {
-
-        // хранит список старых жанров
-        ArrayList<Genre> genresOldList = new ArrayList<>();
-        // сюда будем класть список новых фильмов
-        ArrayList<Genre> genreFinal = new ArrayList<>();
-
-        // получаем список всех старых genre_id фильма из базы
-        List<Long> genreListId = jdbcTemplate.queryForList(
-                "SELECT genre_id FROM genre_film WHERE film_id = ?", Long.class, film.getId());
-        if (genreListId.size() > 0 && genreListId.get(0) != null) {
-            for (Long genreId : genreListId) {
-                genresOldList.add(genreDbStorage.getGenre(genreId));
+        Set<Long> oldGenreIds = new HashSet<>(jdbcTemplate.queryForList(
+                "SELECT genre_id FROM genre_film WHERE film_id = ?", Long.class, film.getId()));
+        List<Genre> addedGenres = new ArrayList<>();
+        for (Genre genre : genres) {
+            if (!oldGenreIds.remove(genre.getId())) {
+                addedGenres.add(genre);
+            }
+        }
+        // в oldGenreIds остались жанры, которых нет в новом наборе
+        if (!oldGenreIds.isEmpty()) {
+            List<Object[]> removed = new ArrayList<>(oldGenreIds.size());
+            for (Long genreId : oldGenreIds) {
+                removed.add(new Object[]{film.getId(), genreId});
             }
+            jdbcTemplate.batchUpdate("DELETE FROM genre_film WHERE film_id = ? AND genre_id = ?", removed);
         }
+        insertGenres(film.getId(), addedGenres);
+        changeLog.record(List.of(film.getId()));
+        afterCommit(() -> {
+            filmCache.invalidate(film.getId());
+            searchIndex.index(film.getId(), film.getName(), film.getDescription());
+            titleIndex.put(film.getId(), film.getName());
+            putFacets(film.getId(), mpa, film.getReleaseDate(), genres);
+        });
+
+        return savedFilm(film.getId(), film, mpa, genres);
+    }
+
+    private void putFacets(Long filmId, Mpa mpa, LocalDate releaseDate, List<Genre> genres) {
+        List<Long> genreIds = new ArrayList<>(genres.size());
+        for (Genre genre : genres) {
+            genreIds.add(genre.getId());
+        }
+        facetIndex.put(filmId, mpa.getId(), releaseDate == null ? null : releaseDate.getYear(), genreIds);
+    }
 
-        if (!(film.getGenres() == null)) {
+    /*
+     * Метод resolveGenres убирает повторы жанров и упорядочивает их по id, как при чтении фильма из базы
+     */
+    private List<Genre> resolveGenres(Film film) {
+        Set<Long> genreIds = new TreeSet<>();
+        if (film.getGenres() != null) {
             for (Genre genre : film.getGenres()) {
-                Genre newGenre = genreDbStorage.getGenre(genre.getId());
-                if (!genreFinal.contains(genre)) {
-                    genreFinal.add(genreDbStorage.getGenre(genre.getId()));
-                }
-                if (!genresOldList.contains(newGenre)) {
-                    jdbcTemplate.update("INSERT INTO genre_film (film_id, genre_id) VALUES (?, ?)",
-                            film.getId(), genre.getId());
-                }
+                genreIds.add(genre.getId());
             }
         }
+        List<Genre> genres = new ArrayList<>(genreIds.size());
+        for (Long genreId : genreIds) {
+            genres.add(genreDbStorage.getGenre(genreId));
+        }
+        return genres;
+    }
 
-        if (genresOldList.size() > 0) {
-            for (Genre oldGenre : genresOldList) {
-                if (!genreFinal.contains(oldGenre)) {
-                    jdbcTemplate.update(
-                            "delete from genre_film where film_id = ? AND genre_id = ?",
-                            film.getId(), oldGenre.getId());
-                }
-            }
+    private void insertGenres(Long filmId, List<Genre> genres) {
+        if (genres.isEmpty()) {
+            return;
+        }
+        List<Object[]> args = new ArrayList<>(genres.size());
+        for (Genre genre : genres) {
+            args.add(new Object[]{filmId, genre.getId()});
         }
-        return genreFinal;
+        jdbcTemplate.batchUpdate("INSERT INTO genre_film (film_id, genre_id) VALUES (?, ?)", args);
+    }
+
+    // поля заполняются так же, как при чтении фильма: пустой rate читается из базы как 0
+    private Film savedFilm(Long filmId, Film film, Mpa mpa, List<Genre> genres) {
+        return Film.builder()
+                .id(filmId)
+                .name(film.getName())
+                .description(film.getDescription())
+                .releaseDate(film.getReleaseDate())
+                .duration(film.getDuration())
+                .rate(film.getRate() == null ? 0 : film.getRate())
+                .mpa(mpa)
+                .genres(genres)
+                .build();
     }
 
+    /*
+     * Метод addLikeFilm ставит like одним MERGE по первичному ключу (film_id, user_id)
+     * и возвращает false, если like уже был поставлен ранее.
+     * При включенной отложенной записи like уходит в LikeWriteBuffer без обращения к базе
+     */
     @Override
     public boolean addLikeFilm(Long filmId, Long userId) throws ValidationException {
-        Film finalFilm = null;
-        try {
-            Integer existingRecordCount = jdbcTemplate.queryForObject(
-                    "SELECT COUNT(*) FROM likes WHERE film_id = ? AND user_id = ?",
-                    Integer.class,
-                    filmId, userId);
-            if (existingRecordCount != null && existingRecordCount > 0) {
-                log.info("Like фильма {} пользователем {} уже ранее был осуществлен", filmId, userId);
-            } else {
-                jdbcTemplate.update(
-                        "INSERT INTO likes (film_id, user_id) VALUES (?, ?)",
-                        filmId, userId);
-            }
-        } catch (DataAccessException e) {
-            throw new ObjectNotFoundException(String.format("Фильм %d не найден", filmId));
+        if (likeWriteBuffer.isEnabled()) {
+            return likeWriteBuffer.like(filmId, userId);
         }
-        return true;
+        return Boolean.TRUE.equals(transactionTemplate.execute(status -> insertLike(filmId, userId)));
     }
 
     @Override
     public boolean deleteLikeFilm(Long filmId, Long userId) {
+        if (likeWriteBuffer.isEnabled()) {
+            return likeWriteBuffer.unlike(filmId, userId);
+        }
+        return Boolean.TRUE.equals(transactionTemplate.execute(status -> removeLike(filmId, userId)));
+    }
 
-        Integer existingRecordCount = jdbcTemplate.queryForObject(
-                "SELECT COUNT(*) FROM likes WHERE film_id = ? AND user_id = ?",
-                Integer.class,
-                filmId, userId);
-
-        if (existingRecordCount != null && existingRecordCount > 0) {
-            jdbcTemplate.update("delete from likes where film_id = ? AND user_id = ?", filmId, userId);
-            log.info("like фильма {} пользователя {} был удален", filmId, userId);
-            return true;
-        } else {
-            log.info("like фильма {} пользователя {} не найден", filmId, userId);
-            throw new ObjectNotFoundException(String.format("like фильма %d не найден", filmId));
+    /*
+     * Метод reconcileLikeCounts пересчитывает like_count по таблице likes для фильмов,
+     * у которых счетчик разошелся с фактическим числом лайков
+     */
+    @Scheduled(fixedDelayString = "${filmorate.likes.reconcile-delay-ms}",
+            initialDelayString = "${filmorate.likes.reconcile-delay-ms}")
+    public int reconcileLikeCounts() {
+        int fixed = jdbcTemplate.update(
+                "UPDATE film AS f SET like_count = " +
+                        "(SELECT COUNT(*) FROM likes AS l WHERE l.film_id = f.film_id) " +
+                        "WHERE like_count <> (SELECT COUNT(*) FROM likes AS l WHERE l.film_id = f.film_id)");
+        if (fixed > 0) {
+            log.info("Счетчик like_count исправлен у {} фильмов", fixed);
+            rebuildPopularityIndex();
         }
+        return fixed;
     }
 
     @Override
     public List<Film> sortPopularFilm(Integer count) throws ValidationException {
+        return findFilmsByIds(popularityIndex.top(Math.min(popularCount(count), maxListSize)));
+    }
+
+    @Override
+    public List<Film> sortPopularFilm(Integer count, Long genreId, Long mpaId, Integer year)
+            throws ValidationException {
+        List<Object> args = new ArrayList<>();
+        String sql = popularFilmsSql(genreId, mpaId, year, Math.min(popularCount(count), maxListSize), args);
+        return findFilms(sql, args.toArray());
+    }
+
+    /*
+     * Метод popularFilmsSql строит запрос limit популярных фильмов с фильтрами и дописывает его параметры в args.
+     * Без года запрос обычно идет по индексу film_like_count_idx в порядке рейтинга и останавливается
+     * на limit-м подходящем фильме, жанр проверяется по первичному ключу genre_film. Если по счетчикам
+     * FilmFacetIndex фильтру подходит мало фильмов, такой обход просмотрел бы почти всю таблицу, и фильмы
+     * выбираются со стороны самого узкого фильтра — по genre_film_genre_idx или film_rating_release_idx — и сортируются.
+     * Год отсекает большую часть фильмов, поэтому с ним фильмы выбираются по индексу даты выхода
+     * (вместе с рейтингом MPA — по film_rating_release_idx) и сортируются
+     */
+    String popularFilmsSql(Long genreId, Long mpaId, Integer year, int limit, List<Object> args) {
+        PopularDriver driver = year != null ? PopularDriver.FILTER : popularDriver(genreId, mpaId, limit);
+        StringBuilder sql = new StringBuilder(FILM_COLUMNS);
+        switch (driver) {
+            case GENRE:
+                sql.append("FROM genre_film AS gf USE INDEX (genre_film_genre_idx) ")
+                        .append("JOIN film AS f ON f.film_id = gf.film_id ")
+                        .append("WHERE gf.genre_id = ? ");
+                args.add(genreId);
+                break;
+            case MPA:
+                sql.append("FROM film AS f USE INDEX (film_rating_release_idx) WHERE TRUE ");
+                break;
+            case LIKES:
+                sql.append("FROM film AS f USE INDEX (film_like_count_idx) WHERE TRUE ");
+                break;
+            default:
+                sql.append("FROM film AS f WHERE TRUE ");
+        }
+        if (mpaId != null) {
+            sql.append("AND f.rating_id = ? ");
+            args.add(mpaId);
+        }
+        if (year != null) {
+            // диапазон дат вместо EXTRACT(YEAR ...), чтобы условие попадало в индекс
+            sql.append("AND f.releaseDate >= ? AND f.releaseDate < ? ");
+            args.add(LocalDate.of(year, 1, 1));
+            args.add(LocalDate.of(year + 1, 1, 1));
+        }
+        if (genreId != null && driver != PopularDriver.GENRE) {
+            sql.append("AND EXISTS (SELECT 1 FROM genre_film AS gf ")
+                    .append("WHERE gf.film_id = f.film_id AND gf.genre_id = ?) ");
+            args.add(genreId);
+        }
+        args.add(limit);
+        return sql.append("ORDER BY f.like_count DESC, f.film_id LIMIT ?").toString();
+    }
+
+    /*
+     * Метод popularDriver выбирает, с чего начинать запрос популярных фильмов без года.
+     * Обход рейтинга до limit совпадений просматривает примерно limit * все / совпавшие фильмов,
+     * выборка по фильтру — все фильмы жанра или рейтинга MPA; берется меньшее
+     */
+    private PopularDriver popularDriver(Long genreId, Long mpaId, int limit) {
+        if (genreId == null && mpaId == null) {
+            return PopularDriver.LIKES;
+        }
+        int films = facetIndex.size();
+        int matches = facetCount(genreId, mpaId);
+        long walk = matches == 0 ? films : (long) limit * films / matches;
+        int genreFilms = genreId == null ? Integer.MAX_VALUE : facetCount(genreId, null);
+        int mpaFilms = mpaId == null ? Integer.MAX_VALUE : facetCount(null, mpaId);
+        if (Math.min(genreFilms, mpaFilms) >= walk) {
+            return PopularDriver.LIKES;
+        }
+        return genreFilms <= mpaFilms ? PopularDriver.GENRE : PopularDriver.MPA;
+    }
+
+    private int facetCount(Long genreId, Long mpaId) {
+        return facetIndex.count(FilmFilter.builder()
+                .genres(genreId == null ? null : Set.of(genreId))
+                .mpa(mpaId == null ? null : Set.of(mpaId))
+                .build());
+    }
+
+    @Override
+    public List<Film> getTrendingFilms(TrendingFilmsIndex.Window window, int count) {
+        List<Long> filmIds = new ArrayList<>();
+        for (long filmId : trendingIndex.top(window, Math.min(count, trendingIndex.topK()))) {
+            filmIds.add(filmId);
+        }
+        return findFilmsByIds(filmIds);
+    }
+
+    @Override
+    public FilmChanges getFilmChanges(Long since, int limit) {
+        FilmChangeLog.Changes changes = changeLog.changesSince(since, limit);
+        return FilmChanges.builder()
+                .items(findFilmsByIds(changes.getFilmIds()))
+                .next(encodeChangeToken(changes.getNext()))
+                .more(changes.isMore())
+                .resync(changes.isResync())
+                .build();
+    }
+
+    @Override
+    public List<Film> getAllPopular() {
+        return findFilmsByIds(popularityIndex.top(Math.min(popularityIndex.size(), maxListSize)));
+    }
+
+    /*
+     * Метод getRecommendations подбирает фильмы по лайкам похожих пользователей из матрицы лайков в памяти,
+     * из базы загружаются только рекомендованные фильмы
+     */
+    @Override
+    public List<Film> getRecommendations(Long userId, int limit) {
+        Integer users = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM users WHERE user_id = ?",
+                Integer.class, userId);
+        if (users == null || users == 0) {
+            throw new ObjectNotFoundException(String.format("id пользователя %d не существует", userId));
+        }
+        List<Long> filmIds = new ArrayList<>();
+        for (long filmId : likesMatrix.recommend(userId, limit)) {
+            filmIds.add(filmId);
+        }
+        return findFilmsByIds(filmIds);
+    }
+
+    /*
+     * Метод getSimilarFilms берет готовый список похожих фильмов из индекса, а сами фильмы — из кэша,
+     * поэтому при прогретом кэше запрос не обращается к базе, а промахи загружаются одним запросом
+     */
+    @Override
+    public List<Film> getSimilarFilms(Long filmId, int limit) {
+        getFilmId(filmId);
+        return getCachedFilms(similarFilms.similar(filmId, limit));
+    }
+
+    /*
+     * Метод searchFilms находит фильмы по словам запроса в поисковом индексе в памяти
+     * и загружает из базы только найденные фильмы в порядке релевантности
+     */
+    @Override
+    public List<Film> searchFilms(String query, int limit) {
+        List<Long> filmIds = new ArrayList<>();
+        for (long filmId : searchIndex.search(query, limit)) {
+            filmIds.add(filmId);
+        }
+        return findFilmsByIds(filmIds);
+    }
+
+    /*
+     * Метод filterFilms отбирает фильмы и считает значения фильтров по битовым картам в памяти,
+     * из базы загружаются только фильмы текущей страницы
+     */
+    @Override
+    public FilmFacetPage filterFilms(FilmFilter filter, int limit) {
+        FilmFacetIndex.Result result = facetIndex.query(filter, limit);
+        List<Long> filmIds = new ArrayList<>(result.getFilmIds().length);
+        for (long filmId : result.getFilmIds()) {
+            filmIds.add(filmId);
+        }
+        return FilmFacetPage.builder()
+                .items(findFilmsByIds(filmIds))
+                .total(result.getTotal())
+                .genres(result.getGenres())
+                .mpa(result.getMpa())
+                .decades(result.getDecades())
+                .build();
+    }
+
+    /*
+     * Метод autocompleteFilms подсказывает самые популярные фильмы по началу названия из индекса в памяти,
+     * сами фильмы берутся из кэша. Для частых префиксов индекс хранит только topK фильмов, поэтому limit ограничен им
+     */
+    @Override
+    public List<Film> autocompleteFilms(String prefix, int limit) {
+        return getCachedFilms(titleIndex.suggest(prefix, Math.min(limit, titleIndex.topK())));
+    }
 
-        Film finalFilm = null;
-        Integer realCount = count;
-        ArrayList<Film> films = new ArrayList<>();
+    // фильмы в порядке ids: найденные в кэше берутся из него, промахи загружаются одним запросом
+    private List<Film> getCachedFilms(long[] ids) {
+        List<Long> filmIds = new ArrayList<>(ids.length);
+        for (long filmId : ids) {
+            filmIds.add(filmId);
+        }
+        Map<Long, Film> filmsById = filmCache.getAll(filmIds, this::findFilmsByIds);
+        List<Film> films = new ArrayList<>(filmIds.size());
+        for (Long filmId : filmIds) {
+            Film film = filmsById.get(filmId);
+            if (film != null) {
+                films.add(film);
+            }
+        }
+        return films;
+    }
 
+    @Override
+    public void streamAllFilm(Consumer<Film> consumer) {
+        streamFilms(FILM_WITH_GENRES_COLUMNS +
+                "FROM film AS f " +
+                FILM_WITH_GENRES_JOINS +
+                "ORDER BY f.film_id, gf.genre_id", consumer);
+    }
+
+    /*
+     * Метод streamPopularFilm без count отдает весь рейтинг, с count — как sortPopularFilm, но без ограничения размера
+     */
+    @Override
+    public void streamPopularFilm(Integer count, Consumer<Film> consumer) throws ValidationException {
+        if (count == null) {
+            streamFilms(FILM_WITH_GENRES_COLUMNS +
+                    "FROM film AS f " +
+                    FILM_WITH_GENRES_JOINS +
+                    "ORDER BY f.like_count DESC, f.film_id, gf.genre_id", consumer);
+            return;
+        }
+        streamFilms(FILM_WITH_GENRES_COLUMNS +
+                "FROM (SELECT * FROM film ORDER BY like_count DESC, film_id LIMIT ?) AS f " +
+                FILM_WITH_GENRES_JOINS +
+                "ORDER BY f.like_count DESC, f.film_id, gf.genre_id", consumer, popularCount(count));
+    }
+
+    private int popularCount(Integer count) throws ValidationException {
         if (count == null || count == 0) {
-            realCount = 10;
+            return 10;
         } else if (count < 0) {
             throw new ValidationException("Значение не может быть отрицательным");
         }
+        return count;
+    }
 
-        SqlRowSet filmRows = jdbcTemplate.queryForRowSet(
-                "          SELECT f.film_id," +
-                        "              f.film_name," +
-                        "              f.description," +
-                        "              f.releaseDate," +
-                        "              f.duration," +
-                        "              f.rate," +
-                        "              r.rating_name," +
-                        "              r.rating_id," +
-                        "              r.rating_name," +
-                        "              GROUP_CONCAT(l.user_id) AS listOfUsersLike, " +
-                        "              COUNT(lk.user_id) AS likes " +
-                        "              FROM film AS f" +
-                        "              LEFT JOIN genre_film AS gf ON f.film_id = gf.film_id" +
-                        "              LEFT JOIN genre AS g ON gf.genre_id = g.genre_id" +
-                        "              LEFT JOIN rating AS r ON f.rating_id = r.rating_id" +
-                        "              LEFT JOIN likes AS l ON f.film_id = l.film_id " +
-                        "              LEFT JOIN likes AS lk ON f.film_id = lk.film_id " +
-                        "              GROUP BY f.film_id " +
-                        "              ORDER BY likes DESC " +
-                        "              LIMIT ?", realCount);
-        while (filmRows.next()) {
-            finalFilm = Film.builder()
-                    .id(filmRows.getLong("film_id"))
-                    .name(filmRows.getString("film_name"))
-                    .description(filmRows.getString("description"))
-                    .duration(Long.parseLong(filmRows.getString("duration")))
-                    .releaseDate(LocalDate.parse(filmRows.getString("releaseDate")))
-                    .rate(filmRows.getInt("rate"))
-                    .mpa(makeMpa(filmRows.getLong("rating_id"), filmRows.getString("rating_name")))
-                    .build();
-
-            List<Long> genresId = jdbcTemplate.queryForList(
-                    "SELECT genre_id FROM genre_film WHERE film_id = ?", Long.class, finalFilm.getId());
-
-            List<Genre> genres = new ArrayList<>();
-            if (genresId.size() != 0) {
-                for (Long genreId : genresId) {
-                    genres.add(genreDbStorage.getGenre(genreId));
+    /*
+     * Метод streamFilms читает фильмы курсором и передает каждый фильм consumer,
+     * как только прочитаны все строки его жанров, поэтому в памяти держится только один фильм
+     */
+    private void streamFilms(String sql, Consumer<Film> consumer, Object... args) {
+        Film[] current = new Film[1];
+        jdbcTemplate.query(JdbcStreams.forwardOnly(sql, streamFetchSize, args), rs -> {
+            long filmId = rs.getLong("film_id");
+            if (current[0] == null || current[0].getId() != filmId) {
+                if (current[0] != null) {
+                    consumer.accept(current[0]);
                 }
+                current[0] = mapFilm(rs, rs.getRow());
             }
-            finalFilm.setGenres(genres);
-            films.add(finalFilm);
+            long genreId = rs.getLong("genre_id");
+            if (!rs.wasNull()) {
+                current[0].getGenres().add(genreDbStorage.getGenre(genreId));
+            }
+        });
+        if (current[0] != null) {
+            consumer.accept(current[0]);
         }
-        return films;
     }
 
-    @Override
-    public List<Film> getAllPopular() {
-        ArrayList<Film> films = new ArrayList<>();
-
-        SqlRowSet filmRows = jdbcTemplate.queryForRowSet(
-                "          SELECT f.film_id," +
-                        "              f.film_name," +
-                        "              f.description," +
-                        "              f.releaseDate," +
-                        "              f.duration," +
-                        "              f.rate," +
-                        "              r.rating_name," +
-                        "              r.rating_id," +
-                        "              r.rating_name," +
-                        "              GROUP_CONCAT(l.user_id) AS listOfUsersLike, " +
-                        "              COUNT(lk.user_id) AS likes " +
-                        "              FROM film AS f" +
-                        "              LEFT JOIN genre_film AS gf ON f.film_id = gf.film_id" +
-                        "              LEFT JOIN genre AS g ON gf.genre_id = g.genre_id" +
-                        "              LEFT JOIN rating AS r ON f.rating_id = r.rating_id" +
-                        "              LEFT JOIN likes AS l ON f.film_id = l.film_id " +
-                        "              LEFT JOIN likes AS lk ON f.film_id = lk.film_id " +
-                        "              GROUP BY f.film_id " +
-                        "              ORDER BY likes DESC ");
-        while (filmRows.next()) {
-            Film finalFilm = Film.builder()
-                    .id(filmRows.getLong("film_id"))
-                    .name(filmRows.getString("film_name"))
-                    .description(filmRows.getString("description"))
-                    .duration(Long.parseLong(filmRows.getString("duration")))
-                    .releaseDate(LocalDate.parse(filmRows.getString("releaseDate")))
-                    .rate(filmRows.getInt("rate"))
-                    .mpa(makeMpa(filmRows.getLong("rating_id"), filmRows.getString("rating_name")))
-                    .build();
-
-            List<Long> genresId = jdbcTemplate.queryForList(
-                    "SELECT genre_id FROM genre_film WHERE film_id = ?", Long.class, finalFilm.getId());
-
-            List<Genre> genres = new ArrayList<>();
-            if (genresId.size() != 0) {
-                for (Long genreId : genresId) {
-                    genres.add(genreDbStorage.getGenre(genreId));
-                }
+    /*
+     * Метод findFilmsByIds загружает фильмы по списку id и возвращает их в том же порядке.
+     * Как и в UserDbStorageImpl, id соединяются с UNNEST, а не передаются в "= ANY(?)":
+     * H2 разворачивает ANY в список IN при каждом выполнении, а соединение идет по первичному ключу
+     */
+    private List<Film> findFilmsByIds(List<Long> filmIds) {
+        if (filmIds.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<Film> loaded = findFilms(FILM_COLUMNS +
+                        "FROM UNNEST(?) AS ids(film_id) " +
+                        "JOIN film AS f ON f.film_id = ids.film_id",
+                (Object) filmIds.toArray(new Long[0]));
+        Map<Long, Film> filmsById = new HashMap<>();
+        for (Film film : loaded) {
+            filmsById.put(film.getId(), film);
+        }
+        List<Film> films = new ArrayList<>(filmIds.size());
+        for (Long filmId : filmIds) {
+            Film film = filmsById.get(filmId);
+            if (film != null) {
+                films.add(film);
             }
-            finalFilm.setGenres(genres);
-            films.add(finalFilm);
         }
         return films;
     }
+
+    /*
+     * Метод findFilms собирает список фильмов за фиксированное число запросов:
+     * первый запрос возвращает фильмы, второй — id жанров сразу всех найденных фильмов.
+     * Запрос sql должен возвращать колонки фильма, включая f.rating_id
+     */
+    private List<Film> findFilms(String sql, Object... args) {
+        List<Film> films = jdbcTemplate.query(sql, this::mapFilm, args);
+        loadGenres(films);
+        return films;
+    }
+
+    private Film mapFilm(ResultSet rs, int rowNum) throws SQLException {
+        Film film = filmMapper.mapRow(rs, rowNum);
+        long ratingId = rs.getLong("rating_id");
+        film.setMpa(rs.wasNull() ? null : mpaDbStorage.getMpaId(ratingId));
+        film.setGenres(new ArrayList<>());
+        return film;
+    }
+
+    /*
+     * Метод loadGenres одним запросом загружает жанры для всех переданных фильмов;
+     * id соединяются с UNNEST по первичному ключу genre_film (film_id, genre_id)
+     */
+    private void loadGenres(List<Film> films) {
+        if (films.isEmpty()) {
+            return;
+        }
+        Map<Long, Film> filmsById = new HashMap<>();
+        for (Film film : films) {
+            filmsById.put(film.getId(), film);
+        }
+
+        jdbcTemplate.query(
+                "SELECT gf.film_id, " +
+                        "gf.genre_id " +
+                        "FROM UNNEST(?) AS ids(film_id) " +
+                        "JOIN genre_film AS gf ON gf.film_id = ids.film_id " +
+                        "ORDER BY gf.film_id, gf.genre_id",
+                rs -> {
+                    Film film = filmsById.get(rs.getLong("film_id"));
+                    film.getGenres().add(genreDbStorage.getGenre(rs.getLong("genre_id")));
+                },
+                (Object) filmsById.keySet().toArray(new Long[0]));
+    }
+
+    private boolean insertLike(Long filmId, Long userId) {
+        Instant likedAt = Instant.now();
+        int inserted;
+        try {
+            inserted = jdbcTemplate.update(
+                    "MERGE INTO likes AS l " +
+                            "USING (VALUES (CAST(? AS INTEGER), CAST(? AS INTEGER))) AS v (film_id, user_id) " +
+                            "ON l.film_id = v.film_id AND l.user_id = v.user_id " +
+                            "WHEN NOT MATCHED THEN INSERT (film_id, user_id, created_at) " +
+                            "VALUES (v.film_id, v.user_id, ?)",
+                    filmId, userId, Timestamp.from(likedAt));
+        } catch (DuplicateKeyException e) {
+            // параллельный запрос успел поставить тот же like между проверкой MERGE и вставкой
+            inserted = 0;
+        } catch (DataAccessException e) {
+            throw new ObjectNotFoundException(String.format("Фильм %d не найден", filmId));
+        }
+        if (inserted == 0) {
+            log.info("Like фильма {} пользователем {} уже ранее был осуществлен", filmId, userId);
+            return false;
+        }
+        jdbcTemplate.update("UPDATE film SET like_count = like_count + 1 WHERE film_id = ?", filmId);
+        changeLog.record(List.of(filmId));
+        afterCommit(() -> {
+            popularityIndex.addLike(filmId);
+            trendingIndex.like(filmId, likedAt);
+            likesMatrix.like(filmId, userId);
+            similarFilms.likeChanged(filmId);
+            filmCache.invalidate(filmId);
+        });
+        return true;
+    }
+
+    private boolean removeLike(Long filmId, Long userId) {
+        // время удаленного лайка нужно, чтобы снять его с тех окон трендов, в которые он попал
+        List<Timestamp> deleted = jdbcTemplate.queryForList(
+                "SELECT created_at FROM OLD TABLE (DELETE FROM likes WHERE film_id = ? AND user_id = ?)",
+                Timestamp.class, filmId, userId);
+        if (deleted.isEmpty()) {
+            log.info("like фильма {} пользователя {} не найден", filmId, userId);
+            throw new ObjectNotFoundException(String.format("like фильма %d не найден", filmId));
+        }
+        jdbcTemplate.update("UPDATE film SET like_count = like_count - 1 WHERE film_id = ?", filmId);
+        changeLog.record(List.of(filmId));
+        afterCommit(() -> {
+            popularityIndex.deleteLike(filmId);
+            trendingIndex.unlike(filmId, deleted.get(0).toInstant());
+            likesMatrix.unlike(filmId, userId);
+            similarFilms.likeChanged(filmId);
+            filmCache.invalidate(filmId);
+        });
+        log.info("like фильма {} пользователя {} был удален", filmId, userId);
+        return true;
+    }
+
+    /*
+     * Метод afterCommit откладывает обновление индексов в памяти до фиксации транзакции,
+     * чтобы откаченные изменения не попадали в индексы
+     */
+    private void afterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+
+    // откуда запрос популярных фильмов начинает выборку
+    private enum PopularDriver {
+        LIKES, GENRE, MPA, FILTER
+    }
 }
@@ -1,61 +1,77 @@
 package ru.filmogram.dao;
 
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.jdbc.support.rowset.SqlRowSet;
 import org.springframework.stereotype.Repository;
 import ru.filmogram.exceptions.ObjectNotFoundException;
 import ru.filmogram.model.Genre;
 import ru.filmogram.storage.film.GenreStorage;
 
-import java.util.ArrayList;
+import javax.annotation.PostConstruct;
 import java.util.List;
 
+/*
+ * Справочник жанров загружается из таблицы genre один раз и хранится в массиве, где индекс — id жанра.
+ * Экземпляры Genre неизменяемые и общие для всех фильмов.
+ * После изменения строк таблицы genre нужно вызвать refresh
+ */
 @Repository
+@Slf4j
 public class GenreDbStorageImpl implements GenreStorage {
 
     @Autowired
     private final JdbcTemplate jdbcTemplate;
 
+    private volatile Dictionary dictionary = new Dictionary(new Genre[0], List.of());
+
     public GenreDbStorageImpl(JdbcTemplate jdbcTemplate) {
         this.jdbcTemplate = jdbcTemplate;
     }
 
+    @PostConstruct
     @Override
-    public Genre getGenre(Long id) {
-        Genre genre = null;
-
-        SqlRowSet genreRows = jdbcTemplate.queryForRowSet(
+    public void refresh() {
+        List<Genre> genres = jdbcTemplate.query(
                 "SELECT genre_id, " +
                         "genre_name " +
                         "FROM genre " +
-                        "WHERE genre_id = ?", id);
-        if (genreRows.next()) {
-            genre = Genre.builder()
-                    .id(genreRows.getLong("genre_id"))
-                    .name(genreRows.getString("genre_name"))
-                    .build();
-            return genre;
-        } else {
-            throw new ObjectNotFoundException(String.format("Жанр %d не найден", id));
+                        "ORDER BY genre_id",
+                (rs, rowNum) -> Genre.builder()
+                        .id(rs.getLong("genre_id"))
+                        .name(rs.getString("genre_name"))
+                        .build());
+        int size = genres.isEmpty() ? 0 : genres.get(genres.size() - 1).getId().intValue() + 1;
+        Genre[] genresById = new Genre[size];
+        for (Genre genre : genres) {
+            genresById[genre.getId().intValue()] = genre;
+        }
+        dictionary = new Dictionary(genresById, List.copyOf(genres));
+        log.info("Справочник жанров загружен: {}", genres.size());
+    }
+
+    @Override
+    public Genre getGenre(Long id) {
+        Genre[] genresById = dictionary.genresById;
+        if (id != null && id >= 0 && id < genresById.length && genresById[id.intValue()] != null) {
+            return genresById[id.intValue()];
         }
+        throw new ObjectNotFoundException(String.format("Жанр %d не найден", id));
     }
 
     @Override
     public List<Genre> findAllGenres() {
-        ArrayList<Genre> genres = new ArrayList<>();
+        return dictionary.genres;
+    }
 
-        SqlRowSet genreRows = jdbcTemplate.queryForRowSet(
-                "SELECT genre_id, " +
-                        "genre_name " +
-                        "FROM genre ");
-        while (genreRows.next()) {
-            Genre genre = Genre.builder()
-                    .id(genreRows.getLong("genre_id"))
-                    .name(genreRows.getString("genre_name"))
-                    .build();
-            genres.add(genre);
+    // массив и список публикуются одной ссылкой, чтобы читатель не увидел их из разных загрузок
+    private static final class Dictionary {
+        private final Genre[] genresById;
+        private final List<Genre> genres;
+
+        private Dictionary(Genre[] genresById, List<Genre> genres) {
+            this.genresById = genresById;
+            this.genres = genres;
         }
-        return genres;
     }
 }
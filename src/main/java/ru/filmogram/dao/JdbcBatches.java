@@ -0,0 +1,45 @@
+package ru.filmogram.dao;
+
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Класс JdbcBatches выполняет пакетную вставку одним executeBatch и возвращает сгенерированные ключи
+ * в порядке строк пакета: batchUpdate у JdbcTemplate ключи не возвращает
+ */
+final class JdbcBatches {
+
+    private JdbcBatches() {
+    }
+
+    static List<Long> insertReturningKeys(JdbcTemplate jdbcTemplate, String sql, String keyColumn,
+                                          BatchPreparedStatementSetter setter) {
+        int size = setter.getBatchSize();
+        List<Long> keys = jdbcTemplate.execute((ConnectionCallback<List<Long>>) connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(sql, new String[]{keyColumn})) {
+                for (int i = 0; i < size; i++) {
+                    setter.setValues(statement, i);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+                List<Long> generated = new ArrayList<>(size);
+                try (ResultSet rs = statement.getGeneratedKeys()) {
+                    while (rs.next()) {
+                        generated.add(rs.getLong(1));
+                    }
+                }
+                return generated;
+            }
+        });
+        if (keys == null || keys.size() != size) {
+            throw new IllegalStateException("Драйвер вернул не все сгенерированные ключи пакета");
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,28 @@
+package ru.filmogram.dao;
+
+import org.springframework.jdbc.core.PreparedStatementCreator;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+/*
+ * Класс JdbcStreams создает запросы для построчного чтения больших выборок:
+ * курсор только вперед и размер выборки, чтобы драйвер не держал в памяти весь результат
+ */
+final class JdbcStreams {
+
+    private JdbcStreams() {
+    }
+
+    static PreparedStatementCreator forwardOnly(String sql, int fetchSize, Object... args) {
+        return connection -> {
+            PreparedStatement statement = connection.prepareStatement(
+                    sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            statement.setFetchSize(fetchSize);
+            for (int i = 0; i < args.length; i++) {
+                statement.setObject(i + 1, args[i]);
+            }
+            return statement;
+        };
+    }
+}
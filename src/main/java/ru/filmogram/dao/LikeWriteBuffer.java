@@ -0,0 +1,375 @@
+package ru.filmogram.dao;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.filmogram.exceptions.ObjectNotFoundException;
+import ru.filmogram.storage.film.FilmCache;
+import ru.filmogram.storage.film.FilmPopularityIndex;
+import ru.filmogram.storage.film.LikesMatrix;
+import ru.filmogram.storage.film.SimilarFilmsIndex;
+import ru.filmogram.storage.film.TrendingFilmsIndex;
+
+import javax.annotation.PreDestroy;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * Класс LikeWriteBuffer — отложенная запись лайков (write-behind), включается свойством
+ * filmorate.likes.write-behind.enabled. События like/unlike складываются в память, повторные события одной пары
+ * (фильм, пользователь) схлопываются в последнее, и раз в flush-interval-ms или по накоплении flush-size пар
+ * сбрасываются в базу пакетными запросами в одной транзакции.
+ * Пока событие не записано, оно может быть потеряно при аварийной остановке, поэтому flush-interval-ms и capacity
+ * задают окно возможной потери: при capacity несброшенных пар запись идет синхронно в потоке запроса
+ */
+@Component
+@Slf4j
+public class LikeWriteBuffer {
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final FilmPopularityIndex popularityIndex;
+    private final FilmCache filmCache;
+    private final LikesMatrix likesMatrix;
+    private final SimilarFilmsIndex similarFilms;
+    private final TrendingFilmsIndex trendingIndex;
+    private final FilmChangeLog changeLog;
+    private final boolean enabled;
+    private final int flushSize;
+    private final int capacity;
+
+    // читатели добавляют события под read-lock, сброс подменяет карту под write-lock
+    private final ReentrantReadWriteLock swapLock = new ReentrantReadWriteLock();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private volatile Map<LikeKey, Boolean> pending = new ConcurrentHashMap<>();
+    // события, которые сейчас записываются: видны читателям, пока транзакция сброса не завершилась
+    private volatile Map<LikeKey, Boolean> flushing = Map.of();
+
+    // сброс по размеру идет в отдельном потоке, лишние запросы на сброс отбрасываются, пока один ждет в очереди
+    private final ThreadPoolExecutor flushExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(1), runnable -> {
+        Thread thread = new Thread(runnable, "like-write-behind");
+        thread.setDaemon(true);
+        return thread;
+    }, new ThreadPoolExecutor.DiscardPolicy());
+
+    private final Timer flushTimer;
+    private final Counter flushedEvents;
+
+    public LikeWriteBuffer(JdbcTemplate jdbcTemplate,
+                           PlatformTransactionManager transactionManager,
+                           FilmPopularityIndex popularityIndex,
+                           FilmCache filmCache,
+                           LikesMatrix likesMatrix,
+                           SimilarFilmsIndex similarFilms,
+                           TrendingFilmsIndex trendingIndex,
+                           FilmChangeLog changeLog,
+                           MeterRegistry meterRegistry,
+                           @Value("${filmorate.likes.write-behind.enabled}") boolean enabled,
+                           @Value("${filmorate.likes.write-behind.flush-size}") int flushSize,
+                           @Value("${filmorate.likes.write-behind.capacity}") int capacity) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.popularityIndex = popularityIndex;
+        this.filmCache = filmCache;
+        this.likesMatrix = likesMatrix;
+        this.similarFilms = similarFilms;
+        this.trendingIndex = trendingIndex;
+        this.changeLog = changeLog;
+        this.enabled = enabled;
+        this.flushSize = flushSize;
+        this.capacity = capacity;
+        Gauge.builder("filmorate.likes.pending", this, LikeWriteBuffer::size)
+                .description("Несброшенные события like/unlike")
+                .register(meterRegistry);
+        this.flushTimer = Timer.builder("filmorate.likes.flush")
+                .description("Время пакетной записи лайков")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.flushedEvents = Counter.builder("filmorate.likes.flushed")
+                .description("Записанные события like/unlike")
+                .register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /*
+     * Метод like ставит like в очередь и возвращает false, если like этого пользователя уже виден.
+     * Если в очереди пары еще нет, одним запросом проверяются пользователь и like в базе,
+     * чтобы ответ совпадал с синхронной записью
+     */
+    public boolean like(Long filmId, Long userId) {
+        if (popularityIndex.getLikes(filmId) == null) {
+            throw new ObjectNotFoundException(String.format("Фильм %d не найден", filmId));
+        }
+        LikeKey key = new LikeKey(filmId, userId);
+        if (pendingState(key) == null && storedLike(key)) {
+            log.info("Like фильма {} пользователем {} уже ранее был осуществлен", filmId, userId);
+            return false;
+        }
+        Boolean previous = put(key, true);
+        if (Boolean.TRUE.equals(previous != null ? previous : flushing.get(key))) {
+            log.info("Like фильма {} пользователем {} уже ранее был осуществлен", filmId, userId);
+            return false;
+        }
+        return true;
+    }
+
+    public boolean unlike(Long filmId, Long userId) {
+        LikeKey key = new LikeKey(filmId, userId);
+        Boolean state = pendingState(key);
+        if (Boolean.FALSE.equals(state) || state == null && !existsInDb(key)) {
+            log.info("like фильма {} пользователя {} не найден", filmId, userId);
+            throw new ObjectNotFoundException(String.format("like фильма %d не найден", filmId));
+        }
+        put(key, false);
+        return true;
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    /*
+     * Метод flush записывает накопленные события: лайки через MERGE, снятия лайков через DELETE,
+     * like_count меняется на число реально измененных строк. Рейтинг, матрица лайков, отметки
+     * для похожих фильмов и кэш обновляются после фиксации
+     */
+    @Scheduled(fixedDelayString = "${filmorate.likes.write-behind.flush-interval-ms}")
+    public void flush() {
+        flushLock.lock();
+        try {
+            Map<LikeKey, Boolean> batch;
+            swapLock.writeLock().lock();
+            try {
+                batch = pending;
+                if (batch.isEmpty()) {
+                    return;
+                }
+                flushing = batch;
+                pending = new ConcurrentHashMap<>();
+            } finally {
+                swapLock.writeLock().unlock();
+            }
+            Written written;
+            try {
+                written = Objects.requireNonNull(
+                        flushTimer.record(() -> transactionTemplate.execute(status -> write(batch))));
+            } catch (RuntimeException e) {
+                // пакет уже вынут из очереди: при любой ошибке до фиксации он возвращается, иначе события потеряются
+                log.error("Не удалось записать {} событий like/unlike, они вернутся в очередь", batch.size(), e);
+                requeue(batch);
+                return;
+            } finally {
+                flushing = Map.of();
+            }
+            flushedEvents.increment(batch.size());
+            // после фиксации пакет в очередь не возвращается, ошибка индекса в памяти не должна повторить запись
+            try {
+                apply(written);
+            } catch (RuntimeException e) {
+                log.error("Не удалось обновить индексы после записи {} событий like/unlike", batch.size(), e);
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void apply(Written written) {
+        written.deltas.forEach((filmId, delta) -> {
+            popularityIndex.changeLikes(filmId, delta);
+            filmCache.invalidate(filmId);
+        });
+        written.liked.forEach(key -> {
+            trendingIndex.like(key.filmId, written.likedAt);
+            likesMatrix.like(key.filmId, key.userId);
+            similarFilms.likeChanged(key.filmId);
+        });
+        written.unlikedAt.forEach((key, likedAt) -> trendingIndex.unlike(key.filmId, likedAt));
+        written.unliked.forEach(key -> {
+            likesMatrix.unlike(key.filmId, key.userId);
+            similarFilms.likeChanged(key.filmId);
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flushExecutor.shutdownNow();
+        flush();
+    }
+
+    private Boolean put(LikeKey key, boolean liked) {
+        Boolean previous;
+        swapLock.readLock().lock();
+        try {
+            previous = pending.put(key, liked);
+        } finally {
+            swapLock.readLock().unlock();
+        }
+        int size = pending.size();
+        if (size >= capacity) {
+            flush();
+        } else if (size >= flushSize) {
+            flushExecutor.execute(this::flush);
+        }
+        return previous;
+    }
+
+    private Boolean pendingState(LikeKey key) {
+        Boolean state = pending.get(key);
+        return state != null ? state : flushing.get(key);
+    }
+
+    // бросает ObjectNotFoundException, если пользователя нет, и возвращает, есть ли like в базе
+    private boolean storedLike(LikeKey key) {
+        Map<String, Object> row = jdbcTemplate.queryForMap(
+                "SELECT (SELECT COUNT(*) FROM users WHERE user_id = ?) AS users, " +
+                        "(SELECT COUNT(*) FROM likes WHERE film_id = ? AND user_id = ?) AS likes",
+                key.userId, key.filmId, key.userId);
+        if (((Number) row.get("users")).intValue() == 0) {
+            log.info("Пользователя {} не существует", key.userId);
+            throw new ObjectNotFoundException(String.format("id пользователя %d не существует", key.userId));
+        }
+        return ((Number) row.get("likes")).intValue() > 0;
+    }
+
+    private boolean existsInDb(LikeKey key) {
+        Integer count = jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM likes WHERE film_id = ? AND user_id = ?",
+                Integer.class, key.filmId, key.userId);
+        return count != null && count > 0;
+    }
+
+    private Written write(Map<LikeKey, Boolean> batch) {
+        List<LikeKey> likes = new ArrayList<>();
+        List<LikeKey> unlikes = new ArrayList<>();
+        batch.forEach((key, liked) -> (liked ? likes : unlikes).add(key));
+
+        Written written = new Written();
+        // источник MERGE пуст для фильма или пользователя, удаленных после постановки в очередь,
+        // поэтому такие события отбрасываются
+        int[] inserted = jdbcTemplate.batchUpdate(
+                "MERGE INTO likes AS l " +
+                        "USING (SELECT f.film_id, u.user_id FROM film AS f, users AS u " +
+                        "WHERE f.film_id = ? AND u.user_id = ?) AS v " +
+                        "ON l.film_id = v.film_id AND l.user_id = v.user_id " +
+                        "WHEN NOT MATCHED THEN INSERT (film_id, user_id, created_at) " +
+                        "VALUES (v.film_id, v.user_id, ?)",
+                toArgs(likes, Timestamp.from(written.likedAt)));
+        // снятия лайков редки, поэтому удаляются по одному: время удаленного лайка нужно для окон трендов
+        int[] deleted = new int[unlikes.size()];
+        for (int i = 0; i < unlikes.size(); i++) {
+            LikeKey key = unlikes.get(i);
+            List<Timestamp> likedAt = jdbcTemplate.queryForList(
+                    "SELECT created_at FROM OLD TABLE (DELETE FROM likes WHERE film_id = ? AND user_id = ?)",
+                    Timestamp.class, key.filmId, key.userId);
+            deleted[i] = likedAt.size();
+            if (!likedAt.isEmpty()) {
+                written.unlikedAt.put(key, likedAt.get(0).toInstant());
+            }
+        }
+
+        addDeltas(written.deltas, written.liked, likes, inserted, 1);
+        addDeltas(written.deltas, written.unliked, unlikes, deleted, -1);
+        written.deltas.values().removeIf(delta -> delta == 0);
+
+        List<Object[]> counts = new ArrayList<>(written.deltas.size());
+        written.deltas.forEach((filmId, delta) -> counts.add(new Object[]{delta, filmId}));
+        jdbcTemplate.batchUpdate("UPDATE film SET like_count = like_count + ? WHERE film_id = ?", counts);
+
+        // like и снятие like одного фильма в пакете не меняют счетчик, но набор лайков фильма изменился
+        Set<Long> changed = new LinkedHashSet<>();
+        written.liked.forEach(key -> changed.add(key.filmId));
+        written.unliked.forEach(key -> changed.add(key.filmId));
+        changeLog.record(changed);
+        return written;
+    }
+
+    private void requeue(Map<LikeKey, Boolean> batch) {
+        swapLock.readLock().lock();
+        try {
+            // события, пришедшие во время сброса, новее и остаются как есть
+            batch.forEach(pending::putIfAbsent);
+        } finally {
+            swapLock.readLock().unlock();
+        }
+    }
+
+    private static List<Object[]> toArgs(List<LikeKey> keys, Timestamp likedAt) {
+        List<Object[]> args = new ArrayList<>(keys.size());
+        for (LikeKey key : keys) {
+            args.add(new Object[]{key.filmId, key.userId, likedAt});
+        }
+        return args;
+    }
+
+    private static void addDeltas(Map<Long, Integer> deltas, List<LikeKey> applied, List<LikeKey> keys,
+                                  int[] changed, int sign) {
+        for (int i = 0; i < keys.size(); i++) {
+            if (changed[i] > 0) {
+                deltas.merge(keys.get(i).filmId, sign, Integer::sum);
+                applied.add(keys.get(i));
+            }
+        }
+    }
+
+    // результат сброса: изменение like_count по фильмам и реально записанные лайки и снятия лайков
+    private static final class Written {
+        private final Map<Long, Integer> deltas = new HashMap<>();
+        private final List<LikeKey> liked = new ArrayList<>();
+        private final List<LikeKey> unliked = new ArrayList<>();
+        // время записи лайков пакета и время, когда были поставлены снятые лайки
+        private final Instant likedAt = Instant.now();
+        private final Map<LikeKey, Instant> unlikedAt = new HashMap<>();
+    }
+
+    private static final class LikeKey {
+        private final long filmId;
+        private final long userId;
+
+        private LikeKey(long filmId, long userId) {
+            this.filmId = filmId;
+            this.userId = userId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof LikeKey)) {
+                return false;
+            }
+            LikeKey other = (LikeKey) o;
+            return filmId == other.filmId && userId == other.userId;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(filmId) * 31 + Long.hashCode(userId);
+        }
+    }
+}
@@ -3,15 +3,21 @@ package ru.filmogram.dao;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.jdbc.support.rowset.SqlRowSet;
 import org.springframework.stereotype.Repository;
 import ru.filmogram.exceptions.ObjectNotFoundException;
 import ru.filmogram.model.Mpa;
 import ru.filmogram.storage.film.MpaStorage;
 
-import java.util.ArrayList;
+import javax.annotation.PostConstruct;
 import java.util.List;
 
+import static ru.filmogram.util.Util.makeMpa;
+
+/*
+ * Справочник рейтингов загружается из таблицы rating один раз и хранится в массиве, где индекс — id рейтинга.
+ * Экземпляры Mpa неизменяемые и общие для всех фильмов.
+ * После изменения строк таблицы rating нужно вызвать refresh
+ */
 @Repository
 @Slf4j
 public class MpaDbStorageImpl implements MpaStorage {
@@ -19,46 +25,52 @@ public class MpaDbStorageImpl implements MpaStorage {
     @Autowired
     private final JdbcTemplate jdbcTemplate;
 
+    private volatile Dictionary dictionary = new Dictionary(new Mpa[0], List.of());
+
     public MpaDbStorageImpl(JdbcTemplate jdbcTemplate) {
         this.jdbcTemplate = jdbcTemplate;
     }
 
+    @PostConstruct
     @Override
-    public Mpa getMpaId(Long id) {
-
-        Mpa mpa = null;
-
-        SqlRowSet mpaRows = jdbcTemplate.queryForRowSet(
+    public void refresh() {
+        List<Mpa> mpas = jdbcTemplate.query(
                 "SELECT rating_id, " +
                         "rating_name " +
                         "FROM rating " +
-                        "WHERE rating_id = ?", id);
-        if (mpaRows.next()) {
-            mpa = Mpa.builder()
-                    .id(mpaRows.getLong("rating_id"))
-                    .name(mpaRows.getString("rating_name"))
-                    .build();
-        } else {
-            throw new ObjectNotFoundException(String.format("Mpa {} не найден", id));
+                        "ORDER BY rating_id",
+                (rs, rowNum) -> makeMpa(rs.getLong("rating_id"), rs.getString("rating_name")));
+        int size = mpas.isEmpty() ? 0 : mpas.get(mpas.size() - 1).getId().intValue() + 1;
+        Mpa[] mpasById = new Mpa[size];
+        for (Mpa mpa : mpas) {
+            mpasById[mpa.getId().intValue()] = mpa;
+        }
+        dictionary = new Dictionary(mpasById, List.copyOf(mpas));
+        log.info("Справочник рейтингов загружен: {}", mpas.size());
+    }
+
+    @Override
+    public Mpa getMpaId(Long id) {
+        Mpa[] mpasById = dictionary.mpasById;
+        if (id != null && id >= 0 && id < mpasById.length && mpasById[id.intValue()] != null) {
+            return mpasById[id.intValue()];
         }
-        return mpa;
+        throw new ObjectNotFoundException(String.format("Mpa %d не найден", id));
     }
 
     @Override
     public List<Mpa> findAllMpa() {
-        ArrayList<Mpa> mpas = new ArrayList<>();
+        return dictionary.mpas;
+    }
 
-        SqlRowSet mpaRows = jdbcTemplate.queryForRowSet(
-                "SELECT rating_id, " +
-                        "rating_name " +
-                        "FROM rating ");
-        while (mpaRows.next()) {
-            Mpa mpa = Mpa.builder()
-                    .id(mpaRows.getLong("rating_id"))
-                    .name(mpaRows.getString("rating_name"))
-                    .build();
-            mpas.add(mpa);
+    // массив и список публикуются одной ссылкой, чтобы читатель не увидел их из разных загрузок
+    private static final class Dictionary {
+        private final Mpa[] mpasById;
+        private final List<Mpa> mpas;
+
+        private Dictionary(Mpa[] mpasById, List<Mpa> mpas) {
+            this.mpasById = mpasById;
+            this.mpas = mpas;
         }
-        return mpas;
     }
 }
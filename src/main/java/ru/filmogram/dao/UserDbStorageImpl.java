@@ -2,54 +2,147 @@ package ru.filmogram.dao;
 
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.simple.SimpleJdbcInsert;
-import org.springframework.jdbc.support.rowset.SqlRowSet;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import ru.filmogram.exceptions.ObjectNotFoundException;
 import ru.filmogram.mapper.UserMapper;
 import ru.filmogram.model.User;
+import ru.filmogram.storage.user.FriendCache;
+import ru.filmogram.storage.user.FriendGraph;
 import ru.filmogram.storage.user.UserStorage;
 
-import java.time.LocalDate;
+import javax.annotation.PostConstruct;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.util.*;
+import java.util.function.Consumer;
 
 @Repository
 @Primary
 @Slf4j
 public class UserDbStorageImpl implements UserStorage {
 
+    private static final String USER_COLUMNS = "SELECT u.user_id, " +
+            "u.user_name, " +
+            "u.email, " +
+            "u.login, " +
+            "u.birthday ";
+
+    // друзья пользователя — его исходящие заявки и подтвержденные входящие; каждая ветка идет по своему индексу
+    private static final String FRIEND_IDS = "SELECT friend_two_id AS friend_id FROM friends WHERE friend_one_id = ? " +
+            "UNION ALL " +
+            "SELECT friend_one_id FROM friends WHERE friend_two_id = ? AND status = true ";
+
+    private final UserMapper userMapper = new UserMapper();
+
     @Autowired
     private final JdbcTemplate jdbcTemplate;
 
-    public UserDbStorageImpl(JdbcTemplate jdbcTemplate) {
+    @Autowired
+    private final FriendCache friendCache;
+
+    @Autowired
+    private final FriendGraph friendGraph;
+
+    // ограничение на размер списков, которые отдаются без пагинации
+    private final int maxListSize;
+
+    private final int streamFetchSize;
+
+    public UserDbStorageImpl(JdbcTemplate jdbcTemplate,
+                             FriendCache friendCache,
+                             FriendGraph friendGraph,
+                             @Value("${filmorate.list.max-size}") int maxListSize,
+                             @Value("${filmorate.stream.fetch-size}") int streamFetchSize) {
         this.jdbcTemplate = jdbcTemplate;
+        this.friendCache = friendCache;
+        this.friendGraph = friendGraph;
+        this.maxListSize = maxListSize;
+        this.streamFetchSize = streamFetchSize;
+    }
+
+    /*
+     * Метод rebuildFriendGraph строит граф дружбы в памяти по таблице friends.
+     * При старте граф строится всегда, дальше — раз в filmorate.friend-graph.rebuild-delay-ms,
+     * если с прошлого перестроения дружба менялась
+     */
+    @PostConstruct
+    public void rebuildFriendGraph() {
+        long stamp = friendGraph.stamp();
+        FriendGraph.Edges edges = new FriendGraph.Edges();
+        jdbcTemplate.query(
+                JdbcStreams.forwardOnly("SELECT friend_one_id, friend_two_id, status FROM friends", streamFetchSize),
+                rs -> {
+                    long userId = rs.getLong("friend_one_id");
+                    long friendId = rs.getLong("friend_two_id");
+                    edges.add(userId, friendId);
+                    // подтвержденная заявка делает отправителя другом и для получателя
+                    if (rs.getBoolean("status")) {
+                        edges.add(friendId, userId);
+                    }
+                });
+        friendGraph.replace(edges, stamp);
+        log.info("Граф дружбы построен по {} связям", edges.size());
+    }
+
+    @Scheduled(fixedDelayString = "${filmorate.friend-graph.rebuild-delay-ms}",
+            initialDelayString = "${filmorate.friend-graph.rebuild-delay-ms}")
+    public void refreshFriendGraph() {
+        if (friendGraph.changedUsers() > 0) {
+            rebuildFriendGraph();
+        }
     }
 
     @Transactional
     @Override
     public List<User> findAllUser() {
-        ArrayList<User> users = new ArrayList<>();
-
-        SqlRowSet userRows = jdbcTemplate.queryForRowSet("SELECT u.user_id,\n" +
-                "u.user_name," +
-                "u.email," +
-                "u.login," +
+        return jdbcTemplate.query("SELECT u.user_id, " +
+                "u.user_name, " +
+                "u.email, " +
+                "u.login, " +
                 "u.birthday " +
-                "FROM users AS u");
-        while (userRows.next()) {
-            User user = User.builder()
-                    .id(Long.valueOf(Objects.requireNonNull(userRows.getString("user_id"))))
-                    .name(userRows.getString("user_name"))
-                    .email(userRows.getString("email"))
-                    .login(userRows.getString("login"))
-                    .birthday(LocalDate.parse(Objects.requireNonNull(userRows.getString("birthday"))))
-                    .build();
-            users.add(user);
-        }
-        return users;
+                "FROM users AS u " +
+                "ORDER BY u.user_id " +
+                "LIMIT ?", new UserMapper(), maxListSize);
+    }
+
+    @Override
+    public void streamAllUser(Consumer<User> consumer) {
+        UserMapper userMapper = new UserMapper();
+        jdbcTemplate.query(
+                JdbcStreams.forwardOnly("SELECT user_id, " +
+                        "user_name, " +
+                        "email, " +
+                        "login, " +
+                        "birthday " +
+                        "FROM users " +
+                        "ORDER BY user_id", streamFetchSize),
+                rs -> {
+                    consumer.accept(userMapper.mapRow(rs, rs.getRow()));
+                });
+    }
+
+    @Override
+    public List<User> findUsersAfter(Long afterId, int limit) {
+        return jdbcTemplate.query(
+                "SELECT user_id, " +
+                        "user_name, " +
+                        "email, " +
+                        "login, " +
+                        "birthday " +
+                        "FROM users " +
+                        "WHERE user_id > ? " +
+                        "ORDER BY user_id " +
+                        "LIMIT ?",
+                new UserMapper(), afterId, limit);
     }
 
     @Override
@@ -80,6 +173,37 @@ public class UserDbStorageImpl implements UserStorage {
         return finalUser;
     }
 
+    /*
+     * Метод createUsers вставляет пользователей одним пакетом в одной транзакции
+     * и возвращает их с сгенерированными id без повторного чтения
+     */
+    @Override
+    @Transactional
+    public List<User> createUsers(List<User> users) {
+        List<Long> userIds = JdbcBatches.insertReturningKeys(jdbcTemplate,
+                "INSERT INTO users (user_name, email, login, birthday) VALUES (?, ?, ?, ?)",
+                "user_id", new BatchPreparedStatementSetter() {
+                    @Override
+                    public void setValues(PreparedStatement statement, int i) throws SQLException {
+                        User user = users.get(i);
+                        statement.setString(1, user.getName());
+                        statement.setString(2, user.getEmail());
+                        statement.setString(3, user.getLogin());
+                        statement.setObject(4, user.getBirthday());
+                    }
+
+                    @Override
+                    public int getBatchSize() {
+                        return users.size();
+                    }
+                });
+        for (int i = 0; i < users.size(); i++) {
+            users.get(i).setId(userIds.get(i));
+        }
+        log.info("Добавлено пользователей: {}", users.size());
+        return users;
+    }
+
     @Override
     public User updateUser(User user) throws ObjectNotFoundException {
 
@@ -172,6 +296,10 @@ public class UserDbStorageImpl implements UserStorage {
                                 "AND " +
                                 "friend_two_id = ?",
                         true, friendId, userId);
+                afterCommit(() -> {
+                    friendCache.addFriend(userId, friendId);
+                    friendGraph.addFriend(userId, friendId);
+                });
                 return true;
             }
         } else { //если везде все чисто и никаких записей нет, мы просто создаем запись (статут по дефолту встанет false)
@@ -180,6 +308,10 @@ public class UserDbStorageImpl implements UserStorage {
                             "friend_one_id, " +
                             "friend_two_id) " +
                             "VALUES (?, ?)", userId, friendId);
+            afterCommit(() -> {
+                friendCache.addFriend(userId, friendId);
+                friendGraph.addFriend(userId, friendId);
+            });
             return true;
         }
     }
@@ -190,88 +322,149 @@ public class UserDbStorageImpl implements UserStorage {
                 userId, friendId);
         jdbcTemplate.update("delete from friends where friend_two_id = ? AND friend_one_id = ? AND status = true",
                 userId, friendId);
+        // удаление может убрать связь из списков обоих пользователей
+        long[] userFriends = queryFriendIds(userId);
+        long[] friendFriends = queryFriendIds(friendId);
+        afterCommit(() -> {
+            friendCache.invalidate(userId);
+            friendCache.invalidate(friendId);
+            friendGraph.setFriends(userId, userFriends);
+            friendGraph.setFriends(friendId, friendFriends);
+        });
     }
 
+    /*
+     * Метод getFriends отдает друзей одним запросом UNION ALL, а при включенном FriendCache —
+     * по закэшированным id одним запросом профилей
+     */
     @Override
     public List<User> getFriends(Long id) {
+        if (friendCache.isEnabled()) {
+            return findUsersByIds(friendCache.get(id, this::loadFriendIds));
+        }
+        List<User> friends = jdbcTemplate.query(USER_COLUMNS +
+                        "FROM users AS u " +
+                        "JOIN (" + FRIEND_IDS + ") AS f ON u.user_id = f.friend_id " +
+                        "ORDER BY u.user_id",
+                userMapper, id, id);
+        if (friends.isEmpty()) {
+            checkUserExists(id);
+        }
+        return friends;
+    }
 
-        ArrayList<User> users = new ArrayList<>();
-
-        List<Integer> userId = jdbcTemplate.queryForList(
-                "SELECT user_id FROM users WHERE user_id = ? ",
-                Integer.class, id);
-
-        if (userId.get(0) != null) {
-            SqlRowSet rs = jdbcTemplate.queryForRowSet(
-                    "SELECT u.user_id, " +
-                            "u.user_name, " +
-                            "u.email, " +
-                            "u.login, " +
-                            "u.birthday " +
-                            "FROM users AS u " +
-                            "JOIN friends AS f ON u.user_id = f.friend_two_id " +
-                            "WHERE f.friend_one_id = ?", userId.get(0));
-            while (rs.next()) {
-                User user = User.builder()
-                        .id(rs.getLong("user_id"))
-                        .name(rs.getString("user_name"))
-                        .email(rs.getString("email"))
-                        .login(rs.getString("login"))
-                        .birthday(LocalDate.parse(rs.getString("birthday")))
-                        .build();
-                users.add(user);
+    /*
+     * Метод getFriendSuggestions предлагает пользователей, не являющихся друзьями, по числу общих друзей.
+     * Подсчет идет по графу дружбы в памяти, из базы загружаются только профили предложенных пользователей
+     */
+    @Override
+    public List<User> getFriendSuggestions(Long id, int limit) {
+        checkUserExists(id);
+        long[] suggestedIds = friendGraph.suggest(id, limit);
+        Map<Long, User> usersById = new HashMap<>();
+        for (User user : findUsersByIds(suggestedIds)) {
+            usersById.put(user.getId(), user);
+        }
+        List<User> suggestions = new ArrayList<>(suggestedIds.length);
+        for (long suggestedId : suggestedIds) {
+            User user = usersById.get(suggestedId);
+            if (user != null) {
+                suggestions.add(user);
             }
+        }
+        return suggestions;
+    }
 
-            SqlRowSet rs1 = jdbcTemplate.queryForRowSet(
-                    "SELECT u.user_id, " +
-                            "u.user_name, " +
-                            "u.email, " +
-                            "u.login, " +
-                            "u.birthday " +
-                            "FROM users AS u " +
-                            "JOIN friends AS f ON u.user_id = f.friend_one_id " +
-                            "WHERE f.friend_two_id = ? AND status = true ", userId.get(0));
-            while (rs1.next()) {
-                User user1 = User.builder()
-                        .id(rs1.getLong("user_id"))
-                        .name(rs1.getString("user_name"))
-                        .email(rs1.getString("email"))
-                        .login(rs1.getString("login"))
-                        .birthday(LocalDate.parse(rs1.getString("birthday")))
-                        .build();
-                users.add(user1);
-            }
-        } else if (userId.get(0) < 0) {
-            log.info("id {} пользователя не может быть отрицательным", id);
-        } else {
-            log.info("Пользователя {} не существует", id);
+    private long[] loadFriendIds(Long id) {
+        long[] ids = queryFriendIds(id);
+        if (ids.length == 0) {
+            checkUserExists(id);
         }
-        return users;
+        return ids;
     }
 
-    @Override
-    public List<User> getCommonFriends(Long id, Long otherId) {
-        List<User> friendOne = new ArrayList<>();
-        List<User> friendTwo = new ArrayList<>();
-        List<User> commonFriends = new ArrayList<>();
+    private long[] queryFriendIds(Long id) {
+        List<Long> friendIds = jdbcTemplate.queryForList(FRIEND_IDS + "ORDER BY friend_id", Long.class, id, id);
+        long[] ids = new long[friendIds.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = friendIds.get(i);
+        }
+        return ids;
+    }
 
-        if (id > 0) {
-            friendOne = getFriends(id);
+    // H2 разворачивает "= ANY(?)" в список IN при каждом выполнении, что на тысячах id стоит сотни миллисекунд;
+    // соединение с UNNEST идет по первичному ключу для каждого id
+    private List<User> findUsersByIds(long[] ids) {
+        if (ids.length == 0) {
+            return new ArrayList<>();
         }
+        Long[] userIds = new Long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            userIds[i] = ids[i];
+        }
+        return jdbcTemplate.query(USER_COLUMNS +
+                        "FROM UNNEST(?) AS ids(user_id) " +
+                        "JOIN users AS u ON u.user_id = ids.user_id " +
+                        "ORDER BY u.user_id",
+                userMapper, (Object) userIds);
+    }
 
-        if (otherId > 0) {
-            friendTwo = getFriends(otherId);
+    private void checkUserExists(Long id) {
+        Integer count = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM users WHERE user_id = ?", Integer.class, id);
+        if (count == null || count == 0) {
+            log.info("Пользователя {} не существует", id);
+            throw new ObjectNotFoundException(String.format("id пользователя %d не существует", id));
         }
+    }
 
-        if (id <= 0 || otherId <= 0) {
-            log.info("Пользователь не существует");
+    /*
+     * Метод getCommonFriends читает отсортированные id друзей обоих пользователей по индексам
+     * (или берет их из FriendCache), пересекает их слиянием за O(n + m) и загружает только общих друзей.
+     * Соединение двух выборок UNION ALL в самом запросе H2 выполняет вложенным циклом без индекса
+     */
+    @Override
+    public List<User> getCommonFriends(Long id, Long otherId) {
+        if (friendCache.isEnabled()) {
+            return findUsersByIds(intersect(
+                    friendCache.get(id, this::loadFriendIds),
+                    friendCache.get(otherId, this::loadFriendIds)));
         }
+        return findUsersByIds(intersect(loadFriendIds(id), loadFriendIds(otherId)));
+    }
 
-        for (User user : friendTwo) {
-            if (friendOne.contains(user)) {
-                commonFriends.add(user);
+    private static long[] intersect(long[] friendIds, long[] otherFriendIds) {
+        long[] common = new long[Math.min(friendIds.length, otherFriendIds.length)];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < friendIds.length && j < otherFriendIds.length) {
+            if (friendIds[i] < otherFriendIds[j]) {
+                i++;
+            } else if (friendIds[i] > otherFriendIds[j]) {
+                j++;
+            } else {
+                common[size++] = friendIds[i];
+                i++;
+                j++;
             }
         }
-        return commonFriends;
+        return Arrays.copyOf(common, size);
+    }
+
+    /*
+     * Метод afterCommit откладывает обновление кэша друзей и графа дружбы до фиксации транзакции,
+     * чтобы откаченная дружба не попадала в рекомендации
+     */
+    private void afterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
     }
 }
@@ -18,7 +18,7 @@ public class UserMapper implements RowMapper<User> {
                 .name(rs.getString("user_name"))
                 .email(rs.getString("email"))
                 .login(rs.getString("login"))
-                .birthday(LocalDate.parse(rs.getString("birthday")))
+                .birthday(rs.getObject("birthday", LocalDate.class))
                 .build();
     }
 }
\ No newline at end of file
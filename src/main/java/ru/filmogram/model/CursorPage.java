@@ -0,0 +1,15 @@
+package ru.filmogram.model;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@Builder
+public class CursorPage<T> {
+
+    private List<T> items;
+    // курсор следующей страницы, null — если страница последняя
+    private String next;
+}
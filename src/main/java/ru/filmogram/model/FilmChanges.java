@@ -0,0 +1,20 @@
+package ru.filmogram.model;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@Builder
+public class FilmChanges {
+
+    // созданные и измененные фильмы, а также фильмы с изменившимися лайками, в порядке последнего изменения
+    private List<Film> items;
+    // токен для следующего запроса
+    private String next;
+    // изменений больше, чем вошло в ответ, следующий запрос с next вернет продолжение
+    private boolean more;
+    // токен отсутствует или устарел: клиенту нужно загрузить каталог заново и продолжать с next
+    private boolean resync;
+}
@@ -0,0 +1,20 @@
+package ru.filmogram.model;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.util.List;
+import java.util.Map;
+
+@Data
+@Builder
+public class FilmFacetPage {
+
+    private List<Film> items;
+    // число всех подходящих фильмов, items — только первые из них
+    private int total;
+    // число фильмов по id жанра, id рейтинга и десятилетию с учетом фильтров по остальным измерениям
+    private Map<Long, Integer> genres;
+    private Map<Long, Integer> mpa;
+    private Map<Integer, Integer> decades;
+}
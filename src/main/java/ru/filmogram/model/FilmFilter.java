@@ -0,0 +1,20 @@
+package ru.filmogram.model;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.util.Set;
+
+@Data
+@Builder
+public class FilmFilter {
+
+    // внутри набора подходит любое значение, пустой набор не ограничивает выборку
+    private Set<Long> genres;
+    private Set<Long> mpa;
+    // границы года выхода включительно
+    private Integer yearFrom;
+    private Integer yearTo;
+    // true — по убыванию лайков, иначе по возрастанию id
+    private boolean popular;
+}
@@ -1,12 +1,14 @@
 package ru.filmogram.model;
 
 import lombok.Builder;
-import lombok.Data;
+import lombok.Value;
+import lombok.extern.jackson.Jacksonized;
 
 import java.util.Objects;
 
-@Data
+@Value
 @Builder
+@Jacksonized
 public class Genre {
 
     private Long id;
@@ -0,0 +1,17 @@
+package ru.filmogram.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Builder;
+import lombok.Data;
+
+@Data
+@Builder
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ImportItem {
+
+    // порядковый номер записи во входном потоке, начиная с 0
+    private long index;
+    // id созданной записи, null — если запись отклонена
+    private Long id;
+    private String error;
+}
@@ -0,0 +1,16 @@
+package ru.filmogram.model;
+
+import lombok.Builder;
+import lombok.Data;
+
+@Data
+@Builder
+public class ImportSummary {
+
+    private long total;
+    private long imported;
+    private long failed;
+    private long elapsedMillis;
+    // сохраненных записей в секунду
+    private double perSecond;
+}
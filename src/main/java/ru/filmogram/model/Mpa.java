@@ -1,10 +1,12 @@
 package ru.filmogram.model;
 
 import lombok.Builder;
-import lombok.Data;
+import lombok.Value;
+import lombok.extern.jackson.Jacksonized;
 
-@Data
+@Value
 @Builder
+@Jacksonized
 public class Mpa {
 
     private Long id;
@@ -0,0 +1,14 @@
+package ru.filmogram.model;
+
+import lombok.Builder;
+import lombok.Data;
+
+@Data
+@Builder
+public class RankChange {
+
+    private Long filmId;
+    // место в рейтинге начиная с 1, null — фильм выбыл из рейтинга
+    private Integer rank;
+    private Integer likes;
+}
@@ -1,15 +1,38 @@
 package ru.filmogram.services;
 
+import com.fasterxml.jackson.databind.MappingIterator;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import ru.filmogram.exceptions.ObjectNotFoundException;
 import ru.filmogram.exceptions.ValidationException;
+import ru.filmogram.model.CursorPage;
 import ru.filmogram.model.Film;
+import ru.filmogram.model.FilmChanges;
+import ru.filmogram.model.FilmFacetPage;
+import ru.filmogram.model.FilmFilter;
+import ru.filmogram.model.Genre;
+import ru.filmogram.model.ImportItem;
+import ru.filmogram.model.ImportSummary;
 import ru.filmogram.storage.film.FilmStorage;
+import ru.filmogram.storage.film.GenreStorage;
+import ru.filmogram.storage.film.MpaStorage;
+import ru.filmogram.storage.film.TrendingFilmsIndex;
+import ru.filmogram.util.BatchImport;
 
+import java.io.IOException;
 import java.time.LocalDate;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import static ru.filmogram.util.Util.checkPageSize;
+import static ru.filmogram.util.Util.decodeChangeToken;
+import static ru.filmogram.util.Util.decodeCursor;
+import static ru.filmogram.util.Util.makePage;
 
 @Service
 @Slf4j
@@ -18,19 +41,58 @@ public class FilmService {
     @Qualifier("filmDbStorageImpl")
     private FilmStorage filmStorage;
 
-    public FilmService(FilmStorage filmStorage) {
+    private final GenreStorage genreStorage;
+
+    private final MpaStorage mpaStorage;
+
+    private final PopularityStream popularityStream;
+
+    private final int maxPageSize;
+
+    private final int importChunkSize;
+
+    public FilmService(FilmStorage filmStorage,
+                       GenreStorage genreStorage,
+                       MpaStorage mpaStorage,
+                       PopularityStream popularityStream,
+                       @Value("${filmorate.list.max-page-size}") int maxPageSize,
+                       @Value("${filmorate.import.chunk-size}") int importChunkSize) {
         this.filmStorage = filmStorage;
+        this.genreStorage = genreStorage;
+        this.mpaStorage = mpaStorage;
+        this.popularityStream = popularityStream;
+        this.maxPageSize = maxPageSize;
+        this.importChunkSize = importChunkSize;
     }
 
     public List<Film> findAll() {
         return filmStorage.findAllFilm();
     }
 
+    public CursorPage<Film> findPage(Integer limit, String after) throws ValidationException {
+        int pageSize = checkPageSize(limit, maxPageSize);
+        Long afterId = after == null ? 0L : decodeCursor(after);
+        return makePage(filmStorage.findFilmsAfter(afterId, pageSize + 1), pageSize, Film::getId);
+    }
+
+    public void streamAll(Consumer<Film> consumer) {
+        filmStorage.streamAllFilm(consumer);
+    }
+
     public Film create(Film film) throws ValidationException {
         Film afterCheckFilm = standardCheck(film);
         return filmStorage.createFilm(afterCheckFilm);
     }
 
+    /*
+     * Метод importFilms сохраняет фильмы из потока частями по importChunkSize.
+     * Каждый фильм проходит те же проверки, что и при POST /films, плюс проверку рейтинга и жанров по справочникам
+     */
+    public ImportSummary importFilms(MappingIterator<Film> films, Consumer<ImportItem> results) throws IOException {
+        return BatchImport.run(films, importChunkSize, this::importCheck, filmStorage::createFilms, Film::getId,
+                results);
+    }
+
     public Film update(Film film) throws ValidationException {
         Film afterCheckFilm = standardCheck(film);
         return filmStorage.updateFilm(afterCheckFilm);
@@ -43,7 +105,11 @@ public class FilmService {
         if (userId <= 0) {
             throw new ValidationException(String.format("Пользователь %d не найден", userId));
         }
-        return filmStorage.addLikeFilm(id, userId);
+        boolean liked = filmStorage.addLikeFilm(id, userId);
+        if (liked) {
+            popularityStream.likeChanged();
+        }
+        return liked;
     }
 
     public boolean deleteLike(Long id, Long userId) {
@@ -53,14 +119,138 @@ public class FilmService {
         if (userId <= 0) {
             throw new ObjectNotFoundException(String.format("Пользователь %d не найден", userId));
         }
-        return filmStorage.deleteLikeFilm(id, userId);
+        boolean deleted = filmStorage.deleteLikeFilm(id, userId);
+        popularityStream.likeChanged();
+        return deleted;
+    }
+
+    public List<Film> recommendations(Long userId, Integer limit) throws ValidationException {
+        if (userId <= 0) {
+            throw new ValidationException(String.format("Пользователь %d не найден", userId));
+        }
+        if (limit == null || limit <= 0) {
+            throw new ValidationException(
+                    String.format("Количество рекомендаций %d должно быть положительным", limit));
+        }
+        return filmStorage.getRecommendations(userId, Math.min(limit, maxPageSize));
+    }
+
+    public List<Film> similarFilms(Long id, Integer limit) throws ValidationException {
+        if (id <= 0) {
+            throw new ValidationException(String.format("Фильм %d не найден", id));
+        }
+        if (limit == null || limit <= 0) {
+            throw new ValidationException(
+                    String.format("Количество похожих фильмов %d должно быть положительным", limit));
+        }
+        return filmStorage.getSimilarFilms(id, Math.min(limit, maxPageSize));
+    }
+
+    public List<Film> search(String query, Integer limit) throws ValidationException {
+        if (query == null || query.isBlank()) {
+            throw new ValidationException("Поисковый запрос не может быть пустым");
+        }
+        if (limit == null || limit <= 0) {
+            throw new ValidationException(
+                    String.format("Количество найденных фильмов %d должно быть положительным", limit));
+        }
+        return filmStorage.searchFilms(query, Math.min(limit, maxPageSize));
+    }
+
+    /*
+     * Метод filter проверяет параметры фильтра: sort может быть пустым (по возрастанию id) или popular
+     */
+    public FilmFacetPage filter(List<Long> genres, List<Long> mpa, Integer yearFrom, Integer yearTo, String sort,
+                                Integer limit) throws ValidationException {
+        if (yearFrom != null && yearTo != null && yearFrom > yearTo) {
+            throw new ValidationException(
+                    String.format("Начальный год %d не может быть больше конечного %d", yearFrom, yearTo));
+        }
+        if (sort != null && !sort.equals("popular")) {
+            throw new ValidationException(String.format("Неизвестная сортировка %s", sort));
+        }
+        if (limit == null || limit <= 0) {
+            throw new ValidationException(String.format("Количество фильмов %d должно быть положительным", limit));
+        }
+        FilmFilter filter = FilmFilter.builder()
+                .genres(genres == null ? Set.of() : new HashSet<>(genres))
+                .mpa(mpa == null ? Set.of() : new HashSet<>(mpa))
+                .yearFrom(yearFrom)
+                .yearTo(yearTo)
+                .popular(sort != null)
+                .build();
+        return filmStorage.filterFilms(filter, Math.min(limit, maxPageSize));
+    }
+
+    public List<Film> autocomplete(String prefix, Integer limit) throws ValidationException {
+        if (prefix == null || prefix.isBlank()) {
+            throw new ValidationException("Начало названия не может быть пустым");
+        }
+        if (limit == null || limit <= 0) {
+            throw new ValidationException(
+                    String.format("Количество подсказок %d должно быть положительным", limit));
+        }
+        return filmStorage.autocompleteFilms(prefix, Math.min(limit, maxPageSize));
     }
 
     public List<Film> sortFilmCount(Integer count) throws ValidationException {
-        if (count < 0) {
+        checkCount(count);
+        return filmStorage.sortPopularFilm(count);
+    }
+
+    /*
+     * Метод sortFilmCount без фильтров берет фильмы из рейтинга популярности в памяти, с фильтрами — запросом к базе
+     */
+    public List<Film> sortFilmCount(Integer count, Long genreId, Long mpaId, Integer year)
+            throws ValidationException {
+        if (genreId == null && mpaId == null && year == null) {
+            return sortFilmCount(count);
+        }
+        checkCount(count);
+        if (genreId != null && genreId <= 0) {
+            throw new ValidationException(String.format("Жанр %d не найден", genreId));
+        }
+        if (mpaId != null && mpaId <= 0) {
+            throw new ValidationException(String.format("Рейтинг MPA %d не найден", mpaId));
+        }
+        if (year != null && year <= 0) {
+            throw new ValidationException(String.format("Год %d должен быть положительным", year));
+        }
+        return filmStorage.sortPopularFilm(count, genreId, mpaId, year);
+    }
+
+    public List<Film> trending(String window, Integer count) throws ValidationException {
+        TrendingFilmsIndex.Window parsed = TrendingFilmsIndex.Window.of(window);
+        if (parsed == null) {
+            throw new ValidationException(String.format("Неизвестное окно %s, допустимы 1h, 24h и 7d", window));
+        }
+        if (count == null || count <= 0) {
+            throw new ValidationException(String.format("Количество фильмов %d должно быть положительным", count));
+        }
+        return filmStorage.getTrendingFilms(parsed, Math.min(count, maxPageSize));
+    }
+
+    /*
+     * Метод changes отдает изменения каталога после токена since. Без токена клиент получает только resync
+     * и токен, с которого продолжать после полной загрузки каталога
+     */
+    public FilmChanges changes(String since, Integer limit) throws ValidationException {
+        int pageSize = checkPageSize(limit, maxPageSize);
+        return filmStorage.getFilmChanges(since == null ? null : decodeChangeToken(since), pageSize);
+    }
+
+    public SseEmitter subscribePopular() {
+        return popularityStream.subscribe();
+    }
+
+    public void streamPopularFilms(Integer count, Consumer<Film> consumer) throws ValidationException {
+        filmStorage.streamPopularFilm(count, consumer);
+    }
+
+    public void checkCount(Integer count) throws ValidationException {
+        if (count != null && count < 0) {
             throw new ValidationException(String.format("%d не может быть отрицательным", count));
         }
-        return filmStorage.sortPopularFilm(count);
     }
 
     public List<Film> allPopularFilms() throws ValidationException {
@@ -74,6 +264,20 @@ public class FilmService {
         return filmStorage.getFilmId(id);
     }
 
+    private Film importCheck(Film film) throws ValidationException {
+        standardCheck(film);
+        if (film.getMpa() == null) {
+            throw new ValidationException("Рейтинг MPA не указан");
+        }
+        mpaStorage.getMpaId(film.getMpa().getId());
+        if (film.getGenres() != null) {
+            for (Genre genre : film.getGenres()) {
+                genreStorage.getGenre(genre.getId());
+            }
+        }
+        return film;
+    }
+
     private Film standardCheck(Film film) throws ValidationException {
         if (film.getName() == null || film.getName().isBlank() || film.getName().isEmpty()) {
             log.error("Название фильма не может быть пустым: {}", film);
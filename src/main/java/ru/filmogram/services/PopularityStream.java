@@ -0,0 +1,364 @@
+package ru.filmogram.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import ru.filmogram.model.RankChange;
+import ru.filmogram.storage.film.FilmPopularityIndex;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Класс PopularityStream рассылает подписчикам изменения первых topN мест рейтинга популярности (server-sent events).
+ * FilmService отмечает каждый like и снятие like, а раз в interval-ms рейтинг сравнивается с прошлым
+ * и изменения за интервал уходят одним событием diff: место и число лайков фильмов, которые сдвинулись,
+ * вошли в рейтинг или выбыли из него. Изменения считаются и сериализуются один раз на всех подписчиков.
+ * У каждого подписчика своя очередь на buffer-size событий, отправкой занят небольшой общий пул потоков.
+ * Если подписчик не успевает читать и очередь переполняется, накопленные события отбрасываются,
+ * и вместо них он получает событие snapshot с рейтингом целиком — так же, как сразу после подписки.
+ * Запись в соединение блокирующая, поэтому подписчик, чья отправка идет дольше send-timeout-ms, отключается,
+ * а пул получает поток взамен занятого, пока запись не вернется: зависшие клиенты не останавливают рассылку остальным
+ */
+@Service
+@Slf4j
+public class PopularityStream {
+
+    private static final String SNAPSHOT = "snapshot";
+    private static final String DIFF = "diff";
+
+    private final FilmPopularityIndex popularityIndex;
+    private final ObjectMapper objectMapper;
+    private final int topN;
+    private final int bufferSize;
+    private final long timeoutMs;
+    private final long sendTimeoutNanos;
+
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean changed = new AtomicBoolean(true);
+    // лайк из буфера отложенной записи попадает в рейтинг позже, поэтому после изменений рейтинг сверяется еще раз
+    private boolean recheck;
+    private volatile Ranking ranking = new Ranking(0, new long[0], new int[0], "[]");
+
+    private final ThreadPoolExecutor senders;
+    private final Counter resyncs;
+    private final Counter stalls;
+
+    public PopularityStream(FilmPopularityIndex popularityIndex,
+                            ObjectMapper objectMapper,
+                            MeterRegistry meterRegistry,
+                            @Value("${filmorate.popular-stream.top-n}") int topN,
+                            @Value("${filmorate.popular-stream.buffer-size}") int bufferSize,
+                            @Value("${filmorate.popular-stream.timeout-ms}") long timeoutMs,
+                            @Value("${filmorate.popular-stream.senders}") int senders,
+                            @Value("${filmorate.popular-stream.send-timeout-ms}") long sendTimeoutMs) {
+        this.popularityIndex = popularityIndex;
+        this.objectMapper = objectMapper;
+        this.topN = topN;
+        this.bufferSize = bufferSize;
+        this.timeoutMs = timeoutMs;
+        this.sendTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(sendTimeoutMs);
+        AtomicInteger threads = new AtomicInteger();
+        this.senders = new ThreadPoolExecutor(senders, senders, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "popular-stream-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        Gauge.builder("filmorate.popular-stream.subscribers", subscribers, Set::size)
+                .description("Подписчики на изменения рейтинга популярности")
+                .register(meterRegistry);
+        this.resyncs = Counter.builder("filmorate.popular-stream.resyncs")
+                .description("Переполнения очереди подписчика, после которых отправлен рейтинг целиком")
+                .register(meterRegistry);
+        this.stalls = Counter.builder("filmorate.popular-stream.stalls")
+                .description("Подписчики, отключенные из-за зависшей записи")
+                .register(meterRegistry);
+    }
+
+    public void likeChanged() {
+        changed.set(true);
+    }
+
+    public SseEmitter subscribe() {
+        SseEmitter emitter = new SseEmitter(timeoutMs);
+        Subscriber subscriber = subscribe((id, name, data) -> emitter.send(SseEmitter.event()
+                .id(String.valueOf(id))
+                .name(name)
+                .data(data, MediaType.APPLICATION_JSON)), emitter::complete);
+        emitter.onCompletion(() -> subscribers.remove(subscriber));
+        emitter.onTimeout(emitter::complete);
+        emitter.onError(e -> subscribers.remove(subscriber));
+        return emitter;
+    }
+
+    Subscriber subscribe(Sink sink) {
+        return subscribe(sink, () -> { });
+    }
+
+    // первым событием подписчик получает рейтинг целиком; close вызывается, когда зависшая запись вернется
+    Subscriber subscribe(Sink sink, Runnable close) {
+        Subscriber subscriber = new Subscriber(sink, close, bufferSize);
+        subscriber.resync = true;
+        subscribers.add(subscriber);
+        schedule(subscriber);
+        return subscriber;
+    }
+
+    /*
+     * Метод publish сравнивает рейтинг с прошлым и кладет одно событие diff в очереди всех подписчиков.
+     * Новый рейтинг публикуется раньше событий, поэтому snapshot, собранный при переполнении,
+     * не старше событий, которые уже лежат в очереди
+     */
+    @Scheduled(fixedDelayString = "${filmorate.popular-stream.interval-ms}")
+    public synchronized void publish() {
+        dropStalled();
+        boolean likes = changed.getAndSet(false);
+        if (!likes && !recheck) {
+            return;
+        }
+        recheck = likes;
+        Ranking previous = ranking;
+        List<Long> filmIds = popularityIndex.top(topN);
+        long[] ids = new long[filmIds.size()];
+        int[] counts = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = filmIds.get(i);
+            counts[i] = likesOf(ids[i]);
+        }
+        List<RankChange> diff = diff(previous, ids, counts);
+        if (diff.isEmpty()) {
+            return;
+        }
+        Ranking current = new Ranking(previous.version + 1, ids, counts, toJson(changes(ids, counts)));
+        ranking = current;
+        Event event = new Event(current.version, DIFF, toJson(diff));
+        for (Subscriber subscriber : subscribers) {
+            subscriber.offer(event);
+            schedule(subscriber);
+        }
+    }
+
+    /*
+     * Метод dropStalled отключает подписчиков, чья запись идет дольше send-timeout-ms. Занятый ими поток
+     * не освободить, пока запись не вернется, поэтому пул на это время увеличивается на поток
+     */
+    void dropStalled() {
+        long now = System.nanoTime();
+        for (Subscriber subscriber : subscribers) {
+            boolean stalled;
+            synchronized (subscriber) {
+                stalled = !subscriber.stalled && subscriber.sendingSince != 0
+                        && now - subscriber.sendingSince > sendTimeoutNanos;
+                subscriber.stalled |= stalled;
+            }
+            if (stalled) {
+                log.debug("Подписчик на рейтинг не принимает события дольше таймаута и отключен");
+                subscribers.remove(subscriber);
+                stalls.increment();
+                resizeSenders(1);
+            }
+        }
+    }
+
+    public int subscribers() {
+        return subscribers.size();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        senders.shutdownNow();
+        subscribers.clear();
+    }
+
+    private List<RankChange> diff(Ranking previous, long[] ids, int[] counts) {
+        Map<Long, Integer> previousRanks = new HashMap<>(previous.filmIds.length * 2);
+        for (int i = 0; i < previous.filmIds.length; i++) {
+            previousRanks.put(previous.filmIds[i], i);
+        }
+        List<RankChange> diff = new ArrayList<>();
+        for (int i = 0; i < ids.length; i++) {
+            Integer rank = previousRanks.remove(ids[i]);
+            if (rank == null || rank != i || previous.likes[rank] != counts[i]) {
+                diff.add(RankChange.builder().filmId(ids[i]).rank(i + 1).likes(counts[i]).build());
+            }
+        }
+        for (Long filmId : previousRanks.keySet()) {
+            diff.add(RankChange.builder().filmId(filmId).likes(likesOf(filmId)).build());
+        }
+        return diff;
+    }
+
+    private static List<RankChange> changes(long[] ids, int[] counts) {
+        List<RankChange> changes = new ArrayList<>(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            changes.add(RankChange.builder().filmId(ids[i]).rank(i + 1).likes(counts[i]).build());
+        }
+        return changes;
+    }
+
+    private int likesOf(long filmId) {
+        Integer likes = popularityIndex.getLikes(filmId);
+        return likes == null ? 0 : likes;
+    }
+
+    private String toJson(List<RankChange> changes) {
+        try {
+            return objectMapper.writeValueAsString(changes);
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // у подписчика не больше одной задачи отправки, поэтому его события уходят по порядку
+    private void schedule(Subscriber subscriber) {
+        if (subscriber.sending.compareAndSet(false, true)) {
+            senders.execute(() -> drain(subscriber));
+        }
+    }
+
+    private void drain(Subscriber subscriber) {
+        try {
+            while (subscribers.contains(subscriber)) {
+                if (subscriber.resync) {
+                    subscriber.resync = false;
+                    subscriber.buffer.clear();
+                    Ranking current = ranking;
+                    send(subscriber, current.version, SNAPSHOT, current.json);
+                    subscriber.sentVersion = current.version;
+                    continue;
+                }
+                Event event = subscriber.buffer.poll();
+                if (event == null) {
+                    break;
+                }
+                // изменения, которые уже вошли в отправленный snapshot, пропускаются
+                if (event.version > subscriber.sentVersion) {
+                    send(subscriber, event.version, event.name, event.data);
+                    subscriber.sentVersion = event.version;
+                }
+            }
+        } catch (IOException | IllegalStateException e) {
+            log.debug("Подписчик на рейтинг отключился: {}", e.getMessage());
+            subscribers.remove(subscriber);
+        } finally {
+            subscriber.sending.set(false);
+        }
+        if (subscriber.stalled) {
+            subscriber.close.run();
+            return;
+        }
+        // событие могло прийти между последней проверкой очереди и сбросом флага
+        if ((subscriber.resync || !subscriber.buffer.isEmpty()) && subscribers.contains(subscriber)) {
+            schedule(subscriber);
+        }
+    }
+
+    private void send(Subscriber subscriber, long id, String name, String data) throws IOException {
+        synchronized (subscriber) {
+            subscriber.sendingSince = System.nanoTime();
+        }
+        try {
+            subscriber.sink.send(id, name, data);
+        } finally {
+            boolean stalled;
+            synchronized (subscriber) {
+                subscriber.sendingSince = 0;
+                stalled = subscriber.stalled;
+            }
+            // поток, выданный взамен, больше не нужен
+            if (stalled) {
+                resizeSenders(-1);
+            }
+        }
+    }
+
+    private synchronized void resizeSenders(int delta) {
+        if (delta > 0) {
+            senders.setMaximumPoolSize(senders.getMaximumPoolSize() + delta);
+            senders.setCorePoolSize(senders.getCorePoolSize() + delta);
+        } else {
+            senders.setCorePoolSize(senders.getCorePoolSize() + delta);
+            senders.setMaximumPoolSize(senders.getMaximumPoolSize() + delta);
+        }
+    }
+
+    @FunctionalInterface
+    interface Sink {
+        void send(long id, String name, String data) throws IOException;
+    }
+
+    final class Subscriber {
+        private final Sink sink;
+        private final Runnable close;
+        private final ArrayBlockingQueue<Event> buffer;
+        private final AtomicBoolean sending = new AtomicBoolean();
+        private volatile boolean resync;
+        // время начала текущей записи, 0 — запись не идет; оба поля меняются под монитором подписчика
+        private long sendingSince;
+        private volatile boolean stalled;
+        // меняется только в задаче отправки, которая у подписчика одна
+        private long sentVersion = -1;
+
+        private Subscriber(Sink sink, Runnable close, int bufferSize) {
+            this.sink = sink;
+            this.close = close;
+            this.buffer = new ArrayBlockingQueue<>(bufferSize);
+        }
+
+        private void offer(Event event) {
+            if (!buffer.offer(event)) {
+                resync = true;
+                buffer.clear();
+                resyncs.increment();
+            }
+        }
+    }
+
+    private static final class Event {
+        private final long version;
+        private final String name;
+        private final String data;
+
+        private Event(long version, String name, String data) {
+            this.version = version;
+            this.name = name;
+            this.data = data;
+        }
+    }
+
+    private static final class Ranking {
+        private final long version;
+        private final long[] filmIds;
+        private final int[] likes;
+        private final String json;
+
+        private Ranking(long version, long[] filmIds, int[] likes, String json) {
+            this.version = version;
+            this.filmIds = filmIds;
+            this.likes = likes;
+            this.json = json;
+        }
+    }
+}
@@ -1,15 +1,27 @@
 package ru.filmogram.services;
 
+import com.fasterxml.jackson.databind.MappingIterator;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import ru.filmogram.exceptions.ObjectNotFoundException;
 import ru.filmogram.exceptions.ValidationException;
+import ru.filmogram.model.CursorPage;
+import ru.filmogram.model.ImportItem;
+import ru.filmogram.model.ImportSummary;
 import ru.filmogram.model.User;
 import ru.filmogram.storage.user.UserStorage;
+import ru.filmogram.util.BatchImport;
 
+import java.io.IOException;
 import java.time.LocalDate;
 import java.util.List;
+import java.util.function.Consumer;
+
+import static ru.filmogram.util.Util.checkPageSize;
+import static ru.filmogram.util.Util.decodeCursor;
+import static ru.filmogram.util.Util.makePage;
 
 @Service
 @Slf4j
@@ -18,19 +30,46 @@ public class UserService {
     @Qualifier("userDbStorageImpl")
     private final UserStorage userStorage;
 
-    public UserService(UserStorage userStorage) {
+    private final int maxPageSize;
+
+    private final int importChunkSize;
+
+    public UserService(UserStorage userStorage,
+                       @Value("${filmorate.list.max-page-size}") int maxPageSize,
+                       @Value("${filmorate.import.chunk-size}") int importChunkSize) {
         this.userStorage = userStorage;
+        this.maxPageSize = maxPageSize;
+        this.importChunkSize = importChunkSize;
     }
 
     public List<User> findAll() {
         return userStorage.findAllUser();
     }
 
+    public CursorPage<User> findPage(Integer limit, String after) throws ValidationException {
+        int pageSize = checkPageSize(limit, maxPageSize);
+        Long afterId = after == null ? 0L : decodeCursor(after);
+        return makePage(userStorage.findUsersAfter(afterId, pageSize + 1), pageSize, User::getId);
+    }
+
+    public void streamAll(Consumer<User> consumer) {
+        userStorage.streamAllUser(consumer);
+    }
+
     public User create(User user) throws ValidationException {
         User afterCheckUser = standardCheck(user);
         return userStorage.createUser(afterCheckUser);
     }
 
+    /*
+     * Метод importUsers сохраняет пользователей из потока частями по importChunkSize
+     * с теми же проверками, что и при POST /users
+     */
+    public ImportSummary importUsers(MappingIterator<User> users, Consumer<ImportItem> results) throws IOException {
+        return BatchImport.run(users, importChunkSize, this::standardCheck, userStorage::createUsers, User::getId,
+                results);
+    }
+
     public User update(User user) throws ValidationException {
         User afterCheckUser = standardCheck(user);
         return userStorage.updateUser(afterCheckUser);
@@ -83,6 +122,17 @@ public class UserService {
         return userStorage.getCommonFriends(id, otherId);
     }
 
+    public List<User> friendSuggestions(Long id, Integer limit) throws ValidationException {
+        if (id <= 0) {
+            throw new ValidationException(String.format("Пользователь %d не найден", id));
+        }
+        if (limit == null || limit <= 0) {
+            throw new ValidationException(
+                    String.format("Количество предложений %d должно быть положительным", limit));
+        }
+        return userStorage.getFriendSuggestions(id, Math.min(limit, maxPageSize));
+    }
+
     private User standardCheck(User user) throws ValidationException {
         if (user.getEmail().isEmpty() || user.getEmail().isBlank() || !user.getEmail().contains("@")) {
             log.error("Неверно введен email: {}", user);
@@ -0,0 +1,106 @@
+package ru.filmogram.storage.film;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.filmogram.model.Film;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/*
+ * Класс FilmCache — ограниченный по размеру кэш фильмов по id с вытеснением W-TinyLFU и временем жизни записи.
+ * Одновременные промахи по одному id объединяются: загрузку выполняет один поток, остальные ждут ее результат.
+ * Счетчики попаданий, промахов и вытеснений публикуются в метриках cache.* с тегом cache=films.
+ * Film изменяемый, поэтому наружу отдается копия: правки в одном запросе не видны остальным
+ */
+@Component
+public class FilmCache {
+
+    private final Cache<Long, Film> films;
+    // число вызовов invalidate, по нему пакетная загрузка узнает об изменениях во время нее
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public FilmCache(@Value("${filmorate.film-cache.max-size}") long maxSize,
+                     @Value("${filmorate.film-cache.ttl-seconds}") long ttlSeconds,
+                     MeterRegistry meterRegistry) {
+        this.films = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(Duration.ofSeconds(ttlSeconds))
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, films, "films");
+    }
+
+    public Film get(Long filmId, Function<Long, Film> loader) {
+        Film film = films.get(filmId, loader);
+        return film == null ? null : copy(film);
+    }
+
+    /*
+     * Метод getAll отдает фильмы по id; отсутствующие в кэше загружаются одним вызовом loader.
+     * Фильмы, которых loader не вернул, в результат не попадают.
+     * Пакетная загрузка идет вне блокировки ключей, и invalidate во время нее не видит загружаемых записей.
+     * Поэтому номер поколения запоминается до загрузки: если за это время был invalidate, только что
+     * положенные записи удаляются, иначе прочитанный до изменения фильм жил бы в кэше до истечения ttl
+     */
+    public Map<Long, Film> getAll(List<Long> filmIds, Function<List<Long>, List<Film>> loader) {
+        Map<Long, Film> result = new HashMap<>(films.getAllPresent(filmIds));
+        List<Long> missing = new ArrayList<>();
+        for (Long filmId : filmIds) {
+            if (!result.containsKey(filmId)) {
+                missing.add(filmId);
+            }
+        }
+        if (!missing.isEmpty()) {
+            long generation = invalidations.get();
+            Map<Long, Film> loaded = new HashMap<>(missing.size() * 2);
+            for (Film film : loader.apply(missing)) {
+                loaded.put(film.getId(), film);
+            }
+            films.putAll(loaded);
+            // invalidate увеличивает номер до удаления, поэтому проверка после записи не пропустит изменение
+            if (invalidations.get() != generation) {
+                films.invalidateAll(loaded.keySet());
+            }
+            result.putAll(loaded);
+        }
+        Map<Long, Film> copies = new HashMap<>(result.size() * 2);
+        result.forEach((filmId, film) -> copies.put(filmId, copy(film)));
+        return copies;
+    }
+
+    public void invalidate(Long filmId) {
+        invalidations.incrementAndGet();
+        films.invalidate(filmId);
+    }
+
+    public CacheStats stats() {
+        return films.stats();
+    }
+
+    // Genre и Mpa неизменяемые и общие со справочниками, копируются только сам фильм и списки
+    private static Film copy(Film film) {
+        return Film.builder()
+                .id(film.getId())
+                .name(film.getName())
+                .description(film.getDescription())
+                .releaseDate(film.getReleaseDate())
+                .genres(film.getGenres() == null ? null : new ArrayList<>(film.getGenres()))
+                .mpa(film.getMpa())
+                .rate(film.getRate())
+                .duration(film.getDuration())
+                .likes(film.getLikes() == null ? null : new HashSet<>(film.getLikes()))
+                .build();
+    }
+}
@@ -0,0 +1,301 @@
+package ru.filmogram.storage.film;
+
+import org.roaringbitmap.IntIterator;
+import org.roaringbitmap.RoaringBitmap;
+import org.springframework.stereotype.Component;
+import ru.filmogram.model.FilmFilter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * Класс FilmFacetIndex хранит сжатые битовые карты (RoaringBitmap) по порядковым номерам фильмов:
+ * отдельную карту на каждый жанр, рейтинг MPA, год и десятилетие выхода.
+ * Фильтр внутри одного измерения — объединение карт (любой из выбранных жанров), между измерениями — пересечение.
+ * Счетчик значения измерения — мощность пересечения его карты с фильтром по остальным измерениям,
+ * поэтому выбор жанра не обнуляет счетчики соседних жанров.
+ * Порядковые номера выдаются в порядке добавления: при загрузке — по возрастанию id, затем по мере создания фильмов
+ */
+@Component
+public class FilmFacetIndex {
+
+    private final FilmPopularityIndex popularityIndex;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final RoaringBitmap all = new RoaringBitmap();
+    private final Map<Long, RoaringBitmap> byGenre = new HashMap<>();
+    private final Map<Long, RoaringBitmap> byMpa = new HashMap<>();
+    private final NavigableMap<Integer, RoaringBitmap> byYear = new TreeMap<>();
+    // карта года мала и состоит из разреженных контейнеров, поэтому счетчики десятилетий идут по своим картам
+    private final Map<Integer, RoaringBitmap> byDecade = new HashMap<>();
+    private final Map<Long, Integer> ordinalsByFilm = new HashMap<>();
+    private long[] filmIds = new long[1024];
+    private Attributes[] attributes = new Attributes[1024];
+    private int size;
+
+    public FilmFacetIndex(FilmPopularityIndex popularityIndex) {
+        this.popularityIndex = popularityIndex;
+    }
+
+    /*
+     * Метод put записывает жанры, рейтинг и год фильма, заменяя прежние значения, если фильм уже был в индексе.
+     * Пустые mpaId и year означают, что у фильма нет значения в этом измерении
+     */
+    public void put(Long filmId, Long mpaId, Integer year, Collection<Long> genreIds) {
+        Attributes updated = new Attributes(mpaId, year, genreIds.stream().mapToLong(Long::longValue).toArray());
+        lock.writeLock().lock();
+        try {
+            Integer ordinal = ordinalsByFilm.get(filmId);
+            if (ordinal == null) {
+                ordinal = add(filmId);
+            } else {
+                apply(ordinal, attributes[ordinal], false);
+            }
+            attributes[ordinal] = updated;
+            apply(ordinal, updated, true);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Метод query отбирает фильмы по фильтру и считает значения измерений.
+     * Первые limit фильмов берутся в порядке порядковых номеров или по убыванию лайков
+     */
+    public Result query(FilmFilter filter, int limit) {
+        lock.readLock().lock();
+        try {
+            RoaringBitmap genres = union(byGenre, filter.getGenres());
+            RoaringBitmap mpa = union(byMpa, filter.getMpa());
+            RoaringBitmap years = years(filter.getYearFrom(), filter.getYearTo());
+            RoaringBitmap matches = and(all, genres, mpa, years);
+
+            Result result = new Result();
+            result.total = matches.getCardinality();
+            result.filmIds = filter.isPopular() ? popular(matches, limit) : first(matches, limit);
+            count(byGenre, and(all, mpa, years), result.genres);
+            count(byMpa, and(all, genres, years), result.mpa);
+            count(byDecade, and(all, genres, mpa), result.decades);
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * Метод count возвращает число фильмов, подходящих под фильтр, без отбора фильмов и счетчиков измерений
+     */
+    public int count(FilmFilter filter) {
+        lock.readLock().lock();
+        try {
+            return and(all, union(byGenre, filter.getGenres()), union(byMpa, filter.getMpa()),
+                    years(filter.getYearFrom(), filter.getYearTo())).getCardinality();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int add(long filmId) {
+        if (size == filmIds.length) {
+            filmIds = Arrays.copyOf(filmIds, size * 2);
+            attributes = Arrays.copyOf(attributes, size * 2);
+        }
+        int ordinal = size++;
+        filmIds[ordinal] = filmId;
+        ordinalsByFilm.put(filmId, ordinal);
+        all.add(ordinal);
+        return ordinal;
+    }
+
+    private void apply(int ordinal, Attributes values, boolean set) {
+        for (long genreId : values.genreIds) {
+            mark(byGenre, genreId, ordinal, set);
+        }
+        if (values.mpaId != null) {
+            mark(byMpa, values.mpaId, ordinal, set);
+        }
+        if (values.year != null) {
+            mark(byYear, values.year, ordinal, set);
+            mark(byDecade, Math.floorDiv(values.year, 10) * 10, ordinal, set);
+        }
+    }
+
+    private static <K> void mark(Map<K, RoaringBitmap> bitmaps, K key, int ordinal, boolean set) {
+        if (set) {
+            bitmaps.computeIfAbsent(key, value -> new RoaringBitmap()).add(ordinal);
+            return;
+        }
+        RoaringBitmap bitmap = bitmaps.get(key);
+        bitmap.remove(ordinal);
+        if (bitmap.isEmpty()) {
+            bitmaps.remove(key);
+        }
+    }
+
+    // null — измерение не ограничено фильтром
+    private static RoaringBitmap union(Map<Long, RoaringBitmap> bitmaps, Collection<Long> keys) {
+        if (keys == null || keys.isEmpty()) {
+            return null;
+        }
+        List<RoaringBitmap> selected = new ArrayList<>(keys.size());
+        for (Long key : keys) {
+            RoaringBitmap bitmap = bitmaps.get(key);
+            if (bitmap != null) {
+                selected.add(bitmap);
+            }
+        }
+        return RoaringBitmap.or(selected.iterator());
+    }
+
+    private RoaringBitmap years(Integer from, Integer to) {
+        if (from == null && to == null) {
+            return null;
+        }
+        Collection<RoaringBitmap> selected = byYear.subMap(
+                from == null ? Integer.MIN_VALUE : from, true,
+                to == null ? Integer.MAX_VALUE : to, true).values();
+        return RoaringBitmap.or(selected.iterator());
+    }
+
+    private static RoaringBitmap and(RoaringBitmap all, RoaringBitmap... filters) {
+        RoaringBitmap result = null;
+        for (RoaringBitmap filter : filters) {
+            if (filter != null) {
+                result = result == null ? filter.clone() : RoaringBitmap.and(result, filter);
+            }
+        }
+        return result == null ? all : result;
+    }
+
+    private static <K> void count(Map<K, RoaringBitmap> bitmaps, RoaringBitmap filter, Map<K, Integer> counts) {
+        for (Map.Entry<K, RoaringBitmap> entry : bitmaps.entrySet()) {
+            int films = RoaringBitmap.andCardinality(entry.getValue(), filter);
+            if (films > 0) {
+                counts.put(entry.getKey(), films);
+            }
+        }
+    }
+
+    private long[] first(RoaringBitmap matches, int limit) {
+        long[] ids = new long[Math.min(limit, matches.getCardinality())];
+        IntIterator ordinals = matches.getIntIterator();
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = filmIds[ordinals.next()];
+        }
+        return ids;
+    }
+
+    /*
+     * Метод popular выбирает самые популярные фильмы из matches дешевле из двух способов:
+     * идет по общему рейтингу, пока не наберет limit совпадений (примерно limit * все / совпавшие шагов),
+     * или перебирает совпавшие фильмы через кучу размером limit
+     */
+    private long[] popular(RoaringBitmap matches, int limit) {
+        int found = matches.getCardinality();
+        if (found == 0 || limit <= 0) {
+            return new long[0];
+        }
+        long rankingSteps = (long) limit * size / found;
+        if (rankingSteps < found) {
+            long[] ids = fromRanking(matches, Math.min(limit, found), rankingSteps);
+            if (ids != null) {
+                return ids;
+            }
+        }
+        Comparator<long[]> worstFirst = Comparator.<long[]>comparingLong(film -> film[1])
+                .thenComparing(Comparator.<long[]>comparingLong(film -> film[0]).reversed());
+        PriorityQueue<long[]> best = new PriorityQueue<>(limit + 1, worstFirst);
+        matches.forEach((int ordinal) -> {
+            Integer likes = popularityIndex.getLikes(filmIds[ordinal]);
+            best.add(new long[]{filmIds[ordinal], likes == null ? 0 : likes});
+            if (best.size() > limit) {
+                best.poll();
+            }
+        });
+        List<long[]> ranked = new ArrayList<>(best);
+        ranked.sort(worstFirst.reversed());
+        return ranked.stream().mapToLong(film -> film[0]).toArray();
+    }
+
+    // null — в рейтинге не нашлось нужного числа фильмов, например он еще не заполнен
+    private long[] fromRanking(RoaringBitmap matches, int wanted, long rankingSteps) {
+        int ranked = popularityIndex.size();
+        int count = (int) Math.min(Math.max(rankingSteps * 2, wanted), ranked);
+        while (count > 0) {
+            long[] ids = new long[wanted];
+            int found = 0;
+            for (Long filmId : popularityIndex.top(count)) {
+                Integer ordinal = ordinalsByFilm.get(filmId);
+                if (ordinal != null && matches.contains(ordinal)) {
+                    ids[found++] = filmId;
+                    if (found == wanted) {
+                        return ids;
+                    }
+                }
+            }
+            if (count >= ranked) {
+                return null;
+            }
+            count = (int) Math.min((long) count * 2, ranked);
+        }
+        return null;
+    }
+
+    public static final class Result {
+        private long[] filmIds;
+        private int total;
+        private final Map<Long, Integer> genres = new TreeMap<>();
+        private final Map<Long, Integer> mpa = new TreeMap<>();
+        private final Map<Integer, Integer> decades = new TreeMap<>();
+
+        public long[] getFilmIds() {
+            return filmIds;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+
+        public Map<Long, Integer> getGenres() {
+            return genres;
+        }
+
+        public Map<Long, Integer> getMpa() {
+            return mpa;
+        }
+
+        public Map<Integer, Integer> getDecades() {
+            return decades;
+        }
+    }
+
+    private static final class Attributes {
+        private final Long mpaId;
+        private final Integer year;
+        private final long[] genreIds;
+
+        private Attributes(Long mpaId, Integer year, long[] genreIds) {
+            this.mpaId = mpaId;
+            this.year = year;
+            this.genreIds = genreIds;
+        }
+    }
+}
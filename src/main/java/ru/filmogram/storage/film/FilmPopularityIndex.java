@@ -0,0 +1,161 @@
+package ru.filmogram.storage.film;
+
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Класс FilmPopularityIndex хранит id фильмов, упорядоченные по количеству лайков.
+ * Изменение счетчика фильма стоит O(log n), чтение первых count фильмов — O(count) и идет без блокировок:
+ * читатель сверяет счетчики записей до и после обхода и при гонке с записью повторяет чтение
+ */
+@Component
+public class FilmPopularityIndex {
+
+    private static final int OPTIMISTIC_ATTEMPTS = 3;
+
+    private static final Comparator<Rank> RANK_ORDER = Comparator
+            .comparingInt((Rank rank) -> rank.likes).reversed()
+            .thenComparingLong(rank -> rank.filmId);
+
+    private final Map<Long, Integer> likesByFilm = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<Rank> ranking = new ConcurrentSkipListSet<>(RANK_ORDER);
+    private final AtomicLong writesStarted = new AtomicLong();
+    private final AtomicLong writesFinished = new AtomicLong();
+
+    /*
+     * Метод register добавляет в рейтинг новый фильм без лайков
+     */
+    public void register(Long filmId) {
+        writesStarted.incrementAndGet();
+        try {
+            likesByFilm.computeIfAbsent(filmId, id -> {
+                ranking.add(new Rank(id, 0));
+                return 0;
+            });
+        } finally {
+            writesFinished.incrementAndGet();
+        }
+    }
+
+    public void addLike(Long filmId) {
+        changeLikes(filmId, 1);
+    }
+
+    public void deleteLike(Long filmId) {
+        changeLikes(filmId, -1);
+    }
+
+    /*
+     * Метод changeLikes меняет счетчик фильма сразу на delta, используется при пакетной записи лайков
+     */
+    public void changeLikes(Long filmId, int delta) {
+        writesStarted.incrementAndGet();
+        try {
+            likesByFilm.compute(filmId, (id, oldLikes) -> {
+                int likes = oldLikes == null ? 0 : oldLikes;
+                return move(id, oldLikes, Math.max(likes + delta, 0));
+            });
+        } finally {
+            writesFinished.incrementAndGet();
+        }
+    }
+
+    /*
+     * Метод set выставляет точное количество лайков фильма, используется при перестроении по таблице likes
+     */
+    public void set(Long filmId, int likes) {
+        writesStarted.incrementAndGet();
+        try {
+            likesByFilm.compute(filmId, (id, oldLikes) -> move(id, oldLikes, likes));
+        } finally {
+            writesFinished.incrementAndGet();
+        }
+    }
+
+    /*
+     * Метод version возвращает номер, который растет с каждым изменением счетчиков:
+     * по нему построенные из рейтинга данные узнают, что лайки изменились
+     */
+    public long version() {
+        return writesStarted.get();
+    }
+
+    public Integer getLikes(Long filmId) {
+        return likesByFilm.get(filmId);
+    }
+
+    /*
+     * Метод top возвращает id первых count фильмов рейтинга.
+     * Обход, во время которого менялся рейтинг, может пропустить поднявшийся фильм, поэтому такой обход
+     * повторяется, а если запись не затихает — рейтинг собирается по счетчикам без обхода упорядоченного множества
+     */
+    public List<Long> top(int count) {
+        for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+            long version = writesFinished.get();
+            if (writesStarted.get() != version) {
+                Thread.onSpinWait();
+                continue;
+            }
+            List<Long> filmIds = new ArrayList<>(Math.min(count, likesByFilm.size()));
+            for (Rank rank : ranking) {
+                if (filmIds.size() >= count) {
+                    break;
+                }
+                filmIds.add(rank.filmId);
+            }
+            if (writesStarted.get() == version) {
+                return filmIds;
+            }
+        }
+        return topFromCounts(count);
+    }
+
+    public int size() {
+        return likesByFilm.size();
+    }
+
+    // обход ConcurrentHashMap встречает каждый фильм ровно один раз, поэтому рейтинг полон даже при записи
+    private List<Long> topFromCounts(int count) {
+        PriorityQueue<Rank> heap = new PriorityQueue<>(RANK_ORDER.reversed());
+        for (Map.Entry<Long, Integer> entry : likesByFilm.entrySet()) {
+            heap.add(new Rank(entry.getKey(), entry.getValue()));
+            if (heap.size() > count) {
+                heap.poll();
+            }
+        }
+        List<Rank> ranks = new ArrayList<>(heap);
+        ranks.sort(RANK_ORDER);
+        List<Long> filmIds = new ArrayList<>(ranks.size());
+        for (Rank rank : ranks) {
+            filmIds.add(rank.filmId);
+        }
+        return filmIds;
+    }
+
+    // новая позиция добавляется раньше удаления старой, чтобы читатель не потерял фильм из рейтинга
+    private Integer move(Long filmId, Integer oldLikes, int newLikes) {
+        ranking.add(new Rank(filmId, newLikes));
+        if (oldLikes != null && oldLikes != newLikes) {
+            ranking.remove(new Rank(filmId, oldLikes));
+        }
+        return newLikes;
+    }
+
+    private static final class Rank {
+        private final long filmId;
+        private final int likes;
+
+        private Rank(long filmId, int likes) {
+            this.filmId = filmId;
+            this.likes = likes;
+        }
+    }
+}
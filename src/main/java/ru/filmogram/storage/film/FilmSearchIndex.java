@@ -0,0 +1,386 @@
+package ru.filmogram.storage.film;
+
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/*
+ * Класс FilmSearchIndex — инвертированный индекс по названиям и описаниям фильмов для полнотекстового поиска.
+ * Текст разбивается на слова из букв и цифр (кириллица и латиница), приводится к нижнему регистру, «ё» — к «е».
+ * Каждое слово запроса ищется как префикс слов индекса, найденными считаются фильмы со всеми словами запроса,
+ * порядок — по BM25, слова названия весят вдвое больше слов описания.
+ * Префикс раскрывается во все подходящие слова, пока их списки вместе не длиннее MAX_EXPANSION_POSTINGS;
+ * сверх этого берутся самые редкие слова (с наибольшим IDF), и совпадения по частым словам префикса
+ * в выдачу не попадают.
+ * Измененный фильм получает новый порядковый номер, а старый помечается удаленным и пропускается при поиске;
+ * когда удаленных становится больше четверти живых, номера и списки слов уплотняются
+ */
+@Component
+public class FilmSearchIndex {
+
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    private static final int TITLE_WEIGHT = 2;
+    // короткий префикс совпадает со слишком многими словами, поэтому короче MIN_PREFIX слово ищется целиком
+    private static final int MIN_PREFIX = 3;
+    private static final int MAX_EXPANSION_POSTINGS = 100_000;
+    private static final int COMPACT_MIN_DELETED = 1024;
+    private static final int MAX_QUERY_TERMS = 16;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final NavigableMap<String, Postings> postingsByTerm = new TreeMap<>();
+    private final Map<Long, Integer> ordinalsByFilm = new HashMap<>();
+    private final BitSet deleted = new BitSet();
+    private long[] filmIds = new long[1024];
+    private int[] lengths = new int[1024];
+    private int documents;
+    private int liveDocuments;
+    private long totalLength;
+
+    /*
+     * Метод index добавляет фильм в индекс или заменяет прежнюю версию фильма
+     */
+    public void index(Long filmId, String name, String description) {
+        index(List.of(new Document(filmId, name, description)));
+    }
+
+    /*
+     * Метод index добавляет пачку фильмов: разбиение текста идет параллельно вне блокировки,
+     * запись в индекс — под одной блокировкой на всю пачку
+     */
+    public void index(List<Document> batch) {
+        List<Map<String, Integer>> frequencies = new ArrayList<>(batch.size());
+        batch.parallelStream()
+                .map(FilmSearchIndex::termFrequencies)
+                .forEachOrdered(frequencies::add);
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                add(batch.get(i).filmId, frequencies.get(i));
+            }
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return liveDocuments;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    int deletedDocuments() {
+        lock.readLock().lock();
+        try {
+            return documents - liveDocuments;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * Метод search возвращает до limit id фильмов, в тексте которых есть все слова запроса, по убыванию BM25.
+     * Обход начинается с самого редкого слова: дальше учитываются только уже найденные им фильмы
+     */
+    public long[] search(String query, int limit) {
+        List<String> queryTerms = new ArrayList<>(tokenize(query));
+        if (queryTerms.isEmpty() || limit <= 0) {
+            return new long[0];
+        }
+        if (queryTerms.size() > MAX_QUERY_TERMS) {
+            queryTerms = queryTerms.subList(0, MAX_QUERY_TERMS);
+        }
+        lock.readLock().lock();
+        try {
+            List<List<Postings>> expansions = new ArrayList<>(queryTerms.size());
+            for (String term : queryTerms) {
+                List<Postings> matches = expand(term);
+                if (matches.isEmpty()) {
+                    return new long[0];
+                }
+                expansions.add(matches);
+            }
+            expansions.sort(Comparator.comparingLong(FilmSearchIndex::documentFrequency));
+
+            double averageLength = liveDocuments == 0 ? 1 : (double) totalLength / liveDocuments;
+            Scores scores = new Scores();
+            long allTerms = (1L << expansions.size()) - 1;
+            for (int i = 0; i < expansions.size(); i++) {
+                for (Postings postings : expansions.get(i)) {
+                    double idf = Math.log(1 + (liveDocuments - postings.size + 0.5) / (postings.size + 0.5));
+                    for (int p = 0; p < postings.size; p++) {
+                        int ordinal = postings.ordinals[p];
+                        if (deleted.get(ordinal)) {
+                            continue;
+                        }
+                        double tf = postings.frequencies[p];
+                        double norm = K1 * (1 - B + B * lengths[ordinal] / averageLength);
+                        scores.add(ordinal, idf * tf * (K1 + 1) / (tf + norm), 1L << i, i == 0);
+                    }
+                }
+            }
+            return scores.top(limit, allTerms, filmIds);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    static Set<String> tokenize(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        forEachTerm(text, terms::add);
+        return terms;
+    }
+
+    private static Map<String, Integer> termFrequencies(Document document) {
+        Map<String, Integer> frequencies = new HashMap<>();
+        forEachTerm(document.name, term -> frequencies.merge(term, TITLE_WEIGHT, Integer::sum));
+        forEachTerm(document.description, term -> frequencies.merge(term, 1, Integer::sum));
+        return frequencies;
+    }
+
+    private static void forEachTerm(String text, Consumer<String> consumer) {
+        if (text == null) {
+            return;
+        }
+        String normalized = text.toLowerCase(Locale.ROOT).replace('ё', 'е');
+        int start = -1;
+        for (int i = 0; i <= normalized.length(); i++) {
+            boolean letter = i < normalized.length() && Character.isLetterOrDigit(normalized.charAt(i));
+            if (letter && start < 0) {
+                start = i;
+            } else if (!letter && start >= 0) {
+                consumer.accept(normalized.substring(start, i));
+                start = -1;
+            }
+        }
+    }
+
+    private List<Postings> expand(String term) {
+        if (term.length() < MIN_PREFIX) {
+            Postings postings = postingsByTerm.get(term);
+            return postings == null ? List.of() : List.of(postings);
+        }
+        List<Postings> matches = new ArrayList<>(
+                postingsByTerm.subMap(term, true, term + Character.MAX_VALUE, false).values());
+        if (documentFrequency(matches) <= MAX_EXPANSION_POSTINGS) {
+            return matches;
+        }
+        // само слово запроса берется всегда, остальные — от самых редких, пока хватает бюджета
+        Postings exact = postingsByTerm.get(term);
+        List<Postings> rarest = new ArrayList<>();
+        long budget = MAX_EXPANSION_POSTINGS;
+        if (exact != null) {
+            rarest.add(exact);
+            budget -= exact.size;
+        }
+        matches.sort(Comparator.comparingInt(postings -> postings.size));
+        for (Postings postings : matches) {
+            if (postings.size > budget) {
+                break;
+            }
+            if (postings != exact) {
+                rarest.add(postings);
+                budget -= postings.size;
+            }
+        }
+        return rarest;
+    }
+
+    private static long documentFrequency(List<Postings> expansions) {
+        long frequency = 0;
+        for (Postings postings : expansions) {
+            frequency += postings.size;
+        }
+        return frequency;
+    }
+
+    private void add(long filmId, Map<String, Integer> frequencies) {
+        Integer previous = ordinalsByFilm.get(filmId);
+        if (previous != null) {
+            deleted.set(previous);
+            totalLength -= lengths[previous];
+            liveDocuments--;
+        }
+        if (documents == filmIds.length) {
+            filmIds = Arrays.copyOf(filmIds, documents * 2);
+            lengths = Arrays.copyOf(lengths, documents * 2);
+        }
+        int ordinal = documents++;
+        int length = 0;
+        for (Map.Entry<String, Integer> entry : frequencies.entrySet()) {
+            postingsByTerm.computeIfAbsent(entry.getKey(), term -> new Postings()).add(ordinal, entry.getValue());
+            length += entry.getValue();
+        }
+        filmIds[ordinal] = filmId;
+        lengths[ordinal] = length;
+        totalLength += length;
+        liveDocuments++;
+        ordinalsByFilm.put(filmId, ordinal);
+    }
+
+    /*
+     * Метод compactIfNeeded выбрасывает удаленные версии фильмов: живые получают номера подряд в прежнем порядке,
+     * поэтому списки слов остаются отсортированными
+     */
+    private void compactIfNeeded() {
+        int deletedCount = documents - liveDocuments;
+        if (deletedCount < COMPACT_MIN_DELETED || deletedCount * 4L < liveDocuments) {
+            return;
+        }
+        int[] remap = new int[documents];
+        int next = 0;
+        for (int ordinal = 0; ordinal < documents; ordinal++) {
+            if (deleted.get(ordinal)) {
+                remap[ordinal] = -1;
+            } else {
+                remap[ordinal] = next;
+                filmIds[next] = filmIds[ordinal];
+                lengths[next] = lengths[ordinal];
+                next++;
+            }
+        }
+        ordinalsByFilm.replaceAll((filmId, ordinal) -> remap[ordinal]);
+        postingsByTerm.values().removeIf(postings -> postings.remap(remap) == 0);
+        documents = next;
+        deleted.clear();
+    }
+
+    public static final class Document {
+        private final long filmId;
+        private final String name;
+        private final String description;
+
+        public Document(long filmId, String name, String description) {
+            this.filmId = filmId;
+            this.name = name;
+            this.description = description;
+        }
+    }
+
+    // порядковые номера фильмов растут, поэтому список слова всегда отсортирован
+    private static final class Postings {
+        private int[] ordinals = new int[4];
+        private int[] frequencies = new int[4];
+        private int size;
+
+        private void add(int ordinal, int frequency) {
+            if (size == ordinals.length) {
+                ordinals = Arrays.copyOf(ordinals, size * 2);
+                frequencies = Arrays.copyOf(frequencies, size * 2);
+            }
+            ordinals[size] = ordinal;
+            frequencies[size] = frequency;
+            size++;
+        }
+
+        private int remap(int[] remap) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                int ordinal = remap[ordinals[i]];
+                if (ordinal >= 0) {
+                    ordinals[kept] = ordinal;
+                    frequencies[kept] = frequencies[i];
+                    kept++;
+                }
+            }
+            size = kept;
+            return size;
+        }
+    }
+
+    // оценки фильмов с открытой адресацией по порядковому номеру и маска найденных слов запроса
+    private static final class Scores {
+        private int[] ordinals = new int[256];
+        private double[] scores = new double[256];
+        private long[] terms = new long[256];
+        private int size;
+
+        Scores() {
+            Arrays.fill(ordinals, -1);
+        }
+
+        private void add(int ordinal, double score, long term, boolean first) {
+            int slot = find(ordinal);
+            if (ordinals[slot] < 0) {
+                // фильм, которого нет у самого редкого слова, уже не может содержать все слова
+                if (!first) {
+                    return;
+                }
+                ordinals[slot] = ordinal;
+                if (++size * 2 > ordinals.length) {
+                    grow();
+                    slot = find(ordinal);
+                }
+            }
+            scores[slot] += score;
+            terms[slot] |= term;
+        }
+
+        private int find(int ordinal) {
+            int mask = ordinals.length - 1;
+            int slot = (ordinal * 0x9E3779B9 >>> 16) & mask;
+            while (ordinals[slot] >= 0 && ordinals[slot] != ordinal) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void grow() {
+            int[] oldOrdinals = ordinals;
+            double[] oldScores = scores;
+            long[] oldTerms = terms;
+            ordinals = new int[oldOrdinals.length * 2];
+            scores = new double[oldOrdinals.length * 2];
+            terms = new long[oldOrdinals.length * 2];
+            Arrays.fill(ordinals, -1);
+            for (int i = 0; i < oldOrdinals.length; i++) {
+                if (oldOrdinals[i] >= 0) {
+                    int slot = find(oldOrdinals[i]);
+                    ordinals[slot] = oldOrdinals[i];
+                    scores[slot] = oldScores[i];
+                    terms[slot] = oldTerms[i];
+                }
+            }
+        }
+
+        private long[] top(int limit, long allTerms, long[] filmIds) {
+            Comparator<Integer> worstFirst = Comparator.<Integer>comparingDouble(slot -> scores[slot])
+                    .thenComparing(Comparator.<Integer>comparingLong(slot -> filmIds[ordinals[slot]]).reversed());
+            PriorityQueue<Integer> best = new PriorityQueue<>(limit + 1, worstFirst);
+            for (int slot = 0; slot < ordinals.length; slot++) {
+                if (ordinals[slot] < 0 || terms[slot] != allTerms) {
+                    continue;
+                }
+                best.add(slot);
+                if (best.size() > limit) {
+                    best.poll();
+                }
+            }
+            List<Integer> ranked = new ArrayList<>(best);
+            ranked.sort(worstFirst.reversed());
+            long[] ids = new long[ranked.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = filmIds[ordinals[ranked.get(i)]];
+            }
+            return ids;
+        }
+    }
+}
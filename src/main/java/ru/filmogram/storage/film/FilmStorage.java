@@ -3,14 +3,27 @@ package ru.filmogram.storage.film;
 import ru.filmogram.exceptions.ObjectNotFoundException;
 import ru.filmogram.exceptions.ValidationException;
 import ru.filmogram.model.Film;
+import ru.filmogram.model.FilmChanges;
+import ru.filmogram.model.FilmFacetPage;
+import ru.filmogram.model.FilmFilter;
 
 import java.util.List;
+import java.util.function.Consumer;
 
 public interface FilmStorage {
     List<Film> findAllFilm();
 
+    List<Film> findFilmsAfter(Long afterId, int limit);
+
+    void streamAllFilm(Consumer<Film> consumer);
+
+    void streamPopularFilm(Integer count, Consumer<Film> consumer) throws ValidationException;
+
     Film createFilm(Film film) throws ValidationException;
 
+    // фильмы сохраняются одной транзакцией, записи должны быть проверены заранее
+    List<Film> createFilms(List<Film> films);
+
     Film updateFilm(Film film) throws ValidationException;
 
     boolean addLikeFilm(Long id, Long userId) throws ObjectNotFoundException, ValidationException;
@@ -19,7 +32,31 @@ public interface FilmStorage {
 
     List<Film> sortPopularFilm(Integer count) throws ValidationException;
 
+    // самые популярные фильмы жанра genreId, рейтинга mpaId и года выхода year, пустой фильтр не ограничивает выборку
+    List<Film> sortPopularFilm(Integer count, Long genreId, Long mpaId, Integer year) throws ValidationException;
+
     List<Film> getAllPopular();
 
+    // не более count фильмов, собравших больше всего лайков за окно window
+    List<Film> getTrendingFilms(TrendingFilmsIndex.Window window, int count);
+
+    // не более limit фильмов, созданных, измененных или с изменившимися лайками после номера изменения since
+    FilmChanges getFilmChanges(Long since, int limit);
+
+    // не более limit фильмов, которые лайкали похожие на userId пользователи, а он сам еще нет
+    List<Film> getRecommendations(Long userId, int limit);
+
     Film getFilmId(Long id);
+
+    // не более limit фильмов, которые чаще всего лайкали вместе с фильмом id
+    List<Film> getSimilarFilms(Long id, int limit);
+
+    // не более limit фильмов, в названии или описании которых есть все слова запроса, по убыванию релевантности
+    List<Film> searchFilms(String query, int limit);
+
+    // не более limit самых популярных фильмов, название которых начинается с prefix
+    List<Film> autocompleteFilms(String prefix, int limit);
+
+    // первые limit фильмов, подходящих под фильтр, и число фильмов по жанрам, рейтингам и десятилетиям
+    FilmFacetPage filterFilms(FilmFilter filter, int limit);
 }
@@ -0,0 +1,331 @@
+package ru.filmogram.storage.film;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Класс FilmTitleIndex подсказывает названия фильмов по началу названия.
+ * Снимок — отсортированный массив нормализованных названий (нижний регистр, «ё» -> «е», одиночные пробелы),
+ * префикс находится в нем двумя бинарными поисками. Для префиксов, под которые попадает больше SCAN_LIMIT названий,
+ * при построении снимка запоминаются topK самых популярных фильмов, меньшие диапазоны просматриваются целиком.
+ * Новые и переименованные фильмы до следующего перестроения лежат в отдельной карте и перекрывают снимок
+ */
+@Component
+@Slf4j
+public class FilmTitleIndex {
+
+    // диапазон такого размера дешевле просмотреть, чем хранить для него отдельный список
+    private static final int SCAN_LIMIT = 256;
+
+    private final FilmPopularityIndex popularityIndex;
+    private final int topK;
+
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+    private final Map<Long, String> changed = new ConcurrentHashMap<>();
+    // версия рейтинга, по которой собраны списки популярных фильмов текущего снимка
+    private volatile long likesVersion = -1;
+
+    public FilmTitleIndex(FilmPopularityIndex popularityIndex,
+                          @Value("${filmorate.autocomplete.top-k}") int topK) {
+        this.popularityIndex = popularityIndex;
+        this.topK = topK;
+    }
+
+    public int topK() {
+        return topK;
+    }
+
+    /*
+     * Метод put запоминает название нового или переименованного фильма до следующего перестроения снимка
+     */
+    public void put(Long filmId, String name) {
+        changed.put(filmId, normalize(name));
+    }
+
+    /*
+     * Метод replace строит снимок по названиям, прочитанным из таблицы film,
+     * и убирает из карты изменений вошедшие в него названия
+     */
+    public void replace(Map<Long, String> names) {
+        List<Title> titles = new ArrayList<>(names.size());
+        names.forEach((filmId, name) -> titles.add(new Title(normalize(name), filmId)));
+        titles.sort(null);
+        String[] sortedTitles = new String[titles.size()];
+        long[] filmIds = new long[titles.size()];
+        for (int i = 0; i < sortedTitles.length; i++) {
+            sortedTitles[i] = titles.get(i).title;
+            filmIds[i] = titles.get(i).filmId;
+        }
+        build(sortedTitles, filmIds);
+    }
+
+    /*
+     * Метод rebuild пересобирает снимок вместе с накопленными изменениями,
+     * заодно обновляя списки популярных фильмов по текущим лайкам.
+     * Снимок не пересобирается, только если с прошлой сборки не было ни новых названий, ни изменений лайков
+     */
+    @Scheduled(fixedDelayString = "${filmorate.autocomplete.rebuild-delay-ms}")
+    public void rebuild() {
+        if (changed.isEmpty() && popularityIndex.version() == likesVersion) {
+            return;
+        }
+        Snapshot current = snapshot;
+        build(current.titles, current.filmIds);
+    }
+
+    /*
+     * Метод suggest возвращает до limit id фильмов, название которых начинается с prefix,
+     * по убыванию числа лайков, при равенстве — по возрастанию id
+     */
+    public long[] suggest(String prefix, int limit) {
+        String normalized = normalize(prefix);
+        if (normalized.isEmpty() || limit <= 0) {
+            return new long[0];
+        }
+        Snapshot current = snapshot;
+        int from = current.lowerBound(normalized);
+        int to = current.lowerBound(normalized + Character.MAX_VALUE);
+
+        List<Long> candidates = new ArrayList<>();
+        long[] popular = to - from > SCAN_LIMIT ? current.popular.get(normalized) : null;
+        if (popular != null) {
+            for (long filmId : popular) {
+                if (!changed.containsKey(filmId)) {
+                    candidates.add(filmId);
+                }
+            }
+        }
+        // список префикса мог поредеть из-за переименований, тогда диапазон просматривается целиком
+        if (popular == null || candidates.size() < Math.min(limit, popular.length)) {
+            candidates.clear();
+            for (int i = from; i < to; i++) {
+                if (!changed.containsKey(current.filmIds[i])) {
+                    candidates.add(current.filmIds[i]);
+                }
+            }
+        }
+        for (Map.Entry<Long, String> entry : changed.entrySet()) {
+            if (entry.getValue().startsWith(normalized)) {
+                candidates.add(entry.getKey());
+            }
+        }
+
+        return top(candidates, limit).stream().mapToLong(Long::longValue).toArray();
+    }
+
+    static String normalize(String title) {
+        if (title == null) {
+            return "";
+        }
+        StringBuilder normalized = new StringBuilder(title.length());
+        boolean space = false;
+        for (int i = 0; i < title.length(); i++) {
+            char c = title.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = normalized.length() > 0;
+                continue;
+            }
+            if (space) {
+                normalized.append(' ');
+                space = false;
+            }
+            c = Character.toLowerCase(c);
+            normalized.append(c == 'ё' ? 'е' : c);
+        }
+        return normalized.toString();
+    }
+
+    // отсортированный снимок сливается с отсортированными изменениями, полная сортировка нужна только при замене
+    private void build(String[] baseTitles, long[] baseIds) {
+        // версия читается до лайков: like во время сборки оставит снимок устаревшим до следующего перестроения
+        long version = popularityIndex.version();
+        Map<Long, String> included = new HashMap<>(changed);
+        List<Title> changes = new ArrayList<>(included.size());
+        included.forEach((filmId, title) -> changes.add(new Title(title, filmId)));
+        changes.sort(null);
+
+        int size = changes.size();
+        for (long filmId : baseIds) {
+            if (!included.containsKey(filmId)) {
+                size++;
+            }
+        }
+        String[] sortedTitles = new String[size];
+        long[] filmIds = new long[size];
+        int[] likes = new int[size];
+        int base = 0;
+        int change = 0;
+        for (int i = 0; i < size; i++) {
+            while (base < baseIds.length && included.containsKey(baseIds[base])) {
+                base++;
+            }
+            boolean fromBase = change == changes.size() || base < baseIds.length
+                    && new Title(baseTitles[base], baseIds[base]).compareTo(changes.get(change)) < 0;
+            if (fromBase) {
+                sortedTitles[i] = baseTitles[base];
+                filmIds[i] = baseIds[base++];
+            } else {
+                sortedTitles[i] = changes.get(change).title;
+                filmIds[i] = changes.get(change++).filmId;
+            }
+            Integer filmLikes = popularityIndex.getLikes(filmIds[i]);
+            likes[i] = filmLikes == null ? 0 : filmLikes;
+        }
+        Map<String, long[]> popular = new HashMap<>();
+        collectPopular(sortedTitles, filmIds, likes, 0, size, 0, popular);
+
+        snapshot = new Snapshot(sortedTitles, filmIds, popular);
+        likesVersion = version;
+        // название, измененное во время сборки, остается в карте до следующего перестроения
+        included.forEach((filmId, title) -> changed.remove(filmId, title));
+        log.info("Индекс названий построен по {} фильмам, списков префиксов {}", size, popular.size());
+    }
+
+    /*
+     * Метод collectPopular возвращает позиции topK самых популярных названий диапазона [from, to) с общим
+     * префиксом длины depth. Список большого диапазона собирается из списков его дочерних префиксов,
+     * поэтому каждое название сравнивается при построении только в своем нижнем узле
+     */
+    private int[] collectPopular(String[] titles, long[] filmIds, int[] likes, int from, int to, int depth,
+                                 Map<String, long[]> popular) {
+        if (to - from <= SCAN_LIMIT) {
+            int[] positions = new int[to - from];
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = from + i;
+            }
+            return best(positions, positions.length, filmIds, likes);
+        }
+        int[] candidates = new int[SCAN_LIMIT];
+        int size = 0;
+        // названия длиной ровно depth стоят в начале диапазона
+        int start = from;
+        while (start < to && titles[start].length() == depth) {
+            if (size == candidates.length) {
+                candidates = Arrays.copyOf(candidates, size * 2);
+            }
+            candidates[size++] = start++;
+        }
+        while (start < to) {
+            char next = titles[start].charAt(depth);
+            int end = start;
+            while (end < to && titles[end].charAt(depth) == next) {
+                end++;
+            }
+            int[] child = collectPopular(titles, filmIds, likes, start, end, depth + 1, popular);
+            if (size + child.length > candidates.length) {
+                candidates = Arrays.copyOf(candidates, Math.max(candidates.length * 2, size + child.length));
+            }
+            System.arraycopy(child, 0, candidates, size, child.length);
+            size += child.length;
+            start = end;
+        }
+        int[] best = best(candidates, size, filmIds, likes);
+        if (depth > 0) {
+            long[] bestIds = new long[best.length];
+            for (int i = 0; i < best.length; i++) {
+                bestIds[i] = filmIds[best[i]];
+            }
+            popular.put(titles[from].substring(0, depth), bestIds);
+        }
+        return best;
+    }
+
+    // лучшие topK позиций держатся отсортированными по убыванию лайков, вставка — сдвигом
+    private int[] best(int[] positions, int size, long[] filmIds, int[] likes) {
+        int[] best = new int[Math.min(topK, size)];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            int candidate = positions[i];
+            if (count == best.length && !isBetter(candidate, best[count - 1], filmIds, likes)) {
+                continue;
+            }
+            int position = count == best.length ? count - 1 : count++;
+            while (position > 0 && isBetter(candidate, best[position - 1], filmIds, likes)) {
+                best[position] = best[position - 1];
+                position--;
+            }
+            best[position] = candidate;
+        }
+        return best;
+    }
+
+    private static boolean isBetter(int position, int other, long[] filmIds, int[] likes) {
+        return likes[position] > likes[other] || likes[position] == likes[other] && filmIds[position] < filmIds[other];
+    }
+
+    // лайки читаются один раз на кандидата: счетчик, изменившийся во время сортировки, нарушил бы ее порядок
+    private List<Long> top(List<Long> filmIds, int limit) {
+        Map<Long, Integer> likes = new HashMap<>(filmIds.size() * 2);
+        for (Long filmId : filmIds) {
+            Integer filmLikes = popularityIndex.getLikes(filmId);
+            likes.put(filmId, filmLikes == null ? 0 : filmLikes);
+        }
+        Comparator<Long> popularFirst = Comparator.comparingInt((Long filmId) -> likes.get(filmId)).reversed()
+                .thenComparingLong(filmId -> filmId);
+        PriorityQueue<Long> best = new PriorityQueue<>(limit + 1, popularFirst.reversed());
+        for (Long filmId : likes.keySet()) {
+            best.add(filmId);
+            if (best.size() > limit) {
+                best.poll();
+            }
+        }
+        List<Long> ranked = new ArrayList<>(best);
+        ranked.sort(popularFirst);
+        return ranked;
+    }
+
+    private static final class Title implements Comparable<Title> {
+        private final String title;
+        private final long filmId;
+
+        private Title(String title, long filmId) {
+            this.title = title;
+            this.filmId = filmId;
+        }
+
+        @Override
+        public int compareTo(Title other) {
+            int byTitle = title.compareTo(other.title);
+            return byTitle != 0 ? byTitle : Long.compare(filmId, other.filmId);
+        }
+    }
+
+    private static final class Snapshot {
+        private static final Snapshot EMPTY = new Snapshot(new String[0], new long[0], Map.of());
+
+        private final String[] titles;
+        private final long[] filmIds;
+        private final Map<String, long[]> popular;
+
+        private Snapshot(String[] titles, long[] filmIds, Map<String, long[]> popular) {
+            this.titles = titles;
+            this.filmIds = filmIds;
+            this.popular = popular;
+        }
+
+        private int lowerBound(String key) {
+            int low = 0;
+            int high = titles.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (titles[middle].compareTo(key) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+}
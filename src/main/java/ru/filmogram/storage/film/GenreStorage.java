@@ -9,4 +9,6 @@ public interface GenreStorage {
     List<Genre> findAllGenres();
 
     Genre getGenre(Long id);
+
+    void refresh();
 }
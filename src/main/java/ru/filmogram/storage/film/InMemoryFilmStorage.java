@@ -5,24 +5,58 @@ import org.springframework.stereotype.Component;
 import ru.filmogram.exceptions.ObjectNotFoundException;
 import ru.filmogram.exceptions.ValidationException;
 import ru.filmogram.model.Film;
+import ru.filmogram.model.FilmChanges;
+import ru.filmogram.model.FilmFacetPage;
+import ru.filmogram.model.FilmFilter;
+import ru.filmogram.model.Genre;
 
+import java.time.Instant;
 import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
+import static ru.filmogram.util.Util.encodeChangeToken;
+
 @Component
 @Slf4j
 public class InMemoryFilmStorage implements FilmStorage {
 
     private HashMap<Long, Film> films = new HashMap<>();
+    // время лайка по фильму и пользователю, нужно только для трендов
+    private final Map<Long, Map<Long, Instant>> likedAt = new HashMap<>();
 
     @Override
     public List<Film> findAllFilm() {
         return new ArrayList<Film>(films.values());
     }
 
+    @Override
+    public List<Film> findFilmsAfter(Long afterId, int limit) {
+        return films.values()
+                .stream()
+                .filter(film -> film.getId() > afterId)
+                .sorted(Comparator.comparing(Film::getId))
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public void streamAllFilm(Consumer<Film> consumer) {
+        films.values().forEach(consumer);
+    }
+
+    @Override
+    public void streamPopularFilm(Integer count, Consumer<Film> consumer) throws ValidationException {
+        sortPopularFilm(count).forEach(consumer);
+    }
+
     @Override
     public Film createFilm(Film film) throws ValidationException {
         Film afterCheckFilm = standardCheck(film);
@@ -32,6 +66,16 @@ public class InMemoryFilmStorage implements FilmStorage {
         return afterCheckFilm;
     }
 
+    @Override
+    public List<Film> createFilms(List<Film> newFilms) {
+        for (Film film : newFilms) {
+            film.assignId();
+            films.put(film.getId(), film);
+        }
+        log.info("Добавлено фильмов: {}", newFilms.size());
+        return newFilms;
+    }
+
     @Override
     public Film updateFilm(Film film) throws ValidationException {
         Film afterCheckFilm = standardCheck(film);
@@ -50,6 +94,7 @@ public class InMemoryFilmStorage implements FilmStorage {
         }
         Film film = films.get(id);
         film.addLike(userId);
+        likedAt.computeIfAbsent(id, filmId -> new HashMap<>()).putIfAbsent(userId, Instant.now());
         return true;
     }
 
@@ -59,6 +104,7 @@ public class InMemoryFilmStorage implements FilmStorage {
             throw new ObjectNotFoundException("Такой пользователь не существует");
         }
         films.get(id).deleteLike(userId);
+        likedAt.getOrDefault(id, new HashMap<>()).remove(userId);
         return true;
     }
 
@@ -78,6 +124,55 @@ public class InMemoryFilmStorage implements FilmStorage {
         return sortFilms.subList(0, count);
     }
 
+    @Override
+    public List<Film> sortPopularFilm(Integer count, Long genreId, Long mpaId, Integer year)
+            throws ValidationException {
+        FilmFilter filter = FilmFilter.builder()
+                .genres(genreId == null ? Set.of() : Set.of(genreId))
+                .mpa(mpaId == null ? Set.of() : Set.of(mpaId))
+                .yearFrom(year)
+                .yearTo(year)
+                .build();
+        if (count != null && count < 0) {
+            throw new ValidationException("Значение не может быть отрицательным");
+        }
+        return films.values()
+                .stream()
+                .filter(film -> matchesGenres(film, filter) && matchesMpa(film, filter) && matchesYear(film, filter))
+                .sorted()
+                .limit(count == null || count == 0 ? 10 : count)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<Film> getTrendingFilms(TrendingFilmsIndex.Window window, int count) {
+        Instant from = Instant.now().minus(window.getDuration());
+        Map<Long, Long> likes = new HashMap<>();
+        likedAt.forEach((filmId, times) -> {
+            long recent = times.values().stream().filter(time -> time.isAfter(from)).count();
+            if (recent > 0) {
+                likes.put(filmId, recent);
+            }
+        });
+        return likes.keySet()
+                .stream()
+                .sorted(Comparator.comparing((Long filmId) -> likes.get(filmId)).reversed()
+                        .thenComparing(filmId -> filmId))
+                .limit(count)
+                .map(films::get)
+                .collect(Collectors.toList());
+    }
+
+    // журнал изменений в памяти не ведется, поэтому клиенту всегда нужна полная загрузка
+    @Override
+    public FilmChanges getFilmChanges(Long since, int limit) {
+        return FilmChanges.builder()
+                .items(new ArrayList<>())
+                .next(encodeChangeToken(0L))
+                .resync(true)
+                .build();
+    }
+
     @Override
     public List<Film> getAllPopular() {
         return films.values()
@@ -86,6 +181,40 @@ public class InMemoryFilmStorage implements FilmStorage {
                 .collect(Collectors.toList());
     }
 
+    @Override
+    public List<Film> getRecommendations(Long userId, int limit) {
+        Set<Long> likedFilms = films.values()
+                .stream()
+                .filter(film -> film.getLikes() != null && film.getLikes().contains(userId))
+                .map(Film::getId)
+                .collect(Collectors.toSet());
+        Map<Long, Integer> overlaps = new HashMap<>();
+        for (Long filmId : likedFilms) {
+            for (Long otherId : films.get(filmId).getLikes()) {
+                if (!otherId.equals(userId)) {
+                    overlaps.merge(otherId, 1, Integer::sum);
+                }
+            }
+        }
+        Map<Long, Long> scores = new HashMap<>();
+        for (Film film : films.values()) {
+            if (film.getLikes() == null || likedFilms.contains(film.getId())) {
+                continue;
+            }
+            for (Long otherId : film.getLikes()) {
+                scores.merge(film.getId(), (long) overlaps.getOrDefault(otherId, 0), Long::sum);
+            }
+        }
+        return scores.entrySet()
+                .stream()
+                .filter(entry -> entry.getValue() > 0)
+                .sorted(Map.Entry.<Long, Long>comparingByValue().reversed()
+                        .thenComparing(Map.Entry.comparingByKey()))
+                .limit(limit)
+                .map(entry -> films.get(entry.getKey()))
+                .collect(Collectors.toList());
+    }
+
     @Override
     public Film getFilmId(Long id) {
         if (films.containsKey(id)) {
@@ -94,6 +223,120 @@ public class InMemoryFilmStorage implements FilmStorage {
         throw new ObjectNotFoundException("Фильм не найден");
     }
 
+    @Override
+    public List<Film> getSimilarFilms(Long id, int limit) {
+        Set<Long> likes = getFilmId(id).getLikes() == null ? Set.of() : films.get(id).getLikes();
+        Map<Long, Double> scores = new HashMap<>();
+        for (Film film : films.values()) {
+            if (film.getId().equals(id) || film.getLikes() == null) {
+                continue;
+            }
+            long common = film.getLikes().stream().filter(likes::contains).count();
+            if (common > 0) {
+                scores.put(film.getId(), (double) common / (likes.size() + film.getLikes().size() - common));
+            }
+        }
+        return scores.entrySet()
+                .stream()
+                .sorted(Map.Entry.<Long, Double>comparingByValue().reversed()
+                        .thenComparing(Map.Entry.comparingByKey()))
+                .limit(limit)
+                .map(entry -> films.get(entry.getKey()))
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<Film> searchFilms(String query, int limit) {
+        Set<String> terms = FilmSearchIndex.tokenize(query);
+        return films.values()
+                .stream()
+                .filter(film -> {
+                    Set<String> words = FilmSearchIndex.tokenize(film.getName() + " " + film.getDescription());
+                    return terms.stream().allMatch(term -> words.stream().anyMatch(word -> word.startsWith(term)));
+                })
+                .sorted(Comparator.comparing(Film::getId))
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<Film> autocompleteFilms(String prefix, int limit) {
+        String normalized = FilmTitleIndex.normalize(prefix);
+        return films.values()
+                .stream()
+                .filter(film -> FilmTitleIndex.normalize(film.getName()).startsWith(normalized))
+                .sorted(Comparator.comparing((Film film) -> film.getLikes() == null ? 0 : film.getLikes().size())
+                        .reversed()
+                        .thenComparing(Film::getId))
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public FilmFacetPage filterFilms(FilmFilter filter, int limit) {
+        Comparator<Film> order = filter.isPopular()
+                ? Comparator.comparing((Film film) -> film.getLikes() == null ? 0 : film.getLikes().size())
+                        .reversed()
+                        .thenComparing(Film::getId)
+                : Comparator.comparing(Film::getId);
+        List<Film> matches = films.values()
+                .stream()
+                .filter(film -> matchesGenres(film, filter) && matchesMpa(film, filter) && matchesYear(film, filter))
+                .sorted(order)
+                .collect(Collectors.toList());
+
+        Map<Long, Integer> genres = new TreeMap<>();
+        Map<Long, Integer> mpa = new TreeMap<>();
+        Map<Integer, Integer> decades = new TreeMap<>();
+        for (Film film : films.values()) {
+            if (matchesMpa(film, filter) && matchesYear(film, filter) && film.getGenres() != null) {
+                film.getGenres().forEach(genre -> genres.merge(genre.getId(), 1, Integer::sum));
+            }
+            if (matchesGenres(film, filter) && matchesYear(film, filter) && film.getMpa() != null) {
+                mpa.merge(film.getMpa().getId(), 1, Integer::sum);
+            }
+            if (matchesGenres(film, filter) && matchesMpa(film, filter) && film.getReleaseDate() != null) {
+                decades.merge(Math.floorDiv(film.getReleaseDate().getYear(), 10) * 10, 1, Integer::sum);
+            }
+        }
+        return FilmFacetPage.builder()
+                .items(matches.stream().limit(limit).collect(Collectors.toList()))
+                .total(matches.size())
+                .genres(genres)
+                .mpa(mpa)
+                .decades(decades)
+                .build();
+    }
+
+    private static boolean matchesGenres(Film film, FilmFilter filter) {
+        if (filter.getGenres() == null || filter.getGenres().isEmpty()) {
+            return true;
+        }
+        return film.getGenres() != null && film.getGenres()
+                .stream()
+                .map(Genre::getId)
+                .anyMatch(filter.getGenres()::contains);
+    }
+
+    private static boolean matchesMpa(Film film, FilmFilter filter) {
+        if (filter.getMpa() == null || filter.getMpa().isEmpty()) {
+            return true;
+        }
+        return film.getMpa() != null && filter.getMpa().contains(film.getMpa().getId());
+    }
+
+    private static boolean matchesYear(Film film, FilmFilter filter) {
+        if (filter.getYearFrom() == null && filter.getYearTo() == null) {
+            return true;
+        }
+        if (film.getReleaseDate() == null) {
+            return false;
+        }
+        int year = film.getReleaseDate().getYear();
+        return (filter.getYearFrom() == null || year >= filter.getYearFrom())
+                && (filter.getYearTo() == null || year <= filter.getYearTo());
+    }
+
     private Film standardCheck(Film film) throws ValidationException {
         if (film.getName() == null || film.getName().isBlank() || film.getName().isEmpty()) {
             log.error("Название фильма не может быть пустым: {}", film);
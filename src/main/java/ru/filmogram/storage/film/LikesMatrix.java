@@ -0,0 +1,375 @@
+package ru.filmogram.storage.film;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.filmogram.util.OrdinalCounts;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.LongConsumer;
+
+/*
+ * Класс LikesMatrix хранит разреженную матрицу лайков пользователь × фильм в памяти.
+ * Строка пользователя — отсортированный массив id фильмов, столбец фильма — отсортированный массив
+ * порядковых номеров пользователей, чтобы пересечения считались в счетчики OrdinalCounts без упаковки чисел.
+ * Матрица строится по таблице likes при старте и дальше меняется по каждому записанному like/unlike
+ */
+@Component
+public class LikesMatrix {
+
+    // лайки столбцов, начиная с которых подсчет похожих пользователей делится на задачи fork/join
+    private static final int PARALLEL_POSTINGS = 50_000;
+
+    private static final Comparator<Score> WORST_FIRST = Comparator
+            .comparingLong((Score score) -> score.score)
+            .thenComparing(Comparator.comparingLong((Score score) -> score.id).reversed());
+
+    // сколько самых похожих пользователей участвует в рекомендации
+    private final int neighbours;
+    // сколько лайков столбцов можно просмотреть на один запрос
+    private final int maxPostings;
+
+    private final Map<Long, long[]> filmsByUser = new ConcurrentHashMap<>();
+    private final Map<Long, int[]> usersByFilm = new ConcurrentHashMap<>();
+    private final Map<Long, Integer> userOrdinals = new ConcurrentHashMap<>();
+    private volatile long[] userIds = new long[1024];
+    private volatile int userCount;
+
+    public LikesMatrix(@Value("${filmorate.recommendations.neighbours}") int neighbours,
+                       @Value("${filmorate.recommendations.max-postings}") int maxPostings) {
+        this.neighbours = neighbours;
+        this.maxPostings = maxPostings;
+    }
+
+    public Loader loader() {
+        return new Loader();
+    }
+
+    public void like(Long filmId, Long userId) {
+        int ordinal = userOrdinals.computeIfAbsent(userId, this::newOrdinal);
+        filmsByUser.compute(userId, (id, filmIds) -> insert(filmIds, filmId));
+        usersByFilm.compute(filmId, (id, ordinals) -> insert(ordinals, ordinal));
+    }
+
+    public void unlike(Long filmId, Long userId) {
+        Integer ordinal = userOrdinals.get(userId);
+        if (ordinal == null) {
+            return;
+        }
+        filmsByUser.computeIfPresent(userId, (id, filmIds) -> remove(filmIds, filmId));
+        usersByFilm.computeIfPresent(filmId, (id, ordinals) -> remove(ordinals, ordinal));
+    }
+
+    public long[] filmsOf(Long userId) {
+        long[] filmIds = filmsByUser.get(userId);
+        return filmIds == null ? new long[0] : filmIds.clone();
+    }
+
+    public int likesOf(Long filmId) {
+        int[] ordinals = usersByFilm.get(filmId);
+        return ordinals == null ? 0 : ordinals.length;
+    }
+
+    // id фильмов, у которых есть хотя бы один like
+    public long[] likedFilms() {
+        return usersByFilm.keySet().stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /*
+     * Метод forEachCoLike передает consumer каждый фильм, лайкнутый каждым пользователем, который лайкнул filmId,
+     * включая сам filmId; число появлений фильма равно числу общих лайков
+     */
+    public void forEachCoLike(Long filmId, LongConsumer consumer) {
+        int[] ordinals = usersByFilm.get(filmId);
+        if (ordinals == null) {
+            return;
+        }
+        long[] ids = userIds;
+        for (int ordinal : ordinals) {
+            long[] filmIds = filmsByUser.get(ids[ordinal]);
+            if (filmIds != null) {
+                for (long coLiked : filmIds) {
+                    consumer.accept(coLiked);
+                }
+            }
+        }
+    }
+
+    /*
+     * Метод recommend возвращает до limit id фильмов, которые лайкнули самые похожие на userId пользователи
+     * и не лайкнул он сам. Похожесть — число общих лайков; у фильма суммируется похожесть лайкнувших его соседей.
+     * Просмотр ограничен maxPostings лайками: сначала идут самые редкие фильмы пользователя, которые
+     * точнее всего отличают похожих пользователей и дешевле всего в обходе
+     */
+    public long[] recommend(Long userId, int limit) {
+        long[] likedFilms = filmsByUser.get(userId);
+        Integer ordinal = userOrdinals.get(userId);
+        if (likedFilms == null || likedFilms.length == 0 || ordinal == null || limit <= 0) {
+            return new long[0];
+        }
+        List<int[]> columns = columnsWithinBudget(likedFilms);
+        int postings = 0;
+        for (int[] column : columns) {
+            postings += column.length;
+        }
+        int users = userCount;
+        int parallelism = ForkJoinPool.getCommonPoolParallelism();
+        boolean parallel = postings >= PARALLEL_POSTINGS && parallelism > 1;
+        // у каждой задачи свои счетчики, которые потом складываются, поэтому задач не больше, чем потоков
+        int taskPostings = parallel ? (postings + parallelism - 1) / parallelism : postings;
+        OverlapTask task = new OverlapTask(columns, 0, columns.size(), users, taskPostings);
+        OrdinalCounts overlaps = parallel ? ForkJoinPool.commonPool().invoke(task) : task.compute();
+
+        long[] ids = userIds;
+        PriorityQueue<Score> similar = new PriorityQueue<>(neighbours + 1, WORST_FIRST);
+        overlaps.forEach((other, overlap) -> {
+            if (other != ordinal) {
+                offer(similar, neighbours, ids[other], overlap);
+            }
+        });
+
+        Map<Long, Long> filmScores = new HashMap<>();
+        for (Score neighbour : similar) {
+            long[] filmIds = filmsByUser.get(neighbour.id);
+            if (filmIds == null) {
+                continue;
+            }
+            for (long filmId : filmIds) {
+                if (Arrays.binarySearch(likedFilms, filmId) < 0) {
+                    filmScores.merge(filmId, neighbour.score, Long::sum);
+                }
+            }
+        }
+        PriorityQueue<Score> best = new PriorityQueue<>(limit + 1, WORST_FIRST);
+        filmScores.forEach((filmId, score) -> offer(best, limit, filmId, score));
+        return ranked(best);
+    }
+
+    private List<int[]> columnsWithinBudget(long[] likedFilms) {
+        List<int[]> columns = new ArrayList<>(likedFilms.length);
+        for (long filmId : likedFilms) {
+            int[] column = usersByFilm.get(filmId);
+            if (column != null) {
+                columns.add(column);
+            }
+        }
+        columns.sort(Comparator.comparingInt(column -> column.length));
+        int postings = 0;
+        for (int i = 0; i < columns.size(); i++) {
+            postings += columns.get(i).length;
+            if (postings > maxPostings) {
+                return columns.subList(0, Math.max(i, 1));
+            }
+        }
+        return columns;
+    }
+
+    private static void offer(PriorityQueue<Score> best, int limit, long id, long score) {
+        if (best.size() < limit) {
+            best.add(new Score(id, score));
+            return;
+        }
+        Score worst = best.peek();
+        if (score > worst.score || score == worst.score && id < worst.id) {
+            best.poll();
+            best.add(new Score(id, score));
+        }
+    }
+
+    private static long[] ranked(PriorityQueue<Score> best) {
+        List<Score> scores = new ArrayList<>(best);
+        scores.sort(WORST_FIRST.reversed());
+        long[] ids = new long[scores.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = scores.get(i).id;
+        }
+        return ids;
+    }
+
+    private synchronized int newOrdinal(Long userId) {
+        if (userCount == userIds.length) {
+            userIds = Arrays.copyOf(userIds, userCount * 2);
+        }
+        userIds[userCount] = userId;
+        return userCount++;
+    }
+
+    private static long[] insert(long[] values, long value) {
+        if (values == null) {
+            return new long[]{value};
+        }
+        int position = Arrays.binarySearch(values, value);
+        if (position >= 0) {
+            return values;
+        }
+        int insertAt = -position - 1;
+        long[] updated = new long[values.length + 1];
+        System.arraycopy(values, 0, updated, 0, insertAt);
+        updated[insertAt] = value;
+        System.arraycopy(values, insertAt, updated, insertAt + 1, values.length - insertAt);
+        return updated;
+    }
+
+    private static int[] insert(int[] values, int value) {
+        if (values == null) {
+            return new int[]{value};
+        }
+        int position = Arrays.binarySearch(values, value);
+        if (position >= 0) {
+            return values;
+        }
+        int insertAt = -position - 1;
+        int[] updated = new int[values.length + 1];
+        System.arraycopy(values, 0, updated, 0, insertAt);
+        updated[insertAt] = value;
+        System.arraycopy(values, insertAt, updated, insertAt + 1, values.length - insertAt);
+        return updated;
+    }
+
+    // пустая строка или столбец удаляется из карты
+    private static long[] remove(long[] values, long value) {
+        int position = Arrays.binarySearch(values, value);
+        if (position < 0) {
+            return values;
+        }
+        if (values.length == 1) {
+            return null;
+        }
+        long[] updated = new long[values.length - 1];
+        System.arraycopy(values, 0, updated, 0, position);
+        System.arraycopy(values, position + 1, updated, position, updated.length - position);
+        return updated;
+    }
+
+    private static int[] remove(int[] values, int value) {
+        int position = Arrays.binarySearch(values, value);
+        if (position < 0) {
+            return values;
+        }
+        if (values.length == 1) {
+            return null;
+        }
+        int[] updated = new int[values.length - 1];
+        System.arraycopy(values, 0, updated, 0, position);
+        System.arraycopy(values, position + 1, updated, position, updated.length - position);
+        return updated;
+    }
+
+    /*
+     * Класс Loader заполняет пустую матрицу при старте строками likes, упорядоченными по film_id и user_id:
+     * столбцы собираются целиком, строки пользователей дописываются в конец, без вставки в середину массива
+     */
+    public final class Loader {
+        private final Map<Long, Row> rows = new HashMap<>();
+        private long filmId = -1;
+        private int[] column = new int[16];
+        private int columnSize;
+        private int likes;
+
+        public void add(long filmId, long userId) {
+            if (filmId != this.filmId) {
+                flushColumn();
+                this.filmId = filmId;
+            }
+            int ordinal = userOrdinals.computeIfAbsent(userId, LikesMatrix.this::newOrdinal);
+            if (columnSize == column.length) {
+                column = Arrays.copyOf(column, columnSize * 2);
+            }
+            column[columnSize++] = ordinal;
+            rows.computeIfAbsent(userId, id -> new Row()).add(filmId);
+            likes++;
+        }
+
+        public int finish() {
+            flushColumn();
+            rows.forEach((userId, row) -> filmsByUser.put(userId, Arrays.copyOf(row.filmIds, row.size)));
+            return likes;
+        }
+
+        private void flushColumn() {
+            if (columnSize > 0) {
+                int[] ordinals = Arrays.copyOf(column, columnSize);
+                Arrays.sort(ordinals);
+                usersByFilm.put(filmId, ordinals);
+                columnSize = 0;
+            }
+        }
+    }
+
+    private static final class Row {
+        private long[] filmIds = new long[4];
+        private int size;
+
+        private void add(long filmId) {
+            if (size == filmIds.length) {
+                filmIds = Arrays.copyOf(filmIds, size * 2);
+            }
+            filmIds[size++] = filmId;
+        }
+    }
+
+    private static final class Score {
+        private final long id;
+        private final long score;
+
+        private Score(long id, long score) {
+            this.id = id;
+            this.score = score;
+        }
+    }
+
+    // задача считает общие лайки по части столбцов; пользователи, появившиеся во время подсчета, не учитываются.
+    // Счетчики размером по числу лайков части, поэтому редкие фильмы не выделяют массив на всех пользователей
+    private static final class OverlapTask extends RecursiveTask<OrdinalCounts> {
+        private final List<int[]> columns;
+        private final int from;
+        private final int to;
+        private final int users;
+        private final int taskPostings;
+
+        private OverlapTask(List<int[]> columns, int from, int to, int users, int taskPostings) {
+            this.columns = columns;
+            this.from = from;
+            this.to = to;
+            this.users = users;
+            this.taskPostings = taskPostings;
+        }
+
+        @Override
+        protected OrdinalCounts compute() {
+            int postings = postings();
+            if (to - from == 1 || postings <= taskPostings) {
+                OrdinalCounts overlaps = new OrdinalCounts(users, postings);
+                for (int i = from; i < to; i++) {
+                    for (int ordinal : columns.get(i)) {
+                        if (ordinal < users) {
+                            overlaps.increment(ordinal);
+                        }
+                    }
+                }
+                return overlaps;
+            }
+            int middle = (from + to) >>> 1;
+            OverlapTask left = new OverlapTask(columns, from, middle, users, taskPostings);
+            left.fork();
+            OrdinalCounts overlaps = new OverlapTask(columns, middle, to, users, taskPostings).compute();
+            return overlaps.addAll(left.join());
+        }
+
+        private int postings() {
+            int postings = 0;
+            for (int i = from; i < to; i++) {
+                postings += columns.get(i).length;
+            }
+            return postings;
+        }
+    }
+}
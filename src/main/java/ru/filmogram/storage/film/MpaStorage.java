@@ -9,4 +9,6 @@ public interface MpaStorage {
     List<Mpa> findAllMpa();
 
     Mpa getMpaId(Long id);
+
+    void refresh();
 }
@@ -0,0 +1,170 @@
+package ru.filmogram.storage.film;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Класс SimilarFilmsIndex хранит для каждого фильма готовый список до topK похожих фильмов
+ * («лайкнувшие этот фильм лайкали и…»), поэтому чтение стоит O(topK).
+ * Похожесть — коэффициент Жаккара по множествам лайкнувших пользователей: общие лайки делятся на размер
+ * объединения, чтобы самые популярные фильмы не попадали в список каждого фильма.
+ * Списки считаются по матрице лайков: при старте для всех фильмов параллельно, затем раз в
+ * refresh-delay-ms только для отмеченных фильмов, не больше max-refresh за раз — остальные ждут следующего раза.
+ * Like отмечает сам фильм и фильмы из его текущего списка похожих, а не все фильмы лайкнувшего пользователя:
+ * иначе like активного зрителя отмечал бы сотни фильмов. Фильм вне списка узнает о новом общем лайке
+ * при пересчете после изменения собственных лайков
+ */
+@Component
+@Slf4j
+public class SimilarFilmsIndex {
+
+    private static final long[] NONE = new long[0];
+
+    private final LikesMatrix likesMatrix;
+    private final int topK;
+    private final int maxRefresh;
+
+    private final Map<Long, long[]> similarByFilm = new ConcurrentHashMap<>();
+    private final Set<Long> dirty = ConcurrentHashMap.newKeySet();
+
+    public SimilarFilmsIndex(LikesMatrix likesMatrix,
+                             @Value("${filmorate.similar-films.top-k}") int topK,
+                             @Value("${filmorate.similar-films.max-refresh}") int maxRefresh) {
+        this.likesMatrix = likesMatrix;
+        this.topK = topK;
+        this.maxRefresh = maxRefresh;
+    }
+
+    public long[] similar(Long filmId, int limit) {
+        long[] filmIds = similarByFilm.getOrDefault(filmId, NONE);
+        return filmIds.length <= limit ? filmIds.clone() : Arrays.copyOf(filmIds, limit);
+    }
+
+    /*
+     * Метод likeChanged отмечает для пересчета фильм и не больше topK его похожих фильмов.
+     * Вызывается после обновления матрицы лайков
+     */
+    public void likeChanged(Long filmId) {
+        dirty.add(filmId);
+        for (long neighbour : similarByFilm.getOrDefault(filmId, NONE)) {
+            dirty.add(neighbour);
+        }
+    }
+
+    /*
+     * Метод rebuild пересчитывает списки всех фильмов с лайками параллельно в общем пуле fork/join
+     */
+    public void rebuild() {
+        dirty.clear();
+        long[] filmIds = likesMatrix.likedFilms();
+        Arrays.stream(filmIds).parallel().forEach(this::refresh);
+        similarByFilm.keySet().removeIf(filmId -> likesMatrix.likesOf(filmId) == 0);
+        log.info("Похожие фильмы посчитаны для {} фильмов", filmIds.length);
+    }
+
+    @Scheduled(fixedDelayString = "${filmorate.similar-films.refresh-delay-ms}")
+    public int refreshDirty() {
+        int refreshed = 0;
+        for (Long filmId : dirty) {
+            if (refreshed == maxRefresh) {
+                break;
+            }
+            dirty.remove(filmId);
+            refresh(filmId);
+            refreshed++;
+        }
+        return refreshed;
+    }
+
+    private void refresh(long filmId) {
+        int likes = likesMatrix.likesOf(filmId);
+        if (likes == 0) {
+            similarByFilm.remove(filmId);
+            return;
+        }
+        Counter coLikes = new Counter();
+        likesMatrix.forEachCoLike(filmId, coLikes::increment);
+
+        // лучшие topK кандидатов держатся отсортированными по убыванию похожести, вставка — сдвигом
+        long[] best = new long[topK];
+        double[] scores = new double[topK];
+        int size = 0;
+        for (int slot = 0; slot < coLikes.keys.length; slot++) {
+            long candidate = coLikes.keys[slot];
+            if (candidate == Counter.EMPTY || candidate == filmId) {
+                continue;
+            }
+            int common = coLikes.counts[slot];
+            // лайки кандидата могли сняться после подсчета, поэтому их не меньше общих
+            int candidateLikes = Math.max(likesMatrix.likesOf(candidate), common);
+            double score = (double) common / (likes + candidateLikes - common);
+            if (size == topK && !isBetter(score, candidate, scores[size - 1], best[size - 1])) {
+                continue;
+            }
+            int position = size == topK ? size - 1 : size++;
+            while (position > 0 && isBetter(score, candidate, scores[position - 1], best[position - 1])) {
+                best[position] = best[position - 1];
+                scores[position] = scores[position - 1];
+                position--;
+            }
+            best[position] = candidate;
+            scores[position] = score;
+        }
+        similarByFilm.put(filmId, Arrays.copyOf(best, size));
+    }
+
+    private static boolean isBetter(double score, long filmId, double otherScore, long otherFilmId) {
+        return score > otherScore || score == otherScore && filmId < otherFilmId;
+    }
+
+    // счетчик long -> int с открытой адресацией; id фильмов положительные, поэтому 0 — пустая ячейка
+    private static final class Counter {
+        private static final long EMPTY = 0L;
+
+        private long[] keys = new long[64];
+        private int[] counts = new int[64];
+        private int size;
+
+        private void increment(long key) {
+            int mask = keys.length - 1;
+            int slot = (int) (key * 0x9E3779B97F4A7C15L >>> 32) & mask;
+            while (keys[slot] != EMPTY && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (keys[slot] == key) {
+                counts[slot]++;
+                return;
+            }
+            keys[slot] = key;
+            counts[slot] = 1;
+            if (++size * 2 > keys.length) {
+                grow();
+            }
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldCounts = counts;
+            keys = new long[oldKeys.length * 2];
+            counts = new int[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    int slot = (int) (oldKeys[i] * 0x9E3779B97F4A7C15L >>> 32) & mask;
+                    while (keys[slot] != EMPTY) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    counts[slot] = oldCounts[i];
+                }
+            }
+        }
+    }
+}
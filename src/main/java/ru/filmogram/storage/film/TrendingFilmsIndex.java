@@ -0,0 +1,387 @@
+package ru.filmogram.storage.film;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Класс TrendingFilmsIndex считает лайки фильмов за скользящие окна 1h, 24h и 7d.
+ * У каждого фильма, лайкнутого за последнюю неделю, есть кольцо из 60 минутных и кольцо из 168 часовых счетчиков
+ * и суммы по каждому окну: лайк увеличивает два счетчика и три суммы, а при переходе на новую минуту или час
+ * вышедшие из окна счетчики вычитаются из сумм и обнуляются. Окно 1h собирается из минут,
+ * 24h и 7d — из часов вместе с текущим неполным часом.
+ * Фильмы разложены по STRIPES полосам со своими блокировками, поэтому лайки разных фильмов почти не ждут друг друга.
+ * Раз в refresh-delay-ms по суммам собираются первые topK фильмов каждого окна, чтение отдает готовый список.
+ * Память ограничена счетчиками фильмов, лайкнутых за неделю, — сами лайки не хранятся
+ */
+@Component
+public class TrendingFilmsIndex {
+
+    private static final int STRIPES = 16;
+    private static final int MINUTES = 60;
+    private static final int HOURS = 168;
+    private static final int DAY_HOURS = 24;
+    private static final int WINDOWS = Window.values().length;
+
+    private final int topK;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private volatile long[][] top = new long[WINDOWS][0];
+
+    public TrendingFilmsIndex(@Value("${filmorate.trending.top-k}") int topK) {
+        this.topK = topK;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    public enum Window {
+        HOUR("1h", Duration.ofHours(1)),
+        DAY("24h", Duration.ofDays(1)),
+        WEEK("7d", Duration.ofDays(7));
+
+        private final String code;
+        private final Duration duration;
+
+        Window(String code, Duration duration) {
+            this.code = code;
+            this.duration = duration;
+        }
+
+        public Duration getDuration() {
+            return duration;
+        }
+
+        // null — окно с таким обозначением не поддерживается
+        public static Window of(String code) {
+            for (Window window : values()) {
+                if (window.code.equals(code)) {
+                    return window;
+                }
+            }
+            return null;
+        }
+    }
+
+    public int topK() {
+        return topK;
+    }
+
+    public void like(Long filmId, Instant likedAt) {
+        change(filmId, likedAt, 1);
+    }
+
+    /*
+     * Метод unlike снимает like, поставленный в likedAt: уменьшаются только те окна, в которые этот like еще попадает
+     */
+    public void unlike(Long filmId, Instant likedAt) {
+        change(filmId, likedAt, -1);
+    }
+
+    /*
+     * Метод top возвращает до count id фильмов с наибольшим числом лайков за окно на момент последнего refresh
+     */
+    public long[] top(Window window, int count) {
+        long[] filmIds = top[window.ordinal()];
+        return filmIds.length <= count ? filmIds.clone() : Arrays.copyOf(filmIds, count);
+    }
+
+    @Scheduled(fixedDelayString = "${filmorate.trending.refresh-delay-ms}")
+    public void refresh() {
+        refresh(Instant.now());
+    }
+
+    /*
+     * Метод refresh сдвигает окна всех полос к моменту now и собирает по их суммам новые списки topK.
+     * Полосы блокируются по одной, поэтому лайки в остальные полосы в это время не ждут
+     */
+    public void refresh(Instant now) {
+        long minute = epochMinute(now);
+        Ranking[] rankings = new Ranking[WINDOWS];
+        for (int window = 0; window < WINDOWS; window++) {
+            rankings[window] = new Ranking(topK);
+        }
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                stripe.advance(minute);
+                stripe.compact();
+                for (int slot = 0; slot < stripe.size; slot++) {
+                    for (int window = 0; window < WINDOWS; window++) {
+                        int likes = stripe.totals[slot * WINDOWS + window];
+                        if (likes > 0) {
+                            rankings[window].offer(stripe.filmIds[slot], likes);
+                        }
+                    }
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        long[][] refreshed = new long[WINDOWS][];
+        for (int window = 0; window < WINDOWS; window++) {
+            refreshed[window] = Arrays.copyOf(rankings[window].filmIds, rankings[window].size);
+        }
+        top = refreshed;
+    }
+
+    /*
+     * Метод clear убирает все счетчики перед повторной загрузкой лайков из базы
+     */
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                stripe.clear();
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        top = new long[WINDOWS][0];
+    }
+
+    // число фильмов, у которых есть счетчики, включая еще не убранные при refresh фильмы без лайков за неделю
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                size += stripe.size;
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    private void change(long filmId, Instant at, int delta) {
+        long minute = epochMinute(at);
+        Stripe stripe = stripes[(int) Math.floorMod(filmId, (long) STRIPES)];
+        stripe.lock.lock();
+        try {
+            stripe.advance(minute);
+            int slot = stripe.slot(filmId, delta > 0);
+            if (slot >= 0) {
+                stripe.add(slot, minute, delta);
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    private static long epochMinute(Instant instant) {
+        return Math.floorDiv(instant.getEpochSecond(), 60);
+    }
+
+    /*
+     * Класс Stripe хранит счетчики части фильмов в плоских массивах: строка slot занимает MINUTES ячеек в minutes,
+     * HOURS ячеек в hours и WINDOWS ячеек в totals. Id фильма находится по таблице с открытой адресацией
+     */
+    private static final class Stripe {
+        // id фильмов положительные, поэтому 0 — пустая ячейка таблицы
+        private static final long EMPTY = 0L;
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private long[] keys;
+        private int[] slots;
+        private long[] filmIds;
+        private int[] minutes;
+        private int[] hours;
+        private int[] totals;
+        private int size;
+        // последняя минута, до которой сдвинуты кольца
+        private long minute;
+
+        private Stripe() {
+            clear();
+        }
+
+        private void clear() {
+            keys = new long[16];
+            slots = new int[16];
+            filmIds = new long[8];
+            minutes = new int[8 * MINUTES];
+            hours = new int[8 * HOURS];
+            totals = new int[8 * WINDOWS];
+            size = 0;
+            minute = 0;
+        }
+
+        // -1 — фильма нет в полосе, а create не задан
+        private int slot(long filmId, boolean create) {
+            int index = find(filmId);
+            if (keys[index] == filmId) {
+                return slots[index];
+            }
+            if (!create) {
+                return -1;
+            }
+            if (size == filmIds.length) {
+                resize(size * 2);
+            }
+            int slot = size++;
+            filmIds[slot] = filmId;
+            put(filmId, slot);
+            return slot;
+        }
+
+        private void add(int slot, long at, int delta) {
+            long hourAge = Math.floorDiv(minute, 60) - Math.floorDiv(at, 60);
+            int hour = slot * HOURS + (int) Math.floorMod(Math.floorDiv(at, 60), (long) HOURS);
+            if (hourAge >= HOURS || hours[hour] + delta < 0) {
+                return;
+            }
+            hours[hour] += delta;
+            totals[slot * WINDOWS + Window.WEEK.ordinal()] += delta;
+            if (hourAge < DAY_HOURS) {
+                totals[slot * WINDOWS + Window.DAY.ordinal()] += delta;
+            }
+            int minuteBucket = slot * MINUTES + (int) Math.floorMod(at, (long) MINUTES);
+            if (minute - at < MINUTES && minutes[minuteBucket] + delta >= 0) {
+                minutes[minuteBucket] += delta;
+                totals[slot * WINDOWS + Window.HOUR.ordinal()] += delta;
+            }
+        }
+
+        /*
+         * Метод advance сдвигает кольца к минуте now. Часы обходятся подряд: ячейка часа h - 24 к этому
+         * моменту гарантированно хранит именно этот час, а не более старые лайки. После простоя дольше
+         * недели из окон выходит все, и счетчики просто обнуляются
+         */
+        private void advance(long now) {
+            if (now <= minute) {
+                return;
+            }
+            long fromHour = Math.floorDiv(minute, 60);
+            long toHour = Math.floorDiv(now, 60);
+            if (toHour - fromHour >= HOURS) {
+                Arrays.fill(minutes, 0);
+                Arrays.fill(hours, 0);
+                Arrays.fill(totals, 0);
+                minute = now;
+                return;
+            }
+            int hourTotal = Window.HOUR.ordinal();
+            for (long m = Math.max(minute + 1, now - MINUTES + 1); m <= now; m++) {
+                int bucket = (int) Math.floorMod(m, (long) MINUTES);
+                for (int slot = 0; slot < size; slot++) {
+                    totals[slot * WINDOWS + hourTotal] -= minutes[slot * MINUTES + bucket];
+                    minutes[slot * MINUTES + bucket] = 0;
+                }
+            }
+            int dayTotal = Window.DAY.ordinal();
+            int weekTotal = Window.WEEK.ordinal();
+            for (long h = fromHour + 1; h <= toHour; h++) {
+                int leftDay = (int) Math.floorMod(h - DAY_HOURS, (long) HOURS);
+                int leftWeek = (int) Math.floorMod(h, (long) HOURS);
+                for (int slot = 0; slot < size; slot++) {
+                    totals[slot * WINDOWS + dayTotal] -= hours[slot * HOURS + leftDay];
+                    totals[slot * WINDOWS + weekTotal] -= hours[slot * HOURS + leftWeek];
+                    hours[slot * HOURS + leftWeek] = 0;
+                }
+            }
+            minute = now;
+        }
+
+        // фильмы без лайков за неделю убираются, когда их становится больше половины полосы
+        private void compact() {
+            int live = 0;
+            for (int slot = 0; slot < size; slot++) {
+                if (totals[slot * WINDOWS + Window.WEEK.ordinal()] > 0) {
+                    live++;
+                }
+            }
+            if (live * 2 >= size) {
+                return;
+            }
+            int next = 0;
+            for (int slot = 0; slot < size; slot++) {
+                if (totals[slot * WINDOWS + Window.WEEK.ordinal()] == 0) {
+                    continue;
+                }
+                filmIds[next] = filmIds[slot];
+                System.arraycopy(minutes, slot * MINUTES, minutes, next * MINUTES, MINUTES);
+                System.arraycopy(hours, slot * HOURS, hours, next * HOURS, HOURS);
+                System.arraycopy(totals, slot * WINDOWS, totals, next * WINDOWS, WINDOWS);
+                next++;
+            }
+            size = next;
+            resize(Math.max(8, Integer.highestOneBit(Math.max(size, 1)) * 2));
+            keys = new long[Math.max(16, Integer.highestOneBit(Math.max(size, 1)) * 4)];
+            slots = new int[keys.length];
+            for (int slot = 0; slot < size; slot++) {
+                put(filmIds[slot], slot);
+            }
+        }
+
+        private void resize(int capacity) {
+            filmIds = Arrays.copyOf(filmIds, capacity);
+            minutes = Arrays.copyOf(minutes, capacity * MINUTES);
+            hours = Arrays.copyOf(hours, capacity * HOURS);
+            totals = Arrays.copyOf(totals, capacity * WINDOWS);
+        }
+
+        private void put(long filmId, int slot) {
+            if ((size + 1) * 2 > keys.length) {
+                long[] oldKeys = keys;
+                int[] oldSlots = slots;
+                keys = new long[oldKeys.length * 2];
+                slots = new int[oldKeys.length * 2];
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldKeys[i] != EMPTY) {
+                        int index = find(oldKeys[i]);
+                        keys[index] = oldKeys[i];
+                        slots[index] = oldSlots[i];
+                    }
+                }
+            }
+            int index = find(filmId);
+            keys[index] = filmId;
+            slots[index] = slot;
+        }
+
+        private int find(long filmId) {
+            int mask = keys.length - 1;
+            int index = (int) (filmId * 0x9E3779B97F4A7C15L >>> 32) & mask;
+            while (keys[index] != EMPTY && keys[index] != filmId) {
+                index = (index + 1) & mask;
+            }
+            return index;
+        }
+    }
+
+    // лучшие topK фильмов держатся отсортированными по убыванию лайков, при равенстве — по возрастанию id
+    private static final class Ranking {
+        private final long[] filmIds;
+        private final int[] likes;
+        private int size;
+
+        private Ranking(int topK) {
+            this.filmIds = new long[topK];
+            this.likes = new int[topK];
+        }
+
+        private void offer(long filmId, int filmLikes) {
+            if (filmIds.length == 0
+                    || size == filmIds.length && !isBetter(filmId, filmLikes, size - 1)) {
+                return;
+            }
+            int position = size == filmIds.length ? size - 1 : size++;
+            while (position > 0 && isBetter(filmId, filmLikes, position - 1)) {
+                filmIds[position] = filmIds[position - 1];
+                likes[position] = likes[position - 1];
+                position--;
+            }
+            filmIds[position] = filmId;
+            likes[position] = filmLikes;
+        }
+
+        private boolean isBetter(long filmId, int filmLikes, int position) {
+            return filmLikes > likes[position] || filmLikes == likes[position] && filmId < filmIds[position];
+        }
+    }
+}
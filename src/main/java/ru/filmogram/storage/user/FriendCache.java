@@ -0,0 +1,64 @@
+package ru.filmogram.storage.user;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.function.Function;
+
+/*
+ * Класс FriendCache хранит списки друзей пользователей как отсортированные массивы id.
+ * Кэш необязателен (filmorate.friends-cache.enabled): при нескольких экземплярах приложения
+ * изменения, сделанные другим экземпляром, не видны до вытеснения записи
+ */
+@Component
+public class FriendCache {
+
+    private final boolean enabled;
+    private final Cache<Long, long[]> friends;
+
+    public FriendCache(@Value("${filmorate.friends-cache.enabled}") boolean enabled,
+                       @Value("${filmorate.friends-cache.max-size}") long maxSize,
+                       MeterRegistry meterRegistry) {
+        this.enabled = enabled;
+        this.friends = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, friends, "friends");
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long[] get(Long userId, Function<Long, long[]> loader) {
+        return friends.get(userId, loader);
+    }
+
+    /*
+     * Метод addFriend добавляет id в уже загруженный список, не загруженный список прочитается из базы при запросе
+     */
+    public void addFriend(Long userId, Long friendId) {
+        friends.asMap().computeIfPresent(userId, (id, friendIds) -> {
+            int position = Arrays.binarySearch(friendIds, friendId);
+            if (position >= 0) {
+                return friendIds;
+            }
+            int insertAt = -position - 1;
+            long[] updated = new long[friendIds.length + 1];
+            System.arraycopy(friendIds, 0, updated, 0, insertAt);
+            updated[insertAt] = friendId;
+            System.arraycopy(friendIds, insertAt, updated, insertAt + 1, friendIds.length - insertAt);
+            return updated;
+        });
+    }
+
+    public void invalidate(Long userId) {
+        friends.invalidate(userId);
+    }
+}
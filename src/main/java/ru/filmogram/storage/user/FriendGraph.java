@@ -0,0 +1,336 @@
+package ru.filmogram.storage.user;
+
+import org.springframework.stereotype.Component;
+import ru.filmogram.util.OrdinalCounts;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Класс FriendGraph хранит граф дружбы в памяти в формате CSR: отсортированные id пользователей,
+ * смещения и один общий массив порядковых номеров друзей, без Set<Long> и упаковки чисел.
+ * Снимок графа неизменяемый и перестраивается целиком по таблице friends; изменения между перестроениями
+ * лежат в отдельной карте готовыми отсортированными списками и перекрывают снимок
+ */
+@Component
+public class FriendGraph {
+
+    // друзья пользователя, начиная с которого подсчет кандидатов делится на задачи fork/join
+    private static final int PARALLEL_FRIENDS = 512;
+    // наименьшее число друзей на задачу: у каждой задачи свои счетчики, которые потом складываются
+    private static final int TASK_FRIENDS = 256;
+
+    private static final Comparator<Suggestion> WORST_FIRST = Comparator
+            .comparingInt((Suggestion suggestion) -> suggestion.mutualFriends)
+            .thenComparing(Comparator.comparingLong((Suggestion suggestion) -> suggestion.userId).reversed());
+
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+    private final Map<Long, Change> changed = new ConcurrentHashMap<>();
+    private final AtomicLong stamps = new AtomicLong();
+
+    /*
+     * Метод stamp отмечает начало перестроения: изменения, сделанные после него, переживут замену снимка
+     */
+    public long stamp() {
+        return stamps.incrementAndGet();
+    }
+
+    /*
+     * Метод replace подменяет снимок графом из edges и убирает изменения, сделанные до начала чтения таблицы
+     */
+    public void replace(Edges edges, long stamp) {
+        snapshot = edges.toSnapshot();
+        for (Map.Entry<Long, Change> entry : changed.entrySet()) {
+            if (entry.getValue().stamp < stamp) {
+                changed.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    public int changedUsers() {
+        return changed.size();
+    }
+
+    public void addFriend(Long userId, Long friendId) {
+        changed.compute(userId, (id, change) -> {
+            long[] friendIds = change != null ? change.friendIds : snapshot.friendsOf(id);
+            int position = Arrays.binarySearch(friendIds, friendId);
+            if (position >= 0) {
+                return change;
+            }
+            int insertAt = -position - 1;
+            long[] updated = new long[friendIds.length + 1];
+            System.arraycopy(friendIds, 0, updated, 0, insertAt);
+            updated[insertAt] = friendId;
+            System.arraycopy(friendIds, insertAt, updated, insertAt + 1, friendIds.length - insertAt);
+            return new Change(updated, stamps.get());
+        });
+    }
+
+    /*
+     * Метод setFriends заменяет список друзей пользователя отсортированным списком, прочитанным из базы
+     */
+    public void setFriends(Long userId, long[] friendIds) {
+        changed.put(userId, new Change(friendIds, stamps.get()));
+    }
+
+    public long[] friendsOf(Long userId) {
+        Change change = changed.get(userId);
+        return change != null ? change.friendIds.clone() : snapshot.friendsOf(userId);
+    }
+
+    /*
+     * Метод suggest возвращает до limit id пользователей, которые не являются друзьями userId,
+     * по убыванию числа общих друзей, при равенстве — по возрастанию id.
+     * Общие друзья считаются по порядковым номерам пользователей снимка в OrdinalCounts, размер которого
+     * зависит от числа просматриваемых друзей друзей, а не от размера снимка; у пользователей
+     * с большим числом друзей обход делится на задачи fork/join по числу потоков общего пула,
+     * отбор первых limit идет через кучу размером limit
+     */
+    public long[] suggest(Long userId, int limit) {
+        Snapshot graph = snapshot;
+        long[] friendIds = friendsOf(userId);
+        if (friendIds.length == 0 || limit <= 0) {
+            return new long[0];
+        }
+        int parallelism = ForkJoinPool.getCommonPoolParallelism();
+        boolean parallel = friendIds.length >= PARALLEL_FRIENDS && parallelism > 1;
+        int taskFriends = parallel
+                ? Math.max(TASK_FRIENDS, (friendIds.length + parallelism - 1) / parallelism)
+                : friendIds.length;
+        CountTask task = new CountTask(this, graph, friendIds, 0, friendIds.length, taskFriends);
+        MutualCounts mutualFriends = parallel ? ForkJoinPool.commonPool().invoke(task) : task.compute();
+
+        PriorityQueue<Suggestion> best = new PriorityQueue<>(limit + 1, WORST_FIRST);
+        mutualFriends.counts.forEach((ordinal, count) ->
+                offer(best, limit, userId, friendIds, graph.userIds[ordinal], count));
+        mutualFriends.unknown.forEach((candidate, count) -> offer(best, limit, userId, friendIds, candidate, count));
+
+        List<Suggestion> ranked = new ArrayList<>(best);
+        ranked.sort(WORST_FIRST.reversed());
+        long[] userIds = new long[ranked.size()];
+        for (int i = 0; i < userIds.length; i++) {
+            userIds[i] = ranked.get(i).userId;
+        }
+        return userIds;
+    }
+
+    private static void offer(PriorityQueue<Suggestion> best, int limit, long userId, long[] friendIds,
+                              long candidate, int mutualFriends) {
+        if (candidate == userId || Arrays.binarySearch(friendIds, candidate) >= 0) {
+            return;
+        }
+        if (best.size() < limit) {
+            best.add(new Suggestion(candidate, mutualFriends));
+        } else if (isBetter(candidate, mutualFriends, best.peek())) {
+            best.poll();
+            best.add(new Suggestion(candidate, mutualFriends));
+        }
+    }
+
+    private static boolean isBetter(long userId, int mutualFriends, Suggestion worst) {
+        return mutualFriends > worst.mutualFriends
+                || mutualFriends == worst.mutualFriends && userId < worst.userId;
+    }
+
+    // снимок читается один раз на запрос, а измененные после перестроения списки берутся из карты изменений
+    private void countFriendsOf(Snapshot graph, long friendId, MutualCounts mutualFriends) {
+        Change change = changed.get(friendId);
+        if (change != null) {
+            for (long candidate : change.friendIds) {
+                int ordinal = Arrays.binarySearch(graph.userIds, candidate);
+                if (ordinal >= 0) {
+                    mutualFriends.counts.increment(ordinal);
+                } else {
+                    mutualFriends.unknown.merge(candidate, 1, Integer::sum);
+                }
+            }
+            return;
+        }
+        int ordinal = Arrays.binarySearch(graph.userIds, friendId);
+        if (ordinal < 0) {
+            return;
+        }
+        OrdinalCounts counts = mutualFriends.counts;
+        for (int i = graph.offsets[ordinal]; i < graph.offsets[ordinal + 1]; i++) {
+            counts.increment(graph.friends[i]);
+        }
+    }
+
+    // число друзей friendId, по нему выбирается размер счетчиков
+    private int degree(Snapshot graph, long friendId) {
+        Change change = changed.get(friendId);
+        if (change != null) {
+            return change.friendIds.length;
+        }
+        int ordinal = Arrays.binarySearch(graph.userIds, friendId);
+        return ordinal < 0 ? 0 : graph.offsets[ordinal + 1] - graph.offsets[ordinal];
+    }
+
+    /*
+     * Класс Edges накапливает ребра (пользователь, друг) при чтении таблицы friends
+     */
+    public static final class Edges {
+        private long[] userIds = new long[1024];
+        private long[] friendIds = new long[1024];
+        private int size;
+
+        public void add(long userId, long friendId) {
+            if (size == userIds.length) {
+                userIds = Arrays.copyOf(userIds, size * 2);
+                friendIds = Arrays.copyOf(friendIds, size * 2);
+            }
+            userIds[size] = userId;
+            friendIds[size] = friendId;
+            size++;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        // порядковые номера выдаются всем id, встреченным в ребрах, поэтому друзья хранятся как int
+        private Snapshot toSnapshot() {
+            long[] users = Arrays.copyOf(userIds, size * 2);
+            System.arraycopy(friendIds, 0, users, size, size);
+            Arrays.sort(users);
+            int userCount = 0;
+            for (long user : users) {
+                if (userCount == 0 || user != users[userCount - 1]) {
+                    users[userCount++] = user;
+                }
+            }
+            users = Arrays.copyOf(users, userCount);
+
+            int[] sources = new int[size];
+            int[] offsets = new int[userCount + 1];
+            for (int i = 0; i < size; i++) {
+                sources[i] = Arrays.binarySearch(users, userIds[i]);
+                offsets[sources[i] + 1]++;
+            }
+            for (int i = 0; i < userCount; i++) {
+                offsets[i + 1] += offsets[i];
+            }
+            int[] friends = new int[size];
+            int[] next = Arrays.copyOf(offsets, userCount);
+            for (int i = 0; i < size; i++) {
+                friends[next[sources[i]]++] = Arrays.binarySearch(users, friendIds[i]);
+            }
+            for (int i = 0; i < userCount; i++) {
+                Arrays.sort(friends, offsets[i], offsets[i + 1]);
+            }
+            return new Snapshot(users, offsets, friends);
+        }
+    }
+
+    private static final class Snapshot {
+        private static final Snapshot EMPTY = new Snapshot(new long[0], new int[1], new int[0]);
+
+        private final long[] userIds;
+        private final int[] offsets;
+        private final int[] friends;
+
+        private Snapshot(long[] userIds, int[] offsets, int[] friends) {
+            this.userIds = userIds;
+            this.offsets = offsets;
+            this.friends = friends;
+        }
+
+        private long[] friendsOf(long userId) {
+            int ordinal = Arrays.binarySearch(userIds, userId);
+            if (ordinal < 0) {
+                return new long[0];
+            }
+            long[] friendIds = new long[offsets[ordinal + 1] - offsets[ordinal]];
+            for (int i = 0; i < friendIds.length; i++) {
+                friendIds[i] = userIds[friends[offsets[ordinal] + i]];
+            }
+            return friendIds;
+        }
+    }
+
+    private static final class Change {
+        private final long[] friendIds;
+        private final long stamp;
+
+        private Change(long[] friendIds, long stamp) {
+            this.friendIds = friendIds;
+            this.stamp = stamp;
+        }
+    }
+
+    private static final class Suggestion {
+        private final long userId;
+        private final int mutualFriends;
+
+        private Suggestion(long userId, int mutualFriends) {
+            this.userId = userId;
+            this.mutualFriends = mutualFriends;
+        }
+    }
+
+    // счетчики общих друзей по порядковым номерам снимка и отдельно для id, появившихся после перестроения
+    private static final class MutualCounts {
+        private OrdinalCounts counts;
+        private final Map<Long, Integer> unknown = new HashMap<>();
+
+        private MutualCounts(int users, int postings) {
+            this.counts = new OrdinalCounts(users, postings);
+        }
+
+        private MutualCounts add(MutualCounts other) {
+            counts = counts.addAll(other.counts);
+            other.unknown.forEach((userId, count) -> unknown.merge(userId, count, Integer::sum));
+            return this;
+        }
+    }
+
+    // задача считает общих друзей по части списка друзей и складывает счетчики половин
+    private static final class CountTask extends RecursiveTask<MutualCounts> {
+        private final FriendGraph graph;
+        private final Snapshot snapshot;
+        private final long[] friendIds;
+        private final int from;
+        private final int to;
+        private final int taskFriends;
+
+        private CountTask(FriendGraph graph, Snapshot snapshot, long[] friendIds, int from, int to,
+                          int taskFriends) {
+            this.graph = graph;
+            this.snapshot = snapshot;
+            this.friendIds = friendIds;
+            this.from = from;
+            this.to = to;
+            this.taskFriends = taskFriends;
+        }
+
+        @Override
+        protected MutualCounts compute() {
+            if (to - from <= taskFriends) {
+                int postings = 0;
+                for (int i = from; i < to; i++) {
+                    postings += graph.degree(snapshot, friendIds[i]);
+                }
+                MutualCounts mutualFriends = new MutualCounts(snapshot.userIds.length, postings);
+                for (int i = from; i < to; i++) {
+                    graph.countFriendsOf(snapshot, friendIds[i], mutualFriends);
+                }
+                return mutualFriends;
+            }
+            int middle = (from + to) >>> 1;
+            CountTask left = new CountTask(graph, snapshot, friendIds, from, middle, taskFriends);
+            left.fork();
+            MutualCounts right = new CountTask(graph, snapshot, friendIds, middle, to, taskFriends).compute();
+            return left.join().add(right);
+        }
+    }
+}
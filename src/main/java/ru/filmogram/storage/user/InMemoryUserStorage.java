@@ -8,9 +8,14 @@ import ru.filmogram.model.User;
 
 import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 @Component
 @Slf4j
@@ -23,6 +28,21 @@ public class InMemoryUserStorage implements UserStorage {
         return new ArrayList<User>(users.values());
     }
 
+    @Override
+    public List<User> findUsersAfter(Long afterId, int limit) {
+        return users.values()
+                .stream()
+                .filter(user -> user.getId() > afterId)
+                .sorted(Comparator.comparing(User::getId))
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public void streamAllUser(Consumer<User> consumer) {
+        users.values().forEach(consumer);
+    }
+
     @Override
     public User createUser(User user) throws ValidationException {
         User afterCheckUser = standardCheck(user);
@@ -32,6 +52,16 @@ public class InMemoryUserStorage implements UserStorage {
         return afterCheckUser;
     }
 
+    @Override
+    public List<User> createUsers(List<User> newUsers) {
+        for (User user : newUsers) {
+            user.assignId();
+            users.put(user.getId(), user);
+        }
+        log.info("Добавлено пользователей: {}", newUsers.size());
+        return newUsers;
+    }
+
     @Override
     public User updateUser(User user) throws ValidationException {
         User afterCheckUser = standardCheck(user);
@@ -95,6 +125,31 @@ public class InMemoryUserStorage implements UserStorage {
         return listCommonFriends;
     }
 
+    @Override
+    public List<User> getFriendSuggestions(Long id, int limit) {
+        User user = getUserId(id);
+        Set<Long> friends = user.getFriends() == null ? Set.of() : user.getFriends();
+        Map<Long, Integer> mutualFriends = new HashMap<>();
+        for (Long friend : friends) {
+            Set<Long> friendsOfFriend = users.get(friend).getFriends();
+            if (friendsOfFriend == null) {
+                continue;
+            }
+            for (Long candidate : friendsOfFriend) {
+                if (!candidate.equals(id) && !friends.contains(candidate)) {
+                    mutualFriends.merge(candidate, 1, Integer::sum);
+                }
+            }
+        }
+        return mutualFriends.entrySet()
+                .stream()
+                .sorted(Map.Entry.<Long, Integer>comparingByValue().reversed()
+                        .thenComparing(Map.Entry.comparingByKey()))
+                .limit(limit)
+                .map(entry -> users.get(entry.getKey()))
+                .collect(Collectors.toList());
+    }
+
     private User standardCheck(User user) throws ValidationException {
         if (user.getEmail().isEmpty() || user.getEmail().isBlank() || !user.getEmail().contains("@")) {
             log.error("Неверно введен email: {}", user);
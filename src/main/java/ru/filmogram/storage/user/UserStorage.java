@@ -5,13 +5,21 @@ import ru.filmogram.exceptions.ValidationException;
 import ru.filmogram.model.User;
 
 import java.util.List;
+import java.util.function.Consumer;
 
 public interface UserStorage {
 
     List<User> findAllUser();
 
+    List<User> findUsersAfter(Long afterId, int limit);
+
+    void streamAllUser(Consumer<User> consumer);
+
     User createUser(User user) throws ValidationException;
 
+    // пользователи сохраняются одной транзакцией, записи должны быть проверены заранее
+    List<User> createUsers(List<User> users);
+
     User updateUser(User user) throws ValidationException, ObjectNotFoundException;
 
     User getUserId(Long id) throws ObjectNotFoundException;
@@ -23,4 +31,7 @@ public interface UserStorage {
     List<User> getFriends(Long id);
 
     List<User> getCommonFriends(Long id, Long otherId);
+
+    // не более limit пользователей, не являющихся друзьями id, по убыванию числа общих друзей
+    List<User> getFriendSuggestions(Long id, int limit);
 }
@@ -0,0 +1,155 @@
+package ru.filmogram.util;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import lombok.extern.slf4j.Slf4j;
+import ru.filmogram.exceptions.ValidationException;
+import ru.filmogram.model.ImportItem;
+import ru.filmogram.model.ImportSummary;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/*
+ * Класс BatchImport читает записи из JSON-массива или NDJSON по одной, проверяет каждую
+ * и сохраняет проверенные частями по chunkSize. Отклоненная запись получает ошибку и не мешает остальным
+ */
+@Slf4j
+public final class BatchImport {
+
+    private BatchImport() {
+    }
+
+    @FunctionalInterface
+    public interface Check<T> {
+        T check(T item) throws ValidationException;
+    }
+
+    public static <T> ImportSummary run(MappingIterator<T> items,
+                                        int chunkSize,
+                                        Check<T> check,
+                                        Function<List<T>, List<T>> writer,
+                                        Function<T, Long> idOf,
+                                        Consumer<ImportItem> results) throws IOException {
+        long started = System.nanoTime();
+        Chunk<T> chunk = new Chunk<>(chunkSize, writer, idOf, results);
+        long index = 0;
+        long failed = 0;
+        while (true) {
+            T item;
+            try {
+                if (!items.hasNextValue()) {
+                    break;
+                }
+                item = items.nextValue();
+            } catch (JsonParseException e) {
+                // после синтаксической ошибки граница следующей записи неизвестна, чтение прекращается
+                results.accept(error(index++, "Некорректный JSON: " + e.getOriginalMessage()));
+                failed++;
+                break;
+            } catch (JsonProcessingException e) {
+                results.accept(error(index++, "Некорректная запись: " + e.getOriginalMessage()));
+                failed++;
+                continue;
+            }
+            try {
+                chunk.add(index, check.check(item));
+            } catch (NullPointerException e) {
+                // проверки обращаются к обязательным полям без проверки на null
+                results.accept(error(index, "Не заполнены обязательные поля"));
+                failed++;
+            } catch (ValidationException | RuntimeException e) {
+                results.accept(error(index, e.getMessage()));
+                failed++;
+            }
+            index++;
+        }
+        chunk.flush();
+
+        long elapsedMillis = (System.nanoTime() - started) / 1_000_000;
+        long imported = chunk.imported;
+        failed += chunk.failed;
+        double perSecond = imported * 1000.0 / Math.max(elapsedMillis, 1);
+        log.info("Импортировано {} из {} записей за {} мс, {} записей/с", imported, index, elapsedMillis,
+                String.format("%.1f", perSecond));
+        return ImportSummary.builder()
+                .total(index)
+                .imported(imported)
+                .failed(failed)
+                .elapsedMillis(elapsedMillis)
+                .perSecond(perSecond)
+                .build();
+    }
+
+    private static ImportItem error(long index, String message) {
+        return ImportItem.builder()
+                .index(index)
+                .error(message)
+                .build();
+    }
+
+    private static final class Chunk<T> {
+        private final int size;
+        private final Function<List<T>, List<T>> writer;
+        private final Function<T, Long> idOf;
+        private final Consumer<ImportItem> results;
+        private final List<Long> indexes;
+        private final List<T> items;
+        private long imported;
+        private long failed;
+
+        private Chunk(int size, Function<List<T>, List<T>> writer, Function<T, Long> idOf,
+                      Consumer<ImportItem> results) {
+            this.size = size;
+            this.writer = writer;
+            this.idOf = idOf;
+            this.results = results;
+            this.indexes = new ArrayList<>(size);
+            this.items = new ArrayList<>(size);
+        }
+
+        private void add(long index, T item) {
+            indexes.add(index);
+            items.add(item);
+            if (items.size() >= size) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            if (items.isEmpty()) {
+                return;
+            }
+            try {
+                report(indexes, writer.apply(items));
+            } catch (RuntimeException e) {
+                // часть не записалась целиком, записи сохраняются по одной, чтобы найти ту, что мешает
+                log.warn("Не удалось сохранить часть из {} записей, записи сохраняются по одной", items.size(), e);
+                for (int i = 0; i < items.size(); i++) {
+                    try {
+                        report(List.of(indexes.get(i)), writer.apply(List.of(items.get(i))));
+                    } catch (RuntimeException itemError) {
+                        results.accept(error(indexes.get(i), "Запись не сохранена: " + itemError.getMessage()));
+                        failed++;
+                    }
+                }
+            }
+            indexes.clear();
+            items.clear();
+        }
+
+        private void report(List<Long> chunkIndexes, List<T> saved) {
+            for (int i = 0; i < saved.size(); i++) {
+                results.accept(ImportItem.builder()
+                        .index(chunkIndexes.get(i))
+                        .id(idOf.apply(saved.get(i)))
+                        .build());
+            }
+            imported += saved.size();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package ru.filmogram.util;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import ru.filmogram.model.ImportItem;
+import ru.filmogram.model.ImportSummary;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.function.Consumer;
+
+/*
+ * Класс JsonStreams пишет JSON-массив прямо в поток ответа по мере чтения строк из базы,
+ * не собирая список целиком
+ */
+public final class JsonStreams {
+
+    private JsonStreams() {
+    }
+
+    @FunctionalInterface
+    public interface ItemSource<T> {
+        void forEach(Consumer<T> consumer) throws Exception;
+    }
+
+    @FunctionalInterface
+    public interface Import {
+        ImportSummary run(Consumer<ImportItem> results) throws Exception;
+    }
+
+    public static <T> ResponseEntity<StreamingResponseBody> jsonArray(ObjectMapper objectMapper,
+                                                                      ItemSource<T> source) {
+        StreamingResponseBody body = out -> {
+            JsonGenerator generator = objectMapper.getFactory().createGenerator(out);
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.writeStartArray();
+            try {
+                source.forEach(item -> {
+                    try {
+                        generator.writeObject(item);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+            generator.writeEndArray();
+            generator.close();
+        };
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(body);
+    }
+
+    /*
+     * Метод importResult пишет результаты импорта по мере сохранения записей: {"items": [...], "summary": {...}}.
+     * Результаты идут не по порядку записей, каждая содержит свой index
+     */
+    public static ResponseEntity<StreamingResponseBody> importResult(ObjectMapper objectMapper, Import source) {
+        StreamingResponseBody body = out -> {
+            JsonGenerator generator = objectMapper.getFactory().createGenerator(out);
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("items");
+            ImportSummary summary;
+            try {
+                summary = source.run(item -> {
+                    try {
+                        generator.writeObject(item);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+            generator.writeEndArray();
+            generator.writeObjectField("summary", summary);
+            generator.writeEndObject();
+            generator.close();
+        };
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(body);
+    }
+}
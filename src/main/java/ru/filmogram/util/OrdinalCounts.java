@@ -0,0 +1,147 @@
+package ru.filmogram.util;
+
+/*
+ * Класс OrdinalCounts считает появления порядковых номеров от 0 до size - 1.
+ * Пока отметок немного по сравнению с size, счетчики лежат в хэш-таблице с открытой адресацией
+ * размером по числу отметок, иначе — в массиве размером size. Так подсчет по нескольким коротким
+ * спискам не выделяет и не просматривает массив на всех пользователей
+ */
+public final class OrdinalCounts {
+
+    // массив на все номера выбирается, когда различных номеров не меньше size / DENSE_SHARE
+    private static final int DENSE_SHARE = 8;
+
+    private final int size;
+    private int[] dense;
+    // номер + 1, 0 — свободная ячейка
+    private int[] keys;
+    private int[] values;
+    private int used;
+
+    /*
+     * expected — ожидаемое число отметок; оно определяет начальный вид счетчиков,
+     * но может быть превышено
+     */
+    public OrdinalCounts(int size, int expected) {
+        this.size = size;
+        if ((long) expected * DENSE_SHARE >= size) {
+            dense = new int[size];
+        } else {
+            allocate(expected);
+        }
+    }
+
+    @FunctionalInterface
+    public interface CountConsumer {
+        void accept(int ordinal, int count);
+    }
+
+    public void increment(int ordinal) {
+        add(ordinal, 1);
+    }
+
+    public void add(int ordinal, int count) {
+        if (dense != null) {
+            dense[ordinal] += count;
+            return;
+        }
+        int mask = keys.length - 1;
+        int key = ordinal + 1;
+        for (int slot = mix(key) & mask; ; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                values[slot] += count;
+                return;
+            }
+            if (keys[slot] == 0) {
+                keys[slot] = key;
+                values[slot] = count;
+                if (++used * 2 > keys.length) {
+                    grow();
+                }
+                return;
+            }
+        }
+    }
+
+    public int get(int ordinal) {
+        if (dense != null) {
+            return dense[ordinal];
+        }
+        int mask = keys.length - 1;
+        int key = ordinal + 1;
+        for (int slot = mix(key) & mask; keys[slot] != 0; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+        }
+        return 0;
+    }
+
+    /*
+     * Метод addAll прибавляет счетчики other и возвращает результат: это может быть other,
+     * если у него уже массив на все номера, а у этого объекта — хэш-таблица
+     */
+    public OrdinalCounts addAll(OrdinalCounts other) {
+        if (dense == null && other.dense != null) {
+            return other.addAll(this);
+        }
+        other.forEach(this::add);
+        return this;
+    }
+
+    // передает consumer все номера с ненулевым счетчиком, порядок номеров не определен
+    public void forEach(CountConsumer consumer) {
+        if (dense != null) {
+            for (int ordinal = 0; ordinal < dense.length; ordinal++) {
+                if (dense[ordinal] != 0) {
+                    consumer.accept(ordinal, dense[ordinal]);
+                }
+            }
+            return;
+        }
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != 0 && values[slot] != 0) {
+                consumer.accept(keys[slot] - 1, values[slot]);
+            }
+        }
+    }
+
+    boolean isDense() {
+        return dense != null;
+    }
+
+    private void allocate(int expected) {
+        // таблица заполнена не больше чем наполовину
+        int capacity = Integer.highestOneBit(Math.max(expected * 2, 4) - 1) << 1;
+        keys = new int[capacity];
+        values = new int[capacity];
+        used = 0;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        if ((long) used * DENSE_SHARE >= size) {
+            dense = new int[size];
+            keys = null;
+            values = null;
+            for (int slot = 0; slot < oldKeys.length; slot++) {
+                if (oldKeys[slot] != 0) {
+                    dense[oldKeys[slot] - 1] = oldValues[slot];
+                }
+            }
+            return;
+        }
+        allocate(oldKeys.length);
+        for (int slot = 0; slot < oldKeys.length; slot++) {
+            if (oldKeys[slot] != 0) {
+                add(oldKeys[slot] - 1, oldValues[slot]);
+            }
+        }
+    }
+
+    private static int mix(int key) {
+        int hash = key * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -1,13 +1,96 @@
 package ru.filmogram.util;
 
+import ru.filmogram.exceptions.ValidationException;
+import ru.filmogram.model.CursorPage;
 import ru.filmogram.model.Mpa;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.function.Function;
+
 public class Util {
 
+    private static final String CURSOR_PREFIX = "id:";
+    // у токенов изменений свой префикс, чтобы курсор страницы не принимался за номер изменения и наоборот
+    private static final String CHANGE_TOKEN_PREFIX = "seq:";
+
     public static Mpa makeMpa(Long ratingId, String ratingName) {
         return Mpa.builder()
                 .id(ratingId)
                 .name(ratingName)
                 .build();
     }
+
+    /*
+     * Метод encodeCursor превращает id последней записи страницы в непрозрачный для клиента курсор
+     */
+    public static String encodeCursor(Long id) {
+        return encode(CURSOR_PREFIX, id);
+    }
+
+    public static Long decodeCursor(String cursor) throws ValidationException {
+        Long id = decode(CURSOR_PREFIX, cursor);
+        if (id == null) {
+            throw new ValidationException(String.format("Неверный курсор %s", cursor));
+        }
+        return id;
+    }
+
+    /*
+     * Метод encodeChangeToken превращает номер последнего выданного изменения в токен для /films/changes
+     */
+    public static String encodeChangeToken(Long seq) {
+        return encode(CHANGE_TOKEN_PREFIX, seq);
+    }
+
+    public static Long decodeChangeToken(String token) throws ValidationException {
+        Long seq = decode(CHANGE_TOKEN_PREFIX, token);
+        if (seq == null) {
+            throw new ValidationException(String.format("Неверный токен изменений %s", token));
+        }
+        return seq;
+    }
+
+    private static String encode(String prefix, Long value) {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((prefix + value).getBytes(StandardCharsets.UTF_8));
+    }
+
+    // null — строка не base64 или значение с другим префиксом
+    private static Long decode(String prefix, String token) {
+        try {
+            String value = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            if (value.startsWith(prefix)) {
+                return Long.parseLong(value.substring(prefix.length()));
+            }
+        } catch (IllegalArgumentException e) {
+            // вызывающий метод сообщает о неверном значении
+        }
+        return null;
+    }
+
+    public static int checkPageSize(Integer limit, int maxPageSize) throws ValidationException {
+        if (limit == null || limit <= 0) {
+            throw new ValidationException(String.format("Размер страницы %d должен быть положительным", limit));
+        }
+        return Math.min(limit, maxPageSize);
+    }
+
+    /*
+     * Метод makePage собирает страницу из выборки размером pageSize + 1:
+     * лишняя запись означает, что за страницей есть продолжение
+     */
+    public static <T> CursorPage<T> makePage(List<T> items, int pageSize, Function<T, Long> idOf) {
+        if (items.size() <= pageSize) {
+            return CursorPage.<T>builder()
+                    .items(items)
+                    .build();
+        }
+        List<T> pageItems = items.subList(0, pageSize);
+        return CursorPage.<T>builder()
+                .items(pageItems)
+                .next(encodeCursor(idOf.apply(pageItems.get(pageSize - 1))))
+                .build();
+    }
 }
@@ -15,10 +15,15 @@ CREATE TABLE IF NOT EXISTS film (
     releaseDate DATE,
     duration INTEGER,
     rating_id INTEGER REFERENCES rating (rating_id),
-    rate INTEGER
+    rate INTEGER,
+    like_count INTEGER DEFAULT 0 NOT NULL
 --    CONSTRAINT film_chk_duration CHECK (duration > 0)
 );
 
+CREATE INDEX IF NOT EXISTS film_like_count_idx ON film (like_count DESC, film_id);
+CREATE INDEX IF NOT EXISTS film_rating_release_idx ON film (rating_id, releaseDate);
+CREATE INDEX IF NOT EXISTS film_release_idx ON film (releaseDate);
+
 CREATE TABLE IF NOT EXISTS users (
     user_id INTEGER GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
     user_name VARCHAR(64) NOT NULL,
@@ -34,12 +39,42 @@ CREATE TABLE IF NOT EXISTS friends (
     status BOOLEAN DEFAULT 0 NOT NULL
 );
 
+CREATE INDEX IF NOT EXISTS friends_one_idx ON friends (friend_one_id, friend_two_id);
+CREATE INDEX IF NOT EXISTS friends_two_idx ON friends (friend_two_id, friend_one_id);
+
 CREATE TABLE IF NOT EXISTS likes (
     film_id INTEGER REFERENCES film (film_id),
-    user_id INTEGER REFERENCES users (user_id)
+    user_id INTEGER REFERENCES users (user_id),
+    created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL,
+    CONSTRAINT likes_pk PRIMARY KEY (film_id, user_id)
 );
 
+CREATE INDEX IF NOT EXISTS likes_user_id_idx ON likes (user_id);
+CREATE INDEX IF NOT EXISTS likes_created_at_idx ON likes (created_at);
+
 CREATE TABLE IF NOT EXISTS genre_film (
     film_id INTEGER REFERENCES film (film_id),
-    genre_id INTEGER REFERENCES genre (genre_id)
-);
\ No newline at end of file
+    genre_id INTEGER REFERENCES genre (genre_id),
+    CONSTRAINT genre_film_pk PRIMARY KEY (film_id, genre_id)
+);
+
+CREATE INDEX IF NOT EXISTS genre_film_genre_idx ON genre_film (genre_id, film_id);
+-- журнал изменений фильмов для синхронизации клиентов, seq выдается приложением по возрастанию
+CREATE TABLE IF NOT EXISTS film_change (
+    seq BIGINT PRIMARY KEY,
+    film_id INTEGER NOT NULL REFERENCES film (film_id),
+    changed_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL
+);
+
+CREATE INDEX IF NOT EXISTS film_change_film_idx ON film_change (film_id, seq);
+
+-- изменения с номером не больше seq удалены при уплотнении журнала
+CREATE TABLE IF NOT EXISTS film_change_horizon (
+    id INTEGER PRIMARY KEY,
+    seq BIGINT NOT NULL
+);
+
+MERGE INTO film_change_horizon AS h
+USING (VALUES (1)) AS v (id)
+ON h.id = v.id
+WHEN NOT MATCHED THEN INSERT (id, seq) VALUES (v.id, 0);
@@ -0,0 +1,41 @@
+package ru.filmogram;
+
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(properties = "spring.datasource.url=jdbc:h2:mem:pool;DB_CLOSE_DELAY=-1")
+class JdbcConfigTest {
+
+    @Autowired
+    DataSource dataSource;
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Test
+    void testConnectionsArePooledAndMeasured() {
+        assertTrue(dataSource instanceof HikariDataSource);
+        HikariDataSource hikari = (HikariDataSource) dataSource;
+        assertEquals(10, hikari.getMaximumPoolSize());
+
+        for (int i = 0; i < 5; i++) {
+            jdbcTemplate.queryForObject("SELECT COUNT(*) FROM film", Integer.class);
+        }
+
+        assertTrue(hikari.getHikariPoolMXBean().getTotalConnections() <= hikari.getMaximumPoolSize());
+        assertNotNull(meterRegistry.find("hikaricp.connections.active").tag("pool", "filmorate").gauge());
+        assertNotNull(meterRegistry.find("hikaricp.connections.pending").tag("pool", "filmorate").gauge());
+        assertTrue(meterRegistry.find("hikaricp.connections.acquire").tag("pool", "filmorate").timer().count() >= 5);
+    }
+}
@@ -0,0 +1,60 @@
+package ru.filmogram.controllers;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import ru.filmogram.model.Film;
+import ru.filmogram.services.FilmService;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.handler;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@WebMvcTest(FilmController.class)
+class FilmControllerTest {
+
+    @Autowired
+    MockMvc mockMvc;
+    @MockBean
+    FilmService filmService;
+
+    @Test
+    void testFilmListParamsSelectHandler() throws Exception {
+        expectHandler("/films", "findAll");
+        expectHandler("/films?limit=5", "findPage");
+        expectHandler("/films?stream=true", "streamAll");
+        expectHandler("/films?limit=5&stream=true", "streamAll");
+        expectHandler("/films?genre=1", "filter");
+        expectHandler("/films?sort=popular", "filter");
+    }
+
+    @Test
+    void testFilmBodyBindsImmutableGenresAndMpa() throws Exception {
+        when(filmService.create(any())).thenAnswer(invocation -> {
+            Film film = invocation.getArgument(0);
+            assertEquals(2L, film.getMpa().getId());
+            assertEquals(3L, film.getGenres().get(1).getId());
+            assertEquals("Комедия", film.getGenres().get(1).getName());
+            return film;
+        });
+        mockMvc.perform(post("/films")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"name\":\"Фильм\",\"mpa\":{\"id\":2},"
+                                + "\"genres\":[{\"id\":1},{\"id\":3,\"name\":\"Комедия\"}]}"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.mpa.id").value(2))
+                .andExpect(jsonPath("$.genres[1].name").value("Комедия"));
+    }
+
+    private void expectHandler(String url, String method) throws Exception {
+        mockMvc.perform(get(url)).andExpect(handler().methodName(method));
+    }
+}
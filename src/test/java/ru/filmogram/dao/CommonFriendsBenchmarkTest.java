@@ -0,0 +1,93 @@
+package ru.filmogram.dao;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.annotation.DirtiesContext;
+import ru.filmogram.model.User;
+import ru.filmogram.storage.user.UserStorage;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+ * Замер getCommonFriends на 10 000 друзей у каждого пользователя и 5000 общих против прежнего пути:
+ * оба списка друзей целиком и пересечение через List.contains.
+ * В обычную сборку не входит, запуск: mvn test -Pbench
+ */
+@Tag("bench")
+@SpringBootTest
+@AutoConfigureTestDatabase
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+@Slf4j
+class CommonFriendsBenchmarkTest {
+
+    private static final int WARMUP = 3;
+    private static final int ITERATIONS = 10;
+
+    @Autowired
+    UserStorage userStorage;
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @Test
+    void benchmarkCommonFriends() {
+        List<User> users = new ArrayList<>();
+        for (int i = 1; i <= 15_002; i++) {
+            users.add(User.builder()
+                    .name("Пользователь" + i)
+                    .email("bench@come." + i)
+                    .login("bench" + i)
+                    .birthday(LocalDate.of(2001, 7, 5))
+                    .build());
+        }
+        userStorage.createUsers(users);
+        List<Object[]> requests = new ArrayList<>();
+        for (long friendId = 3; friendId <= 10_002; friendId++) {
+            requests.add(new Object[]{1L, friendId});
+        }
+        List<Object[]> confirmed = new ArrayList<>();
+        for (long friendId = 5_003; friendId <= 15_002; friendId++) {
+            confirmed.add(new Object[]{friendId, 2L, true});
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO friends (friend_one_id, friend_two_id) VALUES (?, ?)", requests);
+        jdbcTemplate.batchUpdate("INSERT INTO friends (friend_one_id, friend_two_id, status) VALUES (?, ?, ?)",
+                confirmed);
+
+        double previous = measure("списки друзей и List.contains", () -> {
+            List<User> friendOne = userStorage.getFriends(1L);
+            List<User> common = new ArrayList<>();
+            for (User user : userStorage.getFriends(2L)) {
+                if (friendOne.contains(user)) {
+                    common.add(user);
+                }
+            }
+            return common;
+        });
+        double current = measure("слияние отсортированных id", () -> userStorage.getCommonFriends(1L, 2L));
+
+        assertTrue(current < previous, String.format("%.1f мс против %.1f мс", current, previous));
+    }
+
+    private static double measure(String name, Supplier<List<User>> commonFriends) {
+        for (int i = 0; i < WARMUP; i++) {
+            assertEquals(5_000, commonFriends.get().size());
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertEquals(5_000, commonFriends.get().size());
+        }
+        double millis = (System.nanoTime() - start) / 1e6 / ITERATIONS;
+        log.info("{}: {} мс/операция", name, String.format("%.1f", millis));
+        return millis;
+    }
+}
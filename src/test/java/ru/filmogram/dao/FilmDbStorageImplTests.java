@@ -5,20 +5,47 @@ import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.filmogram.exceptions.ObjectNotFoundException;
 import ru.filmogram.exceptions.ValidationException;
 import ru.filmogram.model.Film;
+import ru.filmogram.model.FilmChanges;
+import ru.filmogram.model.FilmFacetPage;
+import ru.filmogram.model.FilmFilter;
 import ru.filmogram.model.Genre;
 import ru.filmogram.model.Mpa;
 import ru.filmogram.model.User;
+import ru.filmogram.storage.film.FilmCache;
 import ru.filmogram.storage.film.FilmStorage;
+import ru.filmogram.storage.film.GenreStorage;
+import ru.filmogram.storage.film.MpaStorage;
+import ru.filmogram.storage.film.SimilarFilmsIndex;
+import ru.filmogram.storage.film.TrendingFilmsIndex;
 import ru.filmogram.storage.user.UserStorage;
 
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.mockingDetails;
+import static ru.filmogram.util.Util.decodeChangeToken;
 
 @SpringBootTest
 @AutoConfigureTestDatabase
@@ -30,6 +57,24 @@ class FilmDbStorageImplTests {
     FilmStorage filmStorage;
     @Autowired
     UserStorage userStorage;
+    @Autowired
+    FilmDbStorageImpl filmDbStorage;
+    @Autowired
+    FilmCache filmCache;
+    @Autowired
+    GenreStorage genreStorage;
+    @Autowired
+    MpaStorage mpaStorage;
+    @Autowired
+    SimilarFilmsIndex similarFilmsIndex;
+    @Autowired
+    TrendingFilmsIndex trendingIndex;
+    @Autowired
+    FilmChangeLog changeLog;
+    @Autowired
+    PlatformTransactionManager transactionManager;
+    @SpyBean
+    JdbcTemplate jdbcTemplate;
 
     @Test
     void testCreateFilm() throws ValidationException {
@@ -338,4 +383,657 @@ class FilmDbStorageImplTests {
         assertEquals(baseFilm.getId(), actualFilms.get(1).getId());
         assertEquals(2, actualFilms.size());
     }
-}
\ No newline at end of file
+
+    @Test
+    void testFilmListQueryCountDoesNotDependOnFilmCount() throws ValidationException {
+        createFilms(2);
+        long queriesForTwoFilms = countListQueries();
+
+        createFilms(20);
+        long queriesForTwentyTwoFilms = countListQueries();
+
+        assertEquals(22, filmStorage.findAllFilm().size());
+        assertEquals(3, filmStorage.findAllFilm().get(21).getGenres().size());
+        assertEquals(queriesForTwoFilms, queriesForTwentyTwoFilms);
+    }
+
+    @Test
+    void testFindFilmsAfter() throws ValidationException {
+        createFilms(5);
+
+        List<Film> firstPage = filmStorage.findFilmsAfter(0L, 2);
+        List<Film> secondPage = filmStorage.findFilmsAfter(firstPage.get(1).getId(), 2);
+        List<Film> lastPage = filmStorage.findFilmsAfter(4L, 2);
+
+        assertEquals(List.of(1L, 2L), List.of(firstPage.get(0).getId(), firstPage.get(1).getId()));
+        assertEquals(List.of(3L, 4L), List.of(secondPage.get(0).getId(), secondPage.get(1).getId()));
+        assertEquals(1, lastPage.size());
+        assertEquals(3, lastPage.get(0).getGenres().size());
+        assertEquals(0, filmStorage.findFilmsAfter(5L, 2).size());
+    }
+
+    @Test
+    void testStreamFilms() throws ValidationException {
+        createFilms(3);
+        filmStorage.createFilm(Film.builder()
+                .description("Без жанров")
+                .duration(90L)
+                .name("Без жанров")
+                .releaseDate(LocalDate.of(2001, 1, 1))
+                .mpa(Mpa.builder()
+                        .id(2L)
+                        .build())
+                .build());
+        User baseUser = userStorage.createUser(User.builder()
+                .name("Поток")
+                .email("stream@come.1")
+                .login("stream")
+                .birthday(LocalDate.of(1997, 07, 05))
+                .build());
+        filmStorage.addLikeFilm(3L, baseUser.getId());
+
+        List<Film> streamed = new ArrayList<>();
+        filmStorage.streamAllFilm(streamed::add);
+        List<Film> popular = new ArrayList<>();
+        filmStorage.streamPopularFilm(2, popular::add);
+
+        assertEquals(filmStorage.findAllFilm(), streamed);
+        assertEquals(0, streamed.get(3).getGenres().size());
+        assertEquals(List.of(3L, 1L), List.of(popular.get(0).getId(), popular.get(1).getId()));
+        assertEquals(3, popular.get(0).getGenres().size());
+    }
+
+    @Test
+    void testFilmWritesApplyGenreDiffWithoutReadingBack() throws ValidationException {
+        createFilms(1);
+        clearInvocations(jdbcTemplate);
+        Film film = filmStorage.createFilm(Film.builder()
+                .description("Описание")
+                .duration(100L)
+                .name("Жанры")
+                .releaseDate(LocalDate.of(2000, 1, 1))
+                .mpa(Mpa.builder().id(2L).build())
+                .genres(List.of(Genre.builder().id(3L).build(),
+                        Genre.builder().id(1L).build(),
+                        Genre.builder().id(3L).build()))
+                .build());
+
+        assertEquals(List.of(1L, 3L), genreIds(film));
+        assertEquals("PG", film.getMpa().getName());
+        assertEquals(0, mockingDetails(jdbcTemplate).getInvocations().stream()
+                .filter(invocation -> invocation.getMethod().getName().startsWith("query"))
+                .count());
+        assertEquals(film, filmStorage.getFilmId(film.getId()));
+
+        film.setGenres(List.of(Genre.builder().id(4L).build(), Genre.builder().id(3L).build()));
+        Film updatedFilm = filmStorage.updateFilm(film);
+
+        assertEquals(List.of(3L, 4L), genreIds(updatedFilm));
+        assertEquals(updatedFilm, filmStorage.getFilmId(film.getId()));
+
+        film.setId(999L);
+        assertThrows(ObjectNotFoundException.class, () -> filmStorage.updateFilm(film));
+    }
+
+    @Test
+    void testCreateFilmsInsertsBatchWithGenres() throws ValidationException {
+        createFilms(1);
+        List<Film> films = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            films.add(Film.builder()
+                    .description("Пакет " + i)
+                    .duration(90L)
+                    .name("Пакетный фильм " + i)
+                    .releaseDate(LocalDate.of(2001, 1, 1))
+                    .mpa(Mpa.builder().id(3L).build())
+                    .genres(i == 0 ? null : List.of(Genre.builder().id((long) i).build()))
+                    .build());
+        }
+
+        List<Film> saved = filmStorage.createFilms(films);
+
+        assertEquals(List.of(2L, 3L, 4L), List.of(saved.get(0).getId(), saved.get(1).getId(), saved.get(2).getId()));
+        assertEquals(saved.get(2), filmStorage.getFilmId(4L));
+        assertEquals(List.of(), filmStorage.getFilmId(2L).getGenres());
+        assertEquals(4, filmStorage.findAllFilm().size());
+        assertEquals(4, filmDbStorage.getAllPopular().size());
+    }
+
+    @Test
+    void testGetFilmIdIsCachedAndInvalidated() throws ValidationException {
+        createFilms(1);
+        User baseUser = userStorage.createUser(User.builder()
+                .name("Кэш")
+                .email("cache@come.1")
+                .login("cache")
+                .birthday(LocalDate.of(1997, 07, 05))
+                .build());
+
+        Film film = filmStorage.getFilmId(1L);
+        // из кэша отдается копия, поэтому правка полученного фильма не видна следующему чтению
+        film.getGenres().clear();
+        film.setName("Правка без сохранения");
+        Film cached = filmStorage.getFilmId(1L);
+        assertNotSame(film, cached);
+        assertEquals("Фильм 0", cached.getName());
+        assertEquals(List.of(1L, 2L, 3L), genreIds(cached));
+        // жанры и рейтинг не копируются: это общие экземпляры справочников
+        assertSame(genreStorage.getGenre(1L), cached.getGenres().get(0));
+        assertSame(mpaStorage.getMpaId(cached.getMpa().getId()), cached.getMpa());
+        assertEquals(1, filmCache.stats().hitCount());
+        assertEquals(1, filmCache.stats().missCount());
+
+        film.setName("Новое название");
+        film.setGenres(List.of(Genre.builder().id(4L).build()));
+        filmStorage.updateFilm(film);
+        Film updatedFilm = filmStorage.getFilmId(1L);
+        assertEquals("Новое название", updatedFilm.getName());
+        assertEquals(4L, updatedFilm.getGenres().get(0).getId());
+
+        filmStorage.addLikeFilm(1L, baseUser.getId());
+        assertNotSame(updatedFilm, filmStorage.getFilmId(1L));
+        assertEquals(3, filmCache.stats().missCount());
+    }
+
+    @Test
+    void testConcurrentCacheMissesLoadFilmOnce() throws Exception {
+        createFilms(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Film>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            results.add(executor.submit(() -> {
+                start.await();
+                return filmStorage.getFilmId(1L);
+            }));
+        }
+        start.countDown();
+        for (Future<Film> result : results) {
+            assertEquals(1L, result.get().getId());
+        }
+        executor.shutdown();
+
+        assertEquals(1, filmCache.stats().loadCount());
+    }
+
+    @Test
+    void testLikeCountIsMaintainedAndReconciled() throws ValidationException {
+        createFilms(2);
+        User baseUser = userStorage.createUser(User.builder()
+                .name("Лайк1")
+                .email("like@come.1")
+                .login("like1")
+                .birthday(LocalDate.of(1997, 07, 05))
+                .build());
+        User baseUser1 = userStorage.createUser(User.builder()
+                .name("Лайк2")
+                .email("like@come.2")
+                .login("like2")
+                .birthday(LocalDate.of(1997, 07, 05))
+                .build());
+
+        assertTrue(filmStorage.addLikeFilm(2L, baseUser.getId()));
+        assertTrue(filmStorage.addLikeFilm(2L, baseUser1.getId()));
+        assertFalse(filmStorage.addLikeFilm(2L, baseUser1.getId()));
+        assertTrue(filmStorage.addLikeFilm(1L, baseUser.getId()));
+        filmStorage.deleteLikeFilm(1L, baseUser.getId());
+
+        assertEquals(2, likeCount(2L));
+        assertEquals(0, likeCount(1L));
+
+        jdbcTemplate.update("UPDATE film SET like_count = 7 WHERE film_id = 1");
+        assertEquals(1, filmDbStorage.reconcileLikeCounts());
+        assertEquals(0, likeCount(1L));
+        assertEquals(0, filmDbStorage.reconcileLikeCounts());
+        assertEquals(2L, filmStorage.sortPopularFilm(1).get(0).getId());
+    }
+
+    @Test
+    void testConcurrentLikesAreNotDuplicated() throws Exception {
+        createFilms(2);
+        List<Long> userIds = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            userIds.add(userStorage.createUser(User.builder()
+                    .name("Параллельный" + i)
+                    .email("parallel@come." + i)
+                    .login("parallel" + i)
+                    .birthday(LocalDate.of(1997, 07, 05))
+                    .build()).getId());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int attempt = 0; attempt < 5; attempt++) {
+            for (long filmId = 1; filmId <= 2; filmId++) {
+                for (Long userId : userIds) {
+                    long film = filmId;
+                    results.add(executor.submit(() -> {
+                        start.await();
+                        return filmStorage.addLikeFilm(film, userId);
+                    }));
+                }
+            }
+        }
+        start.countDown();
+        int changed = 0;
+        for (Future<Boolean> result : results) {
+            if (result.get()) {
+                changed++;
+            }
+        }
+        executor.shutdown();
+
+        assertEquals(8, changed);
+        assertEquals(8, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM likes", Integer.class));
+        assertEquals(4, likeCount(1L));
+        assertEquals(4, likeCount(2L));
+        assertEquals(0, filmDbStorage.reconcileLikeCounts());
+        assertThrows(ObjectNotFoundException.class, () -> filmStorage.deleteLikeFilm(1L, 99L));
+    }
+
+    @Test
+    void testGetRecommendationsFollowLikesAndReload() throws ValidationException {
+        createFilms(4);
+        List<Long> userIds = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            userIds.add(userStorage.createUser(User.builder()
+                    .name("Похожий" + i)
+                    .email("similar@come." + i)
+                    .login("similar" + i)
+                    .birthday(LocalDate.of(1997, 07, 05))
+                    .build()).getId());
+        }
+        filmStorage.addLikeFilm(1L, userIds.get(0));
+        filmStorage.addLikeFilm(1L, userIds.get(1));
+        filmStorage.addLikeFilm(2L, userIds.get(1));
+        filmStorage.addLikeFilm(3L, userIds.get(1));
+        filmStorage.addLikeFilm(4L, userIds.get(2));
+
+        List<Film> recommended = filmStorage.getRecommendations(userIds.get(0), 10);
+        assertEquals(List.of(2L, 3L), List.of(recommended.get(0).getId(), recommended.get(1).getId()));
+        assertEquals(2, recommended.size());
+
+        filmStorage.deleteLikeFilm(3L, userIds.get(1));
+        assertEquals(1, filmStorage.getRecommendations(userIds.get(0), 10).size());
+
+        // лайк, записанный в обход хранилища, виден после загрузки матрицы из таблицы likes
+        jdbcTemplate.update("INSERT INTO likes (film_id, user_id) VALUES (4, ?)", userIds.get(1));
+        filmDbStorage.loadLikesMatrix();
+        recommended = filmStorage.getRecommendations(userIds.get(0), 10);
+        assertEquals(List.of(2L, 4L), List.of(recommended.get(0).getId(), recommended.get(1).getId()));
+
+        recommended = filmStorage.getRecommendations(userIds.get(2), 10);
+        assertEquals(List.of(1L, 2L), List.of(recommended.get(0).getId(), recommended.get(1).getId()));
+        assertThrows(ObjectNotFoundException.class, () -> filmStorage.getRecommendations(99L, 10));
+    }
+
+    @Test
+    void testGetSimilarFilmsFromPrecomputedIndex() throws ValidationException {
+        createFilms(3);
+        List<Long> userIds = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            userIds.add(userStorage.createUser(User.builder()
+                    .name("Соседний" + i)
+                    .email("similar-film@come." + i)
+                    .login("similarFilm" + i)
+                    .birthday(LocalDate.of(1997, 07, 05))
+                    .build()).getId());
+        }
+        filmStorage.addLikeFilm(1L, userIds.get(0));
+        filmStorage.addLikeFilm(2L, userIds.get(0));
+        filmStorage.addLikeFilm(1L, userIds.get(1));
+        filmStorage.addLikeFilm(3L, userIds.get(1));
+        similarFilmsIndex.refreshDirty();
+
+        List<Film> similar = filmStorage.getSimilarFilms(1L, 10);
+        assertEquals(List.of(2L, 3L), List.of(similar.get(0).getId(), similar.get(1).getId()));
+        assertEquals(1, filmStorage.getSimilarFilms(2L, 10).size());
+
+        // после прогрева кэша чтение похожих фильмов не обращается к базе
+        clearInvocations(jdbcTemplate);
+        filmStorage.getSimilarFilms(1L, 10);
+        assertEquals(0, mockingDetails(jdbcTemplate).getInvocations().size());
+
+        // промахи кэша загружаются одним запросом фильмов и одним запросом жанров, а не по запросу на фильм
+        filmCache.invalidate(2L);
+        filmCache.invalidate(3L);
+        long misses = filmCache.stats().missCount();
+        clearInvocations(jdbcTemplate);
+        assertEquals(List.of(2L, 3L), filmIds(filmStorage.getSimilarFilms(1L, 10)));
+        assertEquals(misses + 2, filmCache.stats().missCount());
+        assertEquals(0, mockingDetails(jdbcTemplate).getInvocations().stream()
+                .filter(invocation -> invocation.getArguments().length > 0
+                        && String.valueOf(invocation.getArguments()[0]).contains("WHERE f.film_id = ?"))
+                .count());
+        assertThrows(ObjectNotFoundException.class, () -> filmStorage.getSimilarFilms(99L, 10));
+    }
+
+    @Test
+    void testSearchFilmsFollowsCreateUpdateAndReload() throws ValidationException {
+        createFilms(3);
+        filmStorage.createFilms(List.of(Film.builder()
+                .description("Космическая одиссея")
+                .duration(100L)
+                .name("Звездные войны")
+                .releaseDate(LocalDate.of(1977, 5, 25))
+                .mpa(Mpa.builder().id(1L).build())
+                .build()));
+
+        List<Film> found = filmStorage.searchFilms("описание", 10);
+        assertEquals(List.of(1L, 2L, 3L), List.of(found.get(0).getId(), found.get(1).getId(), found.get(2).getId()));
+        assertEquals(2L, filmStorage.searchFilms("фильм 1", 10).get(0).getId());
+        assertEquals(4L, filmStorage.searchFilms("ЗВЁЗД косм", 10).get(0).getId());
+
+        Film renamed = filmStorage.getFilmId(2L);
+        renamed.setName("Переименованный");
+        filmStorage.updateFilm(renamed);
+        assertEquals(2L, filmStorage.searchFilms("переимен", 10).get(0).getId());
+        assertEquals(List.of(), filmStorage.searchFilms("фильм 1", 10));
+
+        filmDbStorage.loadSearchIndex();
+        assertEquals(3, filmStorage.searchFilms("описание", 10).size());
+        assertEquals(1, filmStorage.searchFilms("переимен", 10).size());
+    }
+
+    @Test
+    void testAutocompleteFilmsByTitlePrefixAndLikes() throws ValidationException {
+        createFilms(3);
+        Long userId = userStorage.createUser(User.builder()
+                .name("Зритель")
+                .email("autocomplete@come.ru")
+                .login("autocomplete")
+                .birthday(LocalDate.of(1997, 07, 05))
+                .build()).getId();
+        filmStorage.addLikeFilm(3L, userId);
+
+        List<Film> suggested = filmStorage.autocompleteFilms("ФИЛЬ", 10);
+        assertEquals(List.of(3L, 1L, 2L), List.of(suggested.get(0).getId(), suggested.get(1).getId(),
+                suggested.get(2).getId()));
+        assertEquals(1, filmStorage.autocompleteFilms("фильм 1", 10).size());
+
+        Film renamed = filmStorage.getFilmId(1L);
+        renamed.setName("Ёжик в тумане");
+        filmStorage.updateFilm(renamed);
+        assertEquals(2, filmStorage.autocompleteFilms("фильм", 10).size());
+        assertEquals(1L, filmStorage.autocompleteFilms("ежик", 10).get(0).getId());
+
+        filmDbStorage.loadSearchIndex();
+        assertEquals(1L, filmStorage.autocompleteFilms("ежик", 10).get(0).getId());
+        assertEquals(List.of(), filmStorage.autocompleteFilms("кот", 10));
+    }
+
+    @Test
+    void testFilterFilmsWithFacetCounts() throws ValidationException {
+        createFilms(2);
+        filmStorage.createFilms(List.of(Film.builder()
+                .description("Космическая одиссея")
+                .duration(100L)
+                .name("Звездные войны")
+                .releaseDate(LocalDate.of(1977, 5, 25))
+                .mpa(Mpa.builder().id(2L).build())
+                .genres(List.of(Genre.builder().id(4L).build()))
+                .build()));
+
+        FilmFacetPage page = filmStorage.filterFilms(FilmFilter.builder().genres(Set.of(1L, 4L)).build(), 10);
+        assertEquals(3, page.getTotal());
+        assertEquals(Map.of(1L, 2, 2L, 2, 3L, 2, 4L, 1), page.getGenres());
+        assertEquals(Map.of(1L, 2, 2L, 1), page.getMpa());
+        assertEquals(Map.of(1970, 1, 2000, 2), page.getDecades());
+
+        page = filmStorage.filterFilms(FilmFilter.builder().mpa(Set.of(2L)).yearTo(1990).build(), 10);
+        assertEquals(List.of(3L), List.of(page.getItems().get(0).getId()));
+        assertEquals("Звездные войны", page.getItems().get(0).getName());
+
+        Film moved = filmStorage.getFilmId(1L);
+        moved.setReleaseDate(LocalDate.of(1975, 1, 1));
+        moved.setGenres(List.of(Genre.builder().id(4L).build()));
+        filmStorage.updateFilm(moved);
+        page = filmStorage.filterFilms(FilmFilter.builder().genres(Set.of(4L)).yearTo(1990).build(), 10);
+        assertEquals(2, page.getTotal());
+        assertEquals(Map.of(4L, 2), page.getGenres());
+
+        filmDbStorage.loadFacetIndex();
+        assertEquals(2, filmStorage.filterFilms(FilmFilter.builder().genres(Set.of(4L)).yearTo(1990).build(), 10)
+                .getTotal());
+    }
+
+    @Test
+    void testSortPopularFilmWithFilters() throws ValidationException {
+        createFilms(2);
+        filmStorage.createFilms(List.of(Film.builder()
+                .description("Космическая одиссея")
+                .duration(100L)
+                .name("Звездные войны")
+                .releaseDate(LocalDate.of(1977, 5, 25))
+                .mpa(Mpa.builder().id(2L).build())
+                .genres(List.of(Genre.builder().id(1L).build()))
+                .build()));
+        for (int i = 0; i < 3; i++) {
+            User user = userStorage.createUser(User.builder()
+                    .name("Зритель " + i)
+                    .email("viewer" + i + "@mail.ru")
+                    .login("viewer" + i)
+                    .birthday(LocalDate.of(1990, 1, 1))
+                    .build());
+            filmStorage.addLikeFilm(3L, user.getId());
+            if (i > 0) {
+                filmStorage.addLikeFilm(2L, user.getId());
+            }
+        }
+
+        assertEquals(List.of(3L, 2L, 1L), filmIds(filmStorage.sortPopularFilm(10, 1L, null, null)));
+        assertEquals(List.of(2L), filmIds(filmStorage.sortPopularFilm(1, 2L, null, null)));
+        assertEquals(List.of(2L, 1L), filmIds(filmStorage.sortPopularFilm(null, null, 1L, 2000)));
+        assertEquals(List.of(3L), filmIds(filmStorage.sortPopularFilm(null, 1L, 2L, 1977)));
+        assertEquals(List.of(), filmIds(filmStorage.sortPopularFilm(null, 4L, null, 1977)));
+        assertThrows(ValidationException.class, () -> filmStorage.sortPopularFilm(-1, 1L, null, null));
+    }
+
+    @Test
+    void testSortPopularFilmQueriesUseIndexes() {
+        // без года фильмы читаются по индексу рейтинга уже в нужном порядке, без сортировки
+        String plan = explainPopular(1L, 1L, null);
+        assertTrue(plan.contains("FILM_LIKE_COUNT_IDX"), plan);
+        assertTrue(plan.contains("index sorted"), plan);
+        // жанр проверяется поиском по первичному ключу genre_film, а не перебором
+        assertTrue(plan.contains("GENRE_ID = ?2\n            AND FILM_ID = F.FILM_ID"), plan);
+
+        assertTrue(explainPopular(null, 1L, 2000).contains("FILM_RATING_RELEASE_IDX"));
+        assertTrue(explainPopular(1L, null, 2000).contains("FILM_RELEASE_IDX"));
+    }
+
+    @Test
+    void testSparsePopularFiltersStartFromFilterIndex() throws ValidationException {
+        List<Film> films = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            films.add(Film.builder()
+                    .name("Частый " + i)
+                    .description("Описание")
+                    .duration(100L)
+                    .releaseDate(LocalDate.of(2000, 1, 1))
+                    .mpa(Mpa.builder().id(1L).build())
+                    .genres(List.of(Genre.builder().id(1L).build()))
+                    .build());
+        }
+        for (int i = 0; i < 2; i++) {
+            films.add(Film.builder()
+                    .name("Редкий " + i)
+                    .description("Описание")
+                    .duration(100L)
+                    .releaseDate(LocalDate.of(2000, 1, 1))
+                    .mpa(Mpa.builder().id(5L).build())
+                    .genres(List.of(Genre.builder().id(6L).build()))
+                    .build());
+        }
+        filmStorage.createFilms(films);
+        User user = userStorage.createUser(User.builder()
+                .name("Зритель")
+                .email("sparse@mail.ru")
+                .login("sparse")
+                .birthday(LocalDate.of(1990, 1, 1))
+                .build());
+        filmStorage.addLikeFilm(302L, user.getId());
+
+        // обход рейтинга прошел бы все частые фильмы, поэтому выборка начинается с редкого жанра или рейтинга
+        String plan = explainPopular(6L, null, null);
+        assertTrue(plan.contains("GENRE_FILM_GENRE_IDX"), plan);
+        assertFalse(plan.contains("FILM_LIKE_COUNT_IDX"), plan);
+        assertTrue(explainPopular(6L, 5L, null).contains("GENRE_FILM_GENRE_IDX"));
+        assertTrue(explainPopular(null, 5L, null).contains("FILM_RATING_RELEASE_IDX"));
+        // частый фильтр по-прежнему идет по рейтингу
+        assertTrue(explainPopular(1L, 1L, null).contains("FILM_LIKE_COUNT_IDX"));
+
+        assertEquals(List.of(302L, 301L), filmIds(filmStorage.sortPopularFilm(10, 6L, null, null)));
+        assertEquals(List.of(302L, 301L), filmIds(filmStorage.sortPopularFilm(10, 6L, 5L, null)));
+        assertEquals(List.of(302L, 301L), filmIds(filmStorage.sortPopularFilm(10, null, 5L, null)));
+    }
+
+    @Test
+    void testTrendingFilmsFollowLikesAndReload() throws ValidationException {
+        createFilms(3);
+        List<Long> userIds = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            userIds.add(userStorage.createUser(User.builder()
+                    .name("Зритель " + i)
+                    .email("viewer" + i + "@mail.ru")
+                    .login("viewer" + i)
+                    .birthday(LocalDate.of(1990, 1, 1))
+                    .build()).getId());
+        }
+        for (Long userId : userIds) {
+            filmStorage.addLikeFilm(2L, userId);
+        }
+        filmStorage.addLikeFilm(3L, userIds.get(0));
+        filmStorage.addLikeFilm(3L, userIds.get(1));
+        filmStorage.addLikeFilm(1L, userIds.get(1));
+        filmStorage.addLikeFilm(1L, userIds.get(2));
+        filmStorage.addLikeFilm(1L, userIds.get(0));
+        filmStorage.deleteLikeFilm(1L, userIds.get(0));
+        trendingIndex.refresh();
+        assertEquals(List.of(2L, 1L, 3L), filmIds(filmStorage.getTrendingFilms(TrendingFilmsIndex.Window.HOUR, 10)));
+        assertEquals(List.of(2L), filmIds(filmStorage.getTrendingFilms(TrendingFilmsIndex.Window.WEEK, 1)));
+
+        // при загрузке из базы like старше недели в окна уже не попадает
+        jdbcTemplate.update("UPDATE likes SET created_at = DATEADD(DAY, -8, created_at) " +
+                "WHERE film_id = 1 AND user_id = ?", userIds.get(1));
+        filmDbStorage.loadTrendingIndex();
+        assertEquals(List.of(2L, 3L, 1L), filmIds(filmStorage.getTrendingFilms(TrendingFilmsIndex.Window.WEEK, 10)));
+    }
+
+    @Test
+    void testFilmChangesSinceToken() throws ValidationException {
+        createFilms(3);
+        Long userId = userStorage.createUser(User.builder()
+                .name("Зритель")
+                .email("viewer@mail.ru")
+                .login("viewer")
+                .birthday(LocalDate.of(1990, 1, 1))
+                .build()).getId();
+
+        // без токена клиент загружает каталог целиком и получает токен, с которого продолжать
+        FilmChanges start = filmStorage.getFilmChanges(null, 10);
+        assertTrue(start.isResync());
+        assertEquals(List.of(), start.getItems());
+        Long since = decodeChangeToken(start.getNext());
+
+        filmStorage.addLikeFilm(3L, userId);
+        Film updated = filmStorage.getFilmId(1L);
+        updated.setName("Новое название");
+        filmStorage.updateFilm(updated);
+        filmStorage.addLikeFilm(2L, userId);
+        filmStorage.deleteLikeFilm(3L, userId);
+
+        FilmChanges changes = filmStorage.getFilmChanges(since, 10);
+        assertFalse(changes.isResync());
+        assertFalse(changes.isMore());
+        assertEquals(List.of(1L, 2L, 3L), filmIds(changes.getItems()));
+        assertEquals("Новое название", changes.getItems().get(0).getName());
+        assertEquals(List.of(), filmStorage.getFilmChanges(decodeChangeToken(changes.getNext()), 10).getItems());
+
+        FilmChanges first = filmStorage.getFilmChanges(since, 2);
+        assertTrue(first.isMore());
+        assertEquals(List.of(1L, 2L), filmIds(first.getItems()));
+        FilmChanges second = filmStorage.getFilmChanges(decodeChangeToken(first.getNext()), 2);
+        assertFalse(second.isMore());
+        assertEquals(List.of(3L), filmIds(second.getItems()));
+        assertEquals(changes.getNext(), second.getNext());
+
+        // изменение незавершенной транзакции не отдается, и токен не уходит дальше него
+        Long next = decodeChangeToken(changes.getNext());
+        new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+            changeLog.record(List.of(1L));
+            FilmChanges pending = filmStorage.getFilmChanges(next, 10);
+            assertEquals(List.of(), pending.getItems());
+            assertEquals(changes.getNext(), pending.getNext());
+            status.setRollbackOnly();
+        });
+        filmStorage.addLikeFilm(1L, userId);
+        assertEquals(List.of(1L), filmIds(filmStorage.getFilmChanges(next, 10).getItems()));
+
+        // после уплотнения у фильма остается одна строка, а слишком старый токен требует полной загрузки
+        changeLog.compact();
+        assertEquals(3, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM film_change", Integer.class));
+        assertEquals(List.of(1L), filmIds(filmStorage.getFilmChanges(next, 10).getItems()));
+        jdbcTemplate.update("UPDATE film_change SET changed_at = DATEADD(DAY, -8, changed_at) WHERE film_id <> 1");
+        changeLog.compact();
+        assertTrue(filmStorage.getFilmChanges(since, 10).isResync());
+        assertEquals(List.of(1L), filmIds(filmStorage.getFilmChanges(next, 10).getItems()));
+        changeLog.load();
+        assertTrue(filmStorage.getFilmChanges(since, 10).isResync());
+    }
+
+    private String explainPopular(Long genreId, Long mpaId, Integer year) {
+        List<Object> args = new ArrayList<>();
+        String sql = filmDbStorage.popularFilmsSql(genreId, mpaId, year, 10, args);
+        return jdbcTemplate.queryForObject("EXPLAIN " + sql, String.class, args.toArray());
+    }
+
+    private List<Long> filmIds(List<Film> films) {
+        List<Long> ids = new ArrayList<>();
+        for (Film film : films) {
+            ids.add(film.getId());
+        }
+        return ids;
+    }
+
+    private List<Long> genreIds(Film film) {
+        List<Long> ids = new ArrayList<>();
+        for (Genre genre : film.getGenres()) {
+            ids.add(genre.getId());
+        }
+        return ids;
+    }
+
+    private Integer likeCount(Long filmId) {
+        return jdbcTemplate.queryForObject("SELECT like_count FROM film WHERE film_id = ?", Integer.class, filmId);
+    }
+
+    private long countListQueries() throws ValidationException {
+        clearInvocations(jdbcTemplate);
+        filmStorage.findAllFilm();
+        filmStorage.sortPopularFilm(100);
+        filmStorage.getAllPopular();
+        return mockingDetails(jdbcTemplate).getInvocations().stream()
+                .filter(invocation -> invocation.getMethod().getName().startsWith("query"))
+                .count();
+    }
+
+    private void createFilms(int count) throws ValidationException {
+        for (int i = 0; i < count; i++) {
+            filmStorage.createFilm(Film.builder()
+                    .description("Описание " + i)
+                    .duration(100L)
+                    .name("Фильм " + i)
+                    .releaseDate(LocalDate.of(2000, 1, 1))
+                    .mpa(Mpa.builder()
+                            .id(1L)
+                            .build())
+                    .genres(List.of(Genre.builder().id(1L).build(),
+                            Genre.builder().id(2L).build(),
+                            Genre.builder().id(3L).build()))
+                    .rate(1)
+                    .build());
+        }
+    }
+}
@@ -5,7 +5,10 @@ import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.annotation.DirtiesContext;
+import ru.filmogram.exceptions.ObjectNotFoundException;
 import ru.filmogram.exceptions.ValidationException;
 import ru.filmogram.model.Genre;
 import ru.filmogram.storage.film.GenreStorage;
@@ -13,6 +16,10 @@ import ru.filmogram.storage.film.GenreStorage;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.verifyNoInteractions;
 
 @SpringBootTest
 @AutoConfigureTestDatabase
@@ -22,6 +29,8 @@ class GenreDbStorageImplTest {
 
     @Autowired
     GenreStorage genreStorage;
+    @SpyBean
+    JdbcTemplate jdbcTemplate;
 
     @Test
     void testGetGenreId() throws ValidationException {
@@ -36,4 +45,25 @@ class GenreDbStorageImplTest {
 
         assertEquals(6, allGenre.size(), "Количество жанров соответствует");
     }
+
+    @Test
+    void testGenresAreServedWithoutJdbc() {
+        clearInvocations(jdbcTemplate);
+
+        assertEquals("Драма", genreStorage.getGenre(2L).getName());
+        assertSame(genreStorage.getGenre(2L), genreStorage.findAllGenres().get(1));
+        assertThrows(ObjectNotFoundException.class, () -> genreStorage.getGenre(99L));
+        verifyNoInteractions(jdbcTemplate);
+    }
+
+    @Test
+    void testRefreshPicksUpNewGenres() {
+        jdbcTemplate.update("INSERT INTO genre VALUES (7, 'Вестерн')");
+        assertThrows(ObjectNotFoundException.class, () -> genreStorage.getGenre(7L));
+
+        genreStorage.refresh();
+
+        assertEquals("Вестерн", genreStorage.getGenre(7L).getName());
+        assertEquals(7, genreStorage.findAllGenres().size());
+    }
 }
\ No newline at end of file
@@ -0,0 +1,195 @@
+package ru.filmogram.dao;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.annotation.DirtiesContext;
+import ru.filmogram.exceptions.ObjectNotFoundException;
+import ru.filmogram.exceptions.ValidationException;
+import ru.filmogram.model.Film;
+import ru.filmogram.model.Mpa;
+import ru.filmogram.model.User;
+import ru.filmogram.storage.film.FilmPopularityIndex;
+import ru.filmogram.storage.film.FilmStorage;
+import ru.filmogram.storage.film.LikesMatrix;
+import ru.filmogram.storage.film.SimilarFilmsIndex;
+import ru.filmogram.storage.user.UserStorage;
+
+import java.time.LocalDate;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doCallRealMethod;
+import static org.mockito.Mockito.doThrow;
+
+@SpringBootTest(properties = {
+        "filmorate.likes.write-behind.enabled=true",
+        "filmorate.likes.write-behind.flush-interval-ms=3600000",
+        "filmorate.likes.write-behind.flush-size=1000",
+        "filmorate.likes.write-behind.capacity=1000"})
+@AutoConfigureTestDatabase
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+class LikeWriteBufferTest {
+
+    @Autowired
+    FilmStorage filmStorage;
+    @Autowired
+    UserStorage userStorage;
+    @Autowired
+    LikeWriteBuffer likeWriteBuffer;
+    @Autowired
+    FilmPopularityIndex popularityIndex;
+    @Autowired
+    LikesMatrix likesMatrix;
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+    @SpyBean
+    FilmChangeLog changeLog;
+    @SpyBean
+    SimilarFilmsIndex similarFilms;
+
+    @Test
+    void testLikesAreCoalescedAndFlushedInBatch() throws ValidationException {
+        createFilms(2);
+        createUsers(3);
+
+        assertTrue(filmStorage.addLikeFilm(1L, 1L));
+        assertFalse(filmStorage.addLikeFilm(1L, 1L));
+        assertTrue(filmStorage.addLikeFilm(1L, 2L));
+        assertTrue(filmStorage.deleteLikeFilm(1L, 2L));
+        assertTrue(filmStorage.addLikeFilm(2L, 1L));
+        assertTrue(filmStorage.addLikeFilm(2L, 2L));
+        assertTrue(filmStorage.addLikeFilm(2L, 3L));
+
+        assertEquals(5, likeWriteBuffer.size());
+        assertEquals(0, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM likes", Integer.class));
+
+        likeWriteBuffer.flush();
+
+        assertEquals(0, likeWriteBuffer.size());
+        assertEquals(4, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM likes", Integer.class));
+        assertEquals(1, likeCount(1L));
+        assertEquals(3, likeCount(2L));
+        assertEquals(3, popularityIndex.getLikes(2L));
+        assertEquals(List.of(2L, 1L), popularityIndex.top(2));
+        assertArrayEquals(new long[]{1L, 2L}, likesMatrix.filmsOf(1L));
+        assertArrayEquals(new long[]{2L}, likesMatrix.filmsOf(2L));
+    }
+
+    @Test
+    void testUnlikeSeesBufferedAndStoredLikes() throws ValidationException {
+        createFilms(1);
+        createUsers(2);
+
+        filmStorage.addLikeFilm(1L, 1L);
+        likeWriteBuffer.flush();
+
+        assertTrue(filmStorage.addLikeFilm(1L, 2L));
+        assertTrue(filmStorage.deleteLikeFilm(1L, 2L));
+        assertThrows(ObjectNotFoundException.class, () -> filmStorage.deleteLikeFilm(1L, 2L));
+        assertTrue(filmStorage.deleteLikeFilm(1L, 1L));
+        assertThrows(ObjectNotFoundException.class, () -> filmStorage.addLikeFilm(99L, 1L));
+
+        likeWriteBuffer.flush();
+
+        assertEquals(0, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM likes", Integer.class));
+        assertEquals(0, likeCount(1L));
+    }
+
+    @Test
+    void testLikeChecksUserAndStoredLikeLikeSyncPath() throws ValidationException {
+        createFilms(1);
+        createUsers(1);
+
+        assertThrows(ObjectNotFoundException.class, () -> filmStorage.addLikeFilm(1L, 42L));
+        assertEquals(0, likeWriteBuffer.size());
+
+        filmStorage.addLikeFilm(1L, 1L);
+        likeWriteBuffer.flush();
+
+        // like уже есть только в базе
+        assertFalse(filmStorage.addLikeFilm(1L, 1L));
+        assertEquals(0, likeWriteBuffer.size());
+        // после снятия в очереди like ставится снова без обращения к базе
+        assertTrue(filmStorage.deleteLikeFilm(1L, 1L));
+        assertTrue(filmStorage.addLikeFilm(1L, 1L));
+        likeWriteBuffer.flush();
+
+        assertEquals(1, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM likes", Integer.class));
+        assertEquals(1, likeCount(1L));
+    }
+
+    @Test
+    void testFailedTransactionRequeuesBatch() throws ValidationException {
+        createFilms(1);
+        createUsers(2);
+
+        filmStorage.addLikeFilm(1L, 1L);
+        filmStorage.addLikeFilm(1L, 2L);
+        doThrow(new IllegalStateException("запись не удалась")).when(changeLog).record(any());
+        likeWriteBuffer.flush();
+
+        assertEquals(2, likeWriteBuffer.size());
+        assertEquals(0, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM likes", Integer.class));
+
+        doCallRealMethod().when(changeLog).record(any());
+        likeWriteBuffer.flush();
+        assertEquals(0, likeWriteBuffer.size());
+        assertEquals(2, likeCount(1L));
+    }
+
+    @Test
+    void testIndexFailureAfterCommitDoesNotRequeue() throws ValidationException {
+        createFilms(1);
+        createUsers(1);
+
+        filmStorage.addLikeFilm(1L, 1L);
+        doThrow(new IllegalStateException("индекс недоступен")).when(similarFilms).likeChanged(anyLong());
+        likeWriteBuffer.flush();
+
+        assertEquals(0, likeWriteBuffer.size());
+        assertEquals(1, likeCount(1L));
+        likeWriteBuffer.flush();
+        assertEquals(1, likeCount(1L));
+        assertEquals(1, popularityIndex.getLikes(1L));
+    }
+
+    private Integer likeCount(Long filmId) {
+        return jdbcTemplate.queryForObject("SELECT like_count FROM film WHERE film_id = ?", Integer.class, filmId);
+    }
+
+    private void createFilms(int count) throws ValidationException {
+        for (int i = 0; i < count; i++) {
+            filmStorage.createFilm(Film.builder()
+                    .description("Описание " + i)
+                    .duration(100L)
+                    .name("Фильм " + i)
+                    .releaseDate(LocalDate.of(2000, 1, 1))
+                    .mpa(Mpa.builder()
+                            .id(1L)
+                            .build())
+                    .rate(1)
+                    .build());
+        }
+    }
+
+    private void createUsers(int count) throws ValidationException {
+        for (int i = 0; i < count; i++) {
+            userStorage.createUser(User.builder()
+                    .name("Пользователь" + i)
+                    .email("buffer@come." + i)
+                    .login("buffer" + i)
+                    .birthday(LocalDate.of(1997, 7, 5))
+                    .build());
+        }
+    }
+}
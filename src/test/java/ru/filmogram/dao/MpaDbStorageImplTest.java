@@ -5,7 +5,10 @@ import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.annotation.DirtiesContext;
+import ru.filmogram.exceptions.ObjectNotFoundException;
 import ru.filmogram.exceptions.ValidationException;
 import ru.filmogram.model.Mpa;
 import ru.filmogram.storage.film.FilmStorage;
@@ -14,6 +17,9 @@ import ru.filmogram.storage.film.MpaStorage;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.verifyNoInteractions;
 
 @SpringBootTest
 @AutoConfigureTestDatabase
@@ -25,6 +31,8 @@ class MpaDbStorageImplTest {
     FilmStorage filmStorage;
     @Autowired
     MpaStorage mpaStorage;
+    @SpyBean
+    JdbcTemplate jdbcTemplate;
 
     @Test
     void testGetMpaId() throws ValidationException {
@@ -41,4 +49,14 @@ class MpaDbStorageImplTest {
 
         assertEquals(5, allMpa.size());
     }
+
+    @Test
+    void testMpaIsServedWithoutJdbc() {
+        clearInvocations(jdbcTemplate);
+
+        assertEquals("NC-17", mpaStorage.getMpaId(5L).getName());
+        assertEquals(5, mpaStorage.findAllMpa().size());
+        assertThrows(ObjectNotFoundException.class, () -> mpaStorage.getMpaId(0L));
+        verifyNoInteractions(jdbcTemplate);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,79 @@
+package ru.filmogram.dao;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.annotation.DirtiesContext;
+import ru.filmogram.exceptions.ObjectNotFoundException;
+import ru.filmogram.exceptions.ValidationException;
+import ru.filmogram.model.User;
+import ru.filmogram.storage.user.UserStorage;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.mockingDetails;
+
+@SpringBootTest(properties = "filmorate.friends-cache.enabled=true")
+@AutoConfigureTestDatabase
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+class UserDbStorageFriendCacheTest {
+
+    @Autowired
+    UserStorage userStorage;
+    @SpyBean
+    JdbcTemplate jdbcTemplate;
+
+    @Test
+    void testCachedFriendsAreServedWithOneQueryAndFollowChanges() throws ValidationException {
+        createUsers(4);
+        userStorage.addFriend(1L, 3L);
+        userStorage.addFriend(2L, 1L);
+        userStorage.addFriend(1L, 2L);
+
+        assertEquals(List.of(2L, 3L), friendIds(1L));
+        clearInvocations(jdbcTemplate);
+        assertEquals(List.of(2L, 3L), friendIds(1L));
+        // повторный запрос не читает id друзей, а только профили по закэшированным id
+        assertEquals(0, mockingDetails(jdbcTemplate).getInvocations().stream()
+                .filter(invocation -> invocation.getMethod().getName().equals("queryForList"))
+                .count());
+
+        userStorage.addFriend(4L, 1L);
+        userStorage.addFriend(1L, 4L);
+        assertEquals(List.of(2L, 3L, 4L), friendIds(1L));
+        assertEquals(List.of(1L), friendIds(4L));
+
+        userStorage.deleteFriend(2L, 1L);
+        assertEquals(List.of(3L, 4L), friendIds(1L));
+        assertEquals(List.of(), friendIds(2L));
+
+        assertThrows(ObjectNotFoundException.class, () -> userStorage.getFriends(99L));
+    }
+
+    private List<Long> friendIds(Long userId) {
+        List<Long> ids = new ArrayList<>();
+        for (User user : userStorage.getFriends(userId)) {
+            ids.add(user.getId());
+        }
+        return ids;
+    }
+
+    private void createUsers(int count) throws ValidationException {
+        for (int i = 1; i <= count; i++) {
+            userStorage.createUser(User.builder()
+                    .name("Друг" + i)
+                    .email("friend@come." + i)
+                    .login("friend" + i)
+                    .birthday(LocalDate.of(2001, 7, 5))
+                    .build());
+        }
+    }
+}
@@ -5,15 +5,23 @@ import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.filmogram.exceptions.ObjectNotFoundException;
 import ru.filmogram.exceptions.ValidationException;
 import ru.filmogram.model.User;
+import ru.filmogram.storage.user.FriendGraph;
 import ru.filmogram.storage.user.UserStorage;
 
 import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.List;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 @SpringBootTest
 @AutoConfigureTestDatabase
@@ -23,6 +31,12 @@ class UserDbStorageImplTest {
 
     @Autowired
     UserStorage userStorage;
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+    @Autowired
+    FriendGraph friendGraph;
+    @Autowired
+    PlatformTransactionManager transactionManager;
 
     @Test
     void testFindAllUser() throws ValidationException {
@@ -48,6 +62,68 @@ class UserDbStorageImplTest {
         assertEquals(user.getLogin(), actualUsers.get(0).getLogin());
     }
 
+    @Test
+    void testFindUsersAfter() throws ValidationException {
+        for (int i = 1; i <= 3; i++) {
+            userStorage.createUser(User.builder()
+                    .name("Том" + i)
+                    .email("nnjh@come." + i)
+                    .login("login" + i)
+                    .birthday(LocalDate.of(2001, 07, 05))
+                    .build());
+        }
+
+        List<User> firstPage = userStorage.findUsersAfter(0L, 2);
+        List<User> lastPage = userStorage.findUsersAfter(firstPage.get(1).getId(), 2);
+
+        assertEquals(2, firstPage.size());
+        assertEquals("Том1", firstPage.get(0).getName());
+        assertEquals(1, lastPage.size());
+        assertEquals("Том3", lastPage.get(0).getName());
+    }
+
+    @Test
+    void testStreamAllUser() throws ValidationException {
+        for (int i = 1; i <= 3; i++) {
+            userStorage.createUser(User.builder()
+                    .name("Том" + i)
+                    .email("nnjh@come." + i)
+                    .login("login" + i)
+                    .birthday(LocalDate.of(2001, 07, 05))
+                    .build());
+        }
+
+        List<User> streamed = new ArrayList<>();
+        userStorage.streamAllUser(streamed::add);
+
+        assertEquals(userStorage.findAllUser(), streamed);
+    }
+
+    @Test
+    void testCreateUsersInsertsBatch() throws ValidationException {
+        userStorage.createUser(User.builder()
+                .name("Том0")
+                .email("nnjh@come.0")
+                .login("login0")
+                .birthday(LocalDate.of(2001, 07, 05))
+                .build());
+        List<User> users = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            users.add(User.builder()
+                    .name("Пакет" + i)
+                    .email("batch@come." + i)
+                    .login("batch" + i)
+                    .birthday(LocalDate.of(2001, 07, 05))
+                    .build());
+        }
+
+        List<User> saved = userStorage.createUsers(users);
+
+        assertEquals(List.of(2L, 3L, 4L), List.of(saved.get(0).getId(), saved.get(1).getId(), saved.get(2).getId()));
+        assertEquals("batch3", userStorage.getUserId(4L).getLogin());
+        assertEquals(4, userStorage.findAllUser().size());
+    }
+
     @Test
     void testCreateUser() throws ValidationException {
         User user = User.builder()
@@ -161,6 +237,107 @@ class UserDbStorageImplTest {
         assertEquals(0, friendsOfBaseUser4.size());
     }
 
+    @Test
+    void testGetCommonFriendsOfLargeFriendLists() {
+        List<User> users = new ArrayList<>();
+        for (int i = 1; i <= 15_002; i++) {
+            users.add(User.builder()
+                    .name("Пользователь" + i)
+                    .email("large@come." + i)
+                    .login("large" + i)
+                    .birthday(LocalDate.of(2001, 07, 05))
+                    .build());
+        }
+        userStorage.createUsers(users);
+        // у пользователей 1 и 2 по 10 000 друзей, общие — с 5003 по 10002
+        List<Object[]> friends = new ArrayList<>();
+        for (long friendId = 3; friendId <= 10_002; friendId++) {
+            friends.add(new Object[]{1L, friendId});
+        }
+        for (long friendId = 5_003; friendId <= 15_002; friendId++) {
+            friends.add(new Object[]{friendId, 2L, true});
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO friends (friend_one_id, friend_two_id) VALUES (?, ?)",
+                friends.subList(0, 10_000));
+        jdbcTemplate.batchUpdate("INSERT INTO friends (friend_one_id, friend_two_id, status) VALUES (?, ?, ?)",
+                friends.subList(10_000, 20_000));
+
+        List<User> commonFriends = userStorage.getCommonFriends(1L, 2L);
+
+        assertEquals(5_000, commonFriends.size());
+        assertEquals(5_003L, commonFriends.get(0).getId());
+        assertEquals(10_002L, commonFriends.get(4_999).getId());
+    }
+
+    @Test
+    void testGetFriendSuggestions() {
+        List<User> users = new ArrayList<>();
+        for (int i = 1; i <= 6; i++) {
+            users.add(User.builder()
+                    .name("Пользователь" + i)
+                    .email("suggest@come." + i)
+                    .login("suggest" + i)
+                    .birthday(LocalDate.of(2001, 07, 05))
+                    .build());
+        }
+        userStorage.createUsers(users);
+        userStorage.addFriend(1L, 2L);
+        userStorage.addFriend(1L, 3L);
+        userStorage.addFriend(2L, 4L);
+        userStorage.addFriend(3L, 4L);
+        userStorage.addFriend(3L, 5L);
+        // неподтвержденная заявка 6 -> 2 не делает 6 другом 2, поэтому 6 не предлагается пользователю 1
+        userStorage.addFriend(6L, 2L);
+
+        List<User> suggestions = userStorage.getFriendSuggestions(1L, 10);
+
+        assertEquals(List.of(4L, 5L), List.of(suggestions.get(0).getId(), suggestions.get(1).getId()));
+        assertEquals(2, suggestions.size());
+        assertEquals("suggest4", suggestions.get(0).getLogin());
+
+        userStorage.deleteFriend(3L, 4L);
+        userStorage.addFriend(1L, 5L);
+        assertEquals(List.of(4L), List.of(userStorage.getFriendSuggestions(1L, 10).get(0).getId()));
+        // для отправителя заявки 6 адресат 2 уже друг
+        assertEquals(List.of(4L), List.of(userStorage.getFriendSuggestions(6L, 10).get(0).getId()));
+        assertEquals(0, userStorage.getFriendSuggestions(4L, 10).size());
+        assertThrows(ObjectNotFoundException.class, () -> userStorage.getFriendSuggestions(99L, 10));
+    }
+
+    @Test
+    void testRolledBackFriendshipDoesNotReachSuggestions() {
+        List<User> users = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            users.add(User.builder()
+                    .name("Пользователь" + i)
+                    .email("rollback@come." + i)
+                    .login("rollback" + i)
+                    .birthday(LocalDate.of(2001, 07, 05))
+                    .build());
+        }
+        userStorage.createUsers(users);
+        userStorage.addFriend(1L, 2L);
+
+        new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+            userStorage.addFriend(2L, 3L);
+            status.setRollbackOnly();
+        });
+        assertEquals(0, userStorage.getFriendSuggestions(1L, 10).size());
+        assertArrayEquals(new long[0], friendGraph.friendsOf(2L));
+
+        userStorage.addFriend(2L, 3L);
+        new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+            userStorage.deleteFriend(2L, 3L);
+            status.setRollbackOnly();
+        });
+        assertEquals(List.of(3L), List.of(userStorage.getFriendSuggestions(1L, 10).get(0).getId()));
+    }
+
+    @Test
+    void testGetFriendsOfUnknownUser() {
+        assertThrows(ObjectNotFoundException.class, () -> userStorage.getFriends(99L));
+    }
+
     @Test
     void testDeleteFriend() throws ValidationException {
         User user = User.builder()
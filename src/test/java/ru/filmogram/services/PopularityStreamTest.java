@@ -0,0 +1,131 @@
+package ru.filmogram.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import ru.filmogram.storage.film.FilmPopularityIndex;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PopularityStreamTest {
+
+    private final FilmPopularityIndex popularity = new FilmPopularityIndex();
+    private final PopularityStream stream = new PopularityStream(popularity, new ObjectMapper(),
+            new SimpleMeterRegistry(), 3, 2, 0, 2, 60_000);
+
+    @AfterEach
+    void shutdown() {
+        stream.shutdown();
+    }
+
+    @Test
+    void testSubscriberGetsSnapshotThenDiffs() throws InterruptedException {
+        popularity.set(1L, 5);
+        popularity.set(2L, 3);
+        popularity.set(3L, 1);
+        popularity.set(4L, 0);
+        stream.publish();
+        BlockingQueue<String> events = new LinkedBlockingQueue<>();
+        stream.subscribe((id, name, data) -> events.add(id + " " + name + " " + data));
+
+        assertEquals("1 snapshot [{\"filmId\":1,\"rank\":1,\"likes\":5},{\"filmId\":2,\"rank\":2,\"likes\":3}," +
+                "{\"filmId\":3,\"rank\":3,\"likes\":1}]", events.poll(5, TimeUnit.SECONDS));
+
+        // несколько лайков за интервал уходят одним событием, место фильма 1 не изменилось
+        popularity.addLike(4L);
+        popularity.addLike(4L);
+        popularity.addLike(1L);
+        stream.likeChanged();
+        stream.publish();
+        assertEquals("2 diff [{\"filmId\":1,\"rank\":1,\"likes\":6},{\"filmId\":4,\"rank\":3,\"likes\":2}," +
+                "{\"filmId\":3,\"rank\":null,\"likes\":1}]", events.poll(5, TimeUnit.SECONDS));
+
+        // без новых лайков рейтинг сверяется еще один раз, затем не пересчитывается
+        stream.publish();
+        stream.publish();
+        assertNull(events.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void testSlowSubscriberIsResyncedWithSnapshot() throws InterruptedException {
+        popularity.set(1L, 0);
+        popularity.set(2L, 0);
+        stream.publish();
+        CountDownLatch blocked = new CountDownLatch(1);
+        BlockingQueue<String> events = new LinkedBlockingQueue<>();
+        stream.subscribe((id, name, data) -> {
+            try {
+                blocked.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            events.add(id + " " + name);
+        });
+        BlockingQueue<String> fast = new LinkedBlockingQueue<>();
+        stream.subscribe((id, name, data) -> fast.add(id + " " + name));
+        assertEquals("1 snapshot", fast.poll(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 5; i++) {
+            popularity.addLike(i % 2 == 0 ? 2L : 1L);
+            popularity.addLike(i % 2 == 0 ? 2L : 1L);
+            stream.likeChanged();
+            stream.publish();
+            assertEquals((i + 2) + " diff", fast.poll(5, TimeUnit.SECONDS));
+        }
+        blocked.countDown();
+
+        // очередь медленного подписчика переполнилась: после первого snapshot он получает актуальный рейтинг целиком
+        assertEquals("1 snapshot", events.poll(5, TimeUnit.SECONDS));
+        assertEquals("6 snapshot", events.poll(5, TimeUnit.SECONDS));
+        assertNull(events.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(2, stream.subscribers());
+    }
+
+    @Test
+    void testStalledSubscriberDoesNotBlockOthers() throws InterruptedException {
+        PopularityStream single = new PopularityStream(popularity, new ObjectMapper(),
+                new SimpleMeterRegistry(), 3, 8, 0, 1, 100);
+        try {
+            popularity.set(1L, 0);
+            single.publish();
+            // клиент перестал читать: запись висит, пока соединение не оборвется
+            CountDownLatch released = new CountDownLatch(1);
+            CountDownLatch closed = new CountDownLatch(1);
+            single.subscribe((id, name, data) -> {
+                try {
+                    released.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                throw new IOException("соединение оборвано");
+            }, closed::countDown);
+            Thread.sleep(200);
+
+            BlockingQueue<String> fast = new LinkedBlockingQueue<>();
+            single.subscribe((id, name, data) -> fast.add(id + " " + name));
+            single.dropStalled();
+            assertEquals("1 snapshot", fast.poll(5, TimeUnit.SECONDS));
+            assertEquals(1, single.subscribers());
+
+            popularity.addLike(1L);
+            single.likeChanged();
+            single.publish();
+            assertEquals("2 diff", fast.poll(5, TimeUnit.SECONDS));
+
+            released.countDown();
+            assertTrue(closed.await(5, TimeUnit.SECONDS));
+        } finally {
+            single.shutdown();
+        }
+    }
+}
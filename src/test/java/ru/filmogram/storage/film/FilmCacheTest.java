@@ -0,0 +1,47 @@
+package ru.filmogram.storage.film;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import ru.filmogram.model.Film;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FilmCacheTest {
+
+    @Test
+    void testBulkLoadDoesNotKeepFilmChangedDuringLoad() {
+        FilmCache cache = new FilmCache(100, 600, new SimpleMeterRegistry());
+        AtomicInteger loads = new AtomicInteger();
+
+        // загрузка прочитала фильм до изменения, а изменение зафиксировалось и сбросило кэш до записи в него
+        Map<Long, Film> films = cache.getAll(List.of(1L, 2L), ids -> {
+            loads.incrementAndGet();
+            cache.invalidate(1L);
+            return List.of(film(1L, "Старое название"), film(2L, "Второй"));
+        });
+        assertEquals("Старое название", films.get(1L).getName());
+
+        Film fresh = cache.get(1L, id -> film(id, "Новое название"));
+        assertEquals("Новое название", fresh.getName());
+
+        // без изменений во время загрузки фильмы остаются в кэше
+        cache.getAll(List.of(3L), ids -> {
+            loads.incrementAndGet();
+            return List.of(film(3L, "Третий"));
+        });
+        cache.getAll(List.of(3L), ids -> {
+            loads.incrementAndGet();
+            return List.of();
+        });
+        assertEquals("Третий", cache.get(3L, id -> null).getName());
+        assertEquals(2, loads.get());
+    }
+
+    private static Film film(Long id, String name) {
+        return Film.builder().id(id).name(name).build();
+    }
+}
@@ -0,0 +1,87 @@
+package ru.filmogram.storage.film;
+
+import org.junit.jupiter.api.Test;
+import ru.filmogram.model.FilmFilter;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FilmFacetIndexTest {
+
+    @Test
+    void testQueryCombinesDimensionsAndCountsOtherFilters() {
+        FilmPopularityIndex popularity = new FilmPopularityIndex();
+        FilmFacetIndex index = new FilmFacetIndex(popularity);
+        index.put(1L, 1L, 1985, List.of(1L, 2L));
+        index.put(2L, 2L, 1994, List.of(2L));
+        index.put(3L, 1L, 1999, List.of(3L));
+        index.put(4L, 3L, 2003, List.of());
+        popularity.set(1L, 1);
+        popularity.set(2L, 0);
+        popularity.set(3L, 7);
+        popularity.set(4L, 2);
+
+        FilmFacetIndex.Result all = index.query(FilmFilter.builder().build(), 10);
+        assertArrayEquals(new long[]{1, 2, 3, 4}, all.getFilmIds());
+        assertEquals(Map.of(1980, 1, 1990, 2, 2000, 1), all.getDecades());
+
+        // жанры объединяются, с годами — пересечение; счетчики жанров не учитывают выбранные жанры
+        FilmFacetIndex.Result filtered = index.query(FilmFilter.builder()
+                .genres(Set.of(2L, 3L))
+                .yearFrom(1990)
+                .yearTo(2000)
+                .build(), 10);
+        assertEquals(2, filtered.getTotal());
+        assertArrayEquals(new long[]{2, 3}, filtered.getFilmIds());
+        assertEquals(Map.of(2L, 1, 3L, 1), filtered.getGenres());
+        assertEquals(Map.of(1L, 1, 2L, 1), filtered.getMpa());
+        assertEquals(Map.of(1980, 1, 1990, 2), filtered.getDecades());
+
+        FilmFacetIndex.Result popular = index.query(FilmFilter.builder().popular(true).build(), 3);
+        assertArrayEquals(new long[]{3, 4, 1}, popular.getFilmIds());
+        assertEquals(4, popular.getTotal());
+    }
+
+    @Test
+    void testPutReplacesPreviousValues() {
+        FilmFacetIndex index = new FilmFacetIndex(new FilmPopularityIndex());
+        index.put(1L, 1L, 1985, List.of(1L, 2L));
+        index.put(1L, 2L, 2001, List.of(3L));
+
+        FilmFacetIndex.Result result = index.query(FilmFilter.builder().genres(Set.of(1L)).build(), 10);
+        assertEquals(0, result.getTotal());
+        assertEquals(Map.of(3L, 1), result.getGenres());
+        assertEquals(Map.of(2000, 1), index.query(FilmFilter.builder().build(), 10).getDecades());
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    void testPopularMatchesHeapAndRankingWalk() {
+        FilmPopularityIndex popularity = new FilmPopularityIndex();
+        FilmFacetIndex index = new FilmFacetIndex(popularity);
+        for (long filmId = 1; filmId <= 10_000; filmId++) {
+            index.put(filmId, filmId % 5 + 1, 1950 + (int) (filmId % 70), List.of(filmId % 20 + 1));
+            popularity.set(filmId, (int) (filmId * 7919 % 1000));
+        }
+        // частый фильтр идет по общему рейтингу, редкий — через кучу по совпавшим фильмам
+        long[] dense = index.query(FilmFilter.builder().mpa(Set.of(1L, 2L, 3L)).popular(true).build(), 5)
+                .getFilmIds();
+        long[] sparse = index.query(FilmFilter.builder().genres(Set.of(1L)).yearFrom(1950).yearTo(1950).popular(true)
+                .build(), 5).getFilmIds();
+        assertArrayEquals(expected(popularity, 10_000, filmId -> filmId % 5 + 1 <= 3), dense);
+        assertArrayEquals(expected(popularity, 10_000, filmId -> filmId % 20 == 0 && filmId % 70 == 0), sparse);
+    }
+
+    private static long[] expected(FilmPopularityIndex popularity, int films, java.util.function.LongPredicate filter) {
+        return popularity.top(films)
+                .stream()
+                .filter(filter::test)
+                .limit(5)
+                .mapToLong(Long::longValue)
+                .toArray();
+    }
+}
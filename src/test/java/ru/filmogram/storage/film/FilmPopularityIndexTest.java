@@ -0,0 +1,76 @@
+package ru.filmogram.storage.film;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FilmPopularityIndexTest {
+
+    @Test
+    void testTopOrdersByLikesThenById() {
+        FilmPopularityIndex index = new FilmPopularityIndex();
+        index.register(1L);
+        index.register(2L);
+        index.register(3L);
+        index.addLike(3L);
+        index.addLike(3L);
+        index.addLike(2L);
+        index.addLike(1L);
+        index.deleteLike(1L);
+
+        assertEquals(List.of(3L, 2L, 1L), index.top(10));
+        assertEquals(List.of(3L), index.top(1));
+        assertEquals(0, index.getLikes(1L));
+    }
+
+    @Test
+    void testConcurrentLikesKeepExactCountsAndReadersSeeEveryFilm() throws Exception {
+        FilmPopularityIndex index = new FilmPopularityIndex();
+        int films = 50;
+        for (long filmId = 1; filmId <= films; filmId++) {
+            index.register(filmId);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        AtomicBoolean writing = new AtomicBoolean(true);
+        Future<?> reader = executor.submit(() -> {
+            while (writing.get()) {
+                List<Long> top = index.top(films);
+                assertEquals(films, top.size());
+                assertEquals(films, new HashSet<>(top).size());
+            }
+        });
+        List<Future<?>> writers = new ArrayList<>();
+        for (int writer = 0; writer < 6; writer++) {
+            writers.add(executor.submit(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    long filmId = i % films + 1;
+                    index.addLike(filmId);
+                    if (i / films % 2 == 0) {
+                        index.deleteLike(filmId);
+                    }
+                }
+            }));
+        }
+        for (Future<?> writer : writers) {
+            writer.get();
+        }
+        writing.set(false);
+        reader.get();
+        executor.shutdown();
+
+        for (long filmId = 1; filmId <= films; filmId++) {
+            assertEquals(6 * 100, index.getLikes(filmId));
+        }
+        assertTrue(index.top(films).containsAll(List.of(1L, 25L, 50L)));
+    }
+}
@@ -0,0 +1,72 @@
+package ru.filmogram.storage.film;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FilmSearchIndexTest {
+
+    @Test
+    void testSearchMatchesAllWordsByPrefixAndRanksTitleFirst() {
+        FilmSearchIndex index = new FilmSearchIndex();
+        index.index(List.of(
+                new FilmSearchIndex.Document(1, "Ёлки", "Новогодняя комедия о чудесах"),
+                new FilmSearchIndex.Document(2, "Чудеса в решете", "Комедия"),
+                new FilmSearchIndex.Document(3, "The Matrix", "Neo learns the truth about the Matrix"),
+                new FilmSearchIndex.Document(4, "Matrix Reloaded", null)));
+
+        // регистр и «ё» не важны, слово запроса ищется как начало слова
+        assertArrayEquals(new long[]{1}, index.search("ЕЛКИ", 10));
+        assertArrayEquals(new long[]{2, 1}, index.search("чудес комед", 10));
+        assertArrayEquals(new long[]{2}, index.search("чудес комед", 1));
+        assertArrayEquals(new long[]{3}, index.search("matrix neo", 10));
+        assertArrayEquals(new long[0], index.search("matrix чудеса", 10));
+        // слово короче трех букв префиксом не считается
+        assertArrayEquals(new long[0], index.search("ма", 10));
+        assertArrayEquals(new long[0], index.search(" !? ", 10));
+    }
+
+    @Test
+    void testReindexedFilmReplacesPreviousText() {
+        FilmSearchIndex index = new FilmSearchIndex();
+        index.index(1L, "Старое название", "описание");
+        index.index(2L, "Другой фильм", "описание");
+        index.index(1L, "Новое название", "описание");
+
+        assertEquals(2, index.size());
+        assertArrayEquals(new long[0], index.search("старое", 10));
+        assertArrayEquals(new long[]{1}, index.search("новое", 10));
+        assertArrayEquals(new long[]{1, 2}, index.search("описание", 10));
+    }
+
+    @Test
+    void testPrefixExpandsBeyondFirstTermsAlphabetically() {
+        FilmSearchIndex index = new FilmSearchIndex();
+        for (int i = 0; i < 100; i++) {
+            index.index((long) i + 1, String.format("abc%03d", i), null);
+        }
+        index.index(500L, "abc099 special", null);
+
+        assertArrayEquals(new long[]{500}, index.search("abc spec", 10));
+        assertEquals(10, index.search("abc", 10).length);
+    }
+
+    @Test
+    void testDeletedVersionsAreCompacted() {
+        FilmSearchIndex index = new FilmSearchIndex();
+        index.index(2L, "Другой фильм", "описание");
+        for (int i = 0; i < 5000; i++) {
+            index.index(1L, "Название " + i, "описание");
+        }
+
+        assertEquals(2, index.size());
+        assertTrue(index.deletedDocuments() < 1024);
+        assertArrayEquals(new long[]{1}, index.search("название 4999", 10));
+        assertArrayEquals(new long[0], index.search("название 10", 10));
+        assertArrayEquals(new long[]{1, 2}, index.search("описание", 10));
+    }
+}
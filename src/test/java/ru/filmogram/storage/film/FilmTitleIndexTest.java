@@ -0,0 +1,78 @@
+package ru.filmogram.storage.film;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+class FilmTitleIndexTest {
+
+    @Test
+    void testSuggestRanksByLikesWithinPrefix() {
+        FilmPopularityIndex popularity = new FilmPopularityIndex();
+        FilmTitleIndex index = new FilmTitleIndex(popularity, 3);
+        Map<Long, String> names = new HashMap<>();
+        names.put(1L, "Ёлки");
+        names.put(2L, "Елки 2");
+        names.put(3L, "Елизавета");
+        names.put(4L, "Матрица");
+        popularity.set(2L, 5);
+        popularity.set(3L, 1);
+        index.replace(names);
+
+        assertArrayEquals(new long[]{2, 3, 1}, index.suggest("ел", 10));
+        assertArrayEquals(new long[]{2, 1}, index.suggest("  ЁЛКИ", 10));
+        assertArrayEquals(new long[]{2}, index.suggest("е", 1));
+        assertArrayEquals(new long[0], index.suggest("х", 10));
+
+        // переименованный фильм пропадает со старого префикса и виден по новому до перестроения
+        index.put(4L, "Ёжик в тумане");
+        index.put(2L, "Матрица 2");
+        assertArrayEquals(new long[]{3, 1, 4}, index.suggest("е", 10));
+        assertArrayEquals(new long[]{2}, index.suggest("мат", 10));
+        index.rebuild();
+        assertArrayEquals(new long[]{3, 1, 4}, index.suggest("е", 10));
+        assertArrayEquals(new long[]{2}, index.suggest("мат", 10));
+    }
+
+    @Test
+    void testLargePrefixesUsePrecomputedTopK() {
+        FilmPopularityIndex popularity = new FilmPopularityIndex();
+        FilmTitleIndex index = new FilmTitleIndex(popularity, 5);
+        Map<Long, String> names = new HashMap<>();
+        for (long filmId = 1; filmId <= 2_000; filmId++) {
+            names.put(filmId, "Фильм " + filmId);
+            popularity.set(filmId, (int) (filmId % 100));
+        }
+        index.replace(names);
+
+        assertArrayEquals(new long[]{99, 199, 299, 399, 499}, index.suggest("фил", 5));
+        assertArrayEquals(new long[]{199, 1099, 1199, 1299, 1399}, index.suggest("фильм 1", 5));
+        assertArrayEquals(new long[]{199, 1999}, index.suggest("фильм 199", 2));
+
+        // фильм, переименованный из популярного списка, заменяется следующим по лайкам
+        index.put(99L, "Другой");
+        assertArrayEquals(new long[]{199, 299, 399, 499, 599}, index.suggest("фил", 5));
+    }
+
+    @Test
+    void testRebuildRefreshesPopularListsAfterLikes() {
+        FilmPopularityIndex popularity = new FilmPopularityIndex();
+        FilmTitleIndex index = new FilmTitleIndex(popularity, 2);
+        Map<Long, String> names = new HashMap<>();
+        for (long filmId = 1; filmId <= 1_000; filmId++) {
+            names.put(filmId, "Фильм " + filmId);
+            popularity.set(filmId, 0);
+        }
+        index.replace(names);
+        assertArrayEquals(new long[]{1, 2}, index.suggest("фил", 2));
+
+        // названия не менялись, но фильм вне списка префикса набрал лайки
+        popularity.changeLikes(500L, 3);
+        assertArrayEquals(new long[]{1, 2}, index.suggest("фил", 2));
+        index.rebuild();
+        assertArrayEquals(new long[]{500, 1}, index.suggest("фил", 2));
+    }
+}
@@ -0,0 +1,59 @@
+package ru.filmogram.storage.film;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+class LikesMatrixTest {
+
+    @Test
+    void testRecommendPrefersFilmsOfMostSimilarUsers() {
+        LikesMatrix matrix = new LikesMatrix(2, 1_000);
+        // пользователю 1 ближе всех 2 (два общих лайка), затем 3 (один), 4 ничего общего не лайкал
+        like(matrix, 1L, 10L, 11L, 12L);
+        like(matrix, 2L, 10L, 11L, 20L, 21L);
+        like(matrix, 3L, 12L, 21L, 22L);
+        like(matrix, 4L, 30L);
+
+        assertArrayEquals(new long[]{21, 20, 22}, matrix.recommend(1L, 10));
+        assertArrayEquals(new long[]{21}, matrix.recommend(1L, 1));
+        assertArrayEquals(new long[0], matrix.recommend(4L, 10));
+        assertArrayEquals(new long[0], matrix.recommend(99L, 10));
+
+        matrix.like(21L, 1L);
+        matrix.unlike(11L, 2L);
+        assertArrayEquals(new long[]{10, 11, 12, 21}, matrix.filmsOf(1L));
+        // теперь 2 и 3 одинаково похожи на 1, равные оценки идут по возрастанию id
+        assertArrayEquals(new long[]{20, 22}, matrix.recommend(1L, 10));
+    }
+
+    @Test
+    void testLoaderBuildsSameMatrixAsSingleLikes() {
+        LikesMatrix loaded = new LikesMatrix(10, 1_000);
+        LikesMatrix.Loader loader = loaded.loader();
+        loader.add(10, 1);
+        loader.add(10, 2);
+        loader.add(11, 2);
+        loader.add(11, 3);
+        loader.add(12, 3);
+        loader.finish();
+
+        LikesMatrix single = new LikesMatrix(10, 1_000);
+        single.like(11L, 3L);
+        single.like(10L, 2L);
+        single.like(12L, 3L);
+        single.like(10L, 1L);
+        single.like(11L, 2L);
+
+        assertArrayEquals(new long[]{11, 12}, loaded.filmsOf(3L));
+        assertArrayEquals(single.recommend(1L, 10), loaded.recommend(1L, 10));
+        // у 3 нет общих лайков с 1, поэтому фильм 12 не рекомендуется
+        assertArrayEquals(new long[]{11}, loaded.recommend(1L, 10));
+    }
+
+    private static void like(LikesMatrix matrix, Long userId, Long... filmIds) {
+        for (Long filmId : filmIds) {
+            matrix.like(filmId, userId);
+        }
+    }
+}
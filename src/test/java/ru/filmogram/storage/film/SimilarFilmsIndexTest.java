@@ -0,0 +1,61 @@
+package ru.filmogram.storage.film;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SimilarFilmsIndexTest {
+
+    @Test
+    void testSimilarFilmsAreRankedByJaccardAndRefreshedWhenDirty() {
+        LikesMatrix matrix = new LikesMatrix(10, 1_000);
+        SimilarFilmsIndex index = new SimilarFilmsIndex(matrix, 2, 100);
+        // фильм 10 лайкали 1 и 2; 11 — тоже 1 и 2; 12 — 1, 2, 3, 4 (общих два, но объединение больше); 13 — 3
+        like(matrix, 10L, 1L, 2L);
+        like(matrix, 11L, 1L, 2L);
+        like(matrix, 12L, 1L, 2L, 3L, 4L);
+        like(matrix, 13L, 3L);
+        index.rebuild();
+
+        assertArrayEquals(new long[]{11, 12}, index.similar(10L, 10));
+        assertArrayEquals(new long[]{11}, index.similar(10L, 1));
+        assertArrayEquals(new long[]{10, 11}, index.similar(12L, 10));
+        assertArrayEquals(new long[]{12}, index.similar(13L, 10));
+        assertArrayEquals(new long[0], index.similar(99L, 10));
+
+        // пока пересчет не прошел, чтение отдает прежний список
+        matrix.unlike(11L, 1L);
+        index.likeChanged(11L);
+        matrix.like(13L, 1L);
+        index.likeChanged(13L);
+        assertArrayEquals(new long[]{12}, index.similar(13L, 10));
+
+        assertEquals(4, index.refreshDirty());
+        assertArrayEquals(new long[]{12, 10}, index.similar(13L, 10));
+        assertEquals(0, index.refreshDirty());
+    }
+
+    @Test
+    void testRefreshIsBoundedPerTick() {
+        LikesMatrix matrix = new LikesMatrix(10, 1_000);
+        SimilarFilmsIndex index = new SimilarFilmsIndex(matrix, 2, 2);
+        for (long filmId = 10; filmId < 15; filmId++) {
+            like(matrix, filmId, 1L);
+        }
+        index.rebuild();
+
+        // like отмечает фильм и его похожие, но не все фильмы пользователя
+        matrix.like(10L, 2L);
+        index.likeChanged(10L);
+        assertEquals(2, index.refreshDirty());
+        assertEquals(1, index.refreshDirty());
+        assertEquals(0, index.refreshDirty());
+    }
+
+    private static void like(LikesMatrix matrix, Long filmId, Long... userIds) {
+        for (Long userId : userIds) {
+            matrix.like(filmId, userId);
+        }
+    }
+}
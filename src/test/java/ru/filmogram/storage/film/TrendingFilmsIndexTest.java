@@ -0,0 +1,63 @@
+package ru.filmogram.storage.film;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TrendingFilmsIndexTest {
+
+    private static final Instant NOW = Instant.parse("2024-03-10T12:30:00Z");
+
+    @Test
+    void testWindowsCountLikesAndExpire() {
+        TrendingFilmsIndex index = new TrendingFilmsIndex(10);
+        index.like(1L, NOW.minus(Duration.ofDays(3)));
+        index.like(1L, NOW.minus(Duration.ofDays(2)));
+        index.like(2L, NOW.minus(Duration.ofHours(5)));
+        index.like(3L, NOW.minus(Duration.ofMinutes(10)));
+        index.like(4L, NOW.minus(Duration.ofDays(8)));
+        index.refresh(NOW);
+
+        assertArrayEquals(new long[]{3}, index.top(TrendingFilmsIndex.Window.HOUR, 10));
+        assertArrayEquals(new long[]{2, 3}, index.top(TrendingFilmsIndex.Window.DAY, 10));
+        assertArrayEquals(new long[]{1, 2, 3}, index.top(TrendingFilmsIndex.Window.WEEK, 10));
+        assertArrayEquals(new long[]{1}, index.top(TrendingFilmsIndex.Window.WEEK, 1));
+
+        index.refresh(NOW.plus(Duration.ofHours(1)));
+        assertArrayEquals(new long[0], index.top(TrendingFilmsIndex.Window.HOUR, 10));
+        assertArrayEquals(new long[]{2, 3}, index.top(TrendingFilmsIndex.Window.DAY, 10));
+
+        index.refresh(NOW.plus(Duration.ofDays(1)));
+        assertArrayEquals(new long[0], index.top(TrendingFilmsIndex.Window.DAY, 10));
+        assertArrayEquals(new long[]{1, 2, 3}, index.top(TrendingFilmsIndex.Window.WEEK, 10));
+
+        // после простоя дольше недели счетчики пусты, а фильмы без лайков убраны из полос
+        index.refresh(NOW.plus(Duration.ofDays(30)));
+        assertArrayEquals(new long[0], index.top(TrendingFilmsIndex.Window.WEEK, 10));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    void testUnlikeRemovesLikeOnlyFromItsWindows() {
+        TrendingFilmsIndex index = new TrendingFilmsIndex(50);
+        for (long filmId = 1; filmId <= 40; filmId++) {
+            index.like(filmId, NOW.minus(Duration.ofMinutes(filmId)));
+        }
+        index.like(5L, NOW.minus(Duration.ofHours(30)));
+        index.like(5L, NOW.minus(Duration.ofHours(31)));
+        index.unlike(5L, NOW.minus(Duration.ofMinutes(5)));
+        // like старше недели уже ни в одном окне, его снятие ничего не меняет
+        index.unlike(6L, NOW.minus(Duration.ofDays(10)));
+        index.refresh(NOW);
+
+        long[] hour = index.top(TrendingFilmsIndex.Window.HOUR, 40);
+        assertEquals(39, hour.length);
+        assertEquals(6L, hour[4]);
+        assertArrayEquals(new long[]{5, 1, 2}, index.top(TrendingFilmsIndex.Window.WEEK, 3));
+        assertEquals(1L, index.top(TrendingFilmsIndex.Window.DAY, 1)[0]);
+    }
+}
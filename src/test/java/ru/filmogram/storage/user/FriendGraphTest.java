@@ -0,0 +1,114 @@
+package ru.filmogram.storage.user;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FriendGraphTest {
+
+    @Test
+    void testSuggestRanksByMutualFriendsAndSkipsFriends() {
+        FriendGraph graph = new FriendGraph();
+        FriendGraph.Edges edges = new FriendGraph.Edges();
+        // 1 дружит с 2, 3, 4; 5 — друг у 2, 3 и 4, 6 — у 2 и 3, 7 — только у 4, 3 — еще и друг 2
+        edges.add(1, 2);
+        edges.add(1, 3);
+        edges.add(1, 4);
+        edges.add(2, 5);
+        edges.add(2, 6);
+        edges.add(2, 3);
+        edges.add(3, 5);
+        edges.add(3, 6);
+        edges.add(3, 1);
+        edges.add(4, 5);
+        edges.add(4, 7);
+        graph.replace(edges, graph.stamp());
+
+        assertArrayEquals(new long[]{2, 3, 4}, graph.friendsOf(1L));
+        assertArrayEquals(new long[]{5, 6, 7}, graph.suggest(1L, 10));
+        assertArrayEquals(new long[]{5}, graph.suggest(1L, 1));
+        assertArrayEquals(new long[0], graph.suggest(7L, 10));
+    }
+
+    @Test
+    void testChangesOverlaySnapshotUntilRebuild() {
+        FriendGraph graph = new FriendGraph();
+        FriendGraph.Edges edges = new FriendGraph.Edges();
+        edges.add(1, 2);
+        edges.add(2, 3);
+        graph.replace(edges, graph.stamp());
+
+        graph.addFriend(1L, 4L);
+        graph.addFriend(4L, 5L);
+        graph.setFriends(2L, new long[]{6});
+        assertArrayEquals(new long[]{2, 4}, graph.friendsOf(1L));
+        assertArrayEquals(new long[]{5, 6}, graph.suggest(1L, 10));
+
+        // изменение, сделанное после начала перестроения, переживает замену снимка
+        long stamp = graph.stamp();
+        graph.addFriend(1L, 7L);
+        FriendGraph.Edges rebuilt = new FriendGraph.Edges();
+        rebuilt.add(1, 2);
+        rebuilt.add(1, 4);
+        rebuilt.add(2, 6);
+        rebuilt.add(4, 5);
+        graph.replace(rebuilt, stamp);
+
+        assertEquals(1, graph.changedUsers());
+        assertArrayEquals(new long[]{2, 4, 7}, graph.friendsOf(1L));
+    }
+
+    @Test
+    void testParallelSuggestMatchesDirectCount() {
+        Random random = new Random(17);
+        Map<Long, Set<Long>> friends = new HashMap<>();
+        FriendGraph.Edges edges = new FriendGraph.Edges();
+        for (long friendId = 2; friendId <= 5_001; friendId++) {
+            friends.computeIfAbsent(1L, id -> new HashSet<>()).add(friendId);
+            edges.add(1, friendId);
+        }
+        for (long userId = 2; userId <= 5_001; userId++) {
+            for (int i = 0; i < 20; i++) {
+                long friendId = 2 + random.nextInt(20_000);
+                if (friendId != userId && friends.computeIfAbsent(userId, id -> new HashSet<>()).add(friendId)) {
+                    edges.add(userId, friendId);
+                }
+            }
+        }
+        FriendGraph graph = new FriendGraph();
+        graph.replace(edges, graph.stamp());
+
+        Map<Long, Integer> mutualFriends = new HashMap<>();
+        for (Long friendId : friends.get(1L)) {
+            for (Long candidate : friends.getOrDefault(friendId, Set.of())) {
+                if (candidate != 1L && !friends.get(1L).contains(candidate)) {
+                    mutualFriends.merge(candidate, 1, Integer::sum);
+                }
+            }
+        }
+        List<Long> expected = mutualFriends.entrySet()
+                .stream()
+                .sorted(Map.Entry.<Long, Integer>comparingByValue(Comparator.reverseOrder())
+                        .thenComparing(Map.Entry.comparingByKey()))
+                .limit(50)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+
+        List<Long> actual = new ArrayList<>();
+        for (long userId : graph.suggest(1L, 50)) {
+            actual.add(userId);
+        }
+        assertEquals(expected, actual);
+    }
+}
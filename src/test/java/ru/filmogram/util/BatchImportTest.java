@@ -0,0 +1,90 @@
+package ru.filmogram.util;
+
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.module.paramnames.ParameterNamesModule;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import ru.filmogram.exceptions.ValidationException;
+import ru.filmogram.model.Film;
+import ru.filmogram.model.ImportItem;
+import ru.filmogram.model.ImportSummary;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class BatchImportTest {
+
+    private final ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json()
+            .modulesToInstall(new ParameterNamesModule())
+            .build();
+    private final List<Integer> chunkSizes = new ArrayList<>();
+    private long nextId = 0;
+
+    @Test
+    void testArrayIsImportedInChunksAndBadRecordsAreReported() throws IOException {
+        String json = "[" +
+                "{\"name\": \"Фильм 0\"}," +
+                "{\"name\": \"\"}," +
+                "{\"name\": \"Фильм 2\", \"duration\": \"долго\"}," +
+                "{\"name\": \"Фильм 3\"}," +
+                "{\"name\": \"Фильм 4\"}," +
+                "{\"name\": \"Фильм 5\"}" +
+                "]";
+
+        List<ImportItem> results = new ArrayList<>();
+        ImportSummary summary = run(json, results);
+
+        assertEquals(6, summary.getTotal());
+        assertEquals(4, summary.getImported());
+        assertEquals(2, summary.getFailed());
+        assertEquals(List.of(2, 2), chunkSizes);
+        results.sort(Comparator.comparingLong(ImportItem::getIndex));
+        assertEquals(1L, results.get(0).getId());
+        assertNotNull(results.get(1).getError());
+        assertNotNull(results.get(2).getError());
+        assertNull(results.get(3).getError());
+        assertEquals(4L, results.get(5).getId());
+    }
+
+    @Test
+    void testNdjsonStopsAtSyntaxError() throws IOException {
+        String json = "{\"name\": \"Фильм 0\"}\n" +
+                "{\"name\": \"Фильм 1\"}\n" +
+                "{\"name\": \n";
+
+        List<ImportItem> results = new ArrayList<>();
+        ImportSummary summary = run(json, results);
+
+        assertEquals(3, summary.getTotal());
+        assertEquals(2, summary.getImported());
+        assertEquals(1, summary.getFailed());
+        assertEquals(List.of(2), chunkSizes);
+    }
+
+    private ImportSummary run(String json, List<ImportItem> results) throws IOException {
+        MappingIterator<Film> films = objectMapper.readerFor(Film.class).readValues(json);
+        return BatchImport.run(films, 2, this::check, this::write, Film::getId, results::add);
+    }
+
+    private Film check(Film film) throws ValidationException {
+        if (film.getName().isBlank()) {
+            throw new ValidationException("Название фильма не может быть пустым");
+        }
+        return film;
+    }
+
+    private List<Film> write(List<Film> films) {
+        chunkSizes.add(films.size());
+        for (Film film : films) {
+            film.setId(++nextId);
+        }
+        return films;
+    }
+}
@@ -0,0 +1,61 @@
+package ru.filmogram.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OrdinalCountsTest {
+
+    @Test
+    void testSparseCountsMatchArrayAndSwitchToDenseWhenFilled() {
+        int size = 100_000;
+        OrdinalCounts counts = new OrdinalCounts(size, 4);
+        int[] expected = new int[size];
+        Random random = new Random(7);
+        // отметок больше ожидаемых: таблица растет, пока не станет выгоднее массив
+        for (int i = 0; i < 1_000; i++) {
+            int ordinal = random.nextInt(size);
+            counts.increment(ordinal);
+            expected[ordinal]++;
+        }
+        assertFalse(counts.isDense());
+        for (int i = 0; i < 30_000; i++) {
+            int ordinal = random.nextInt(size);
+            counts.increment(ordinal);
+            expected[ordinal]++;
+        }
+        assertTrue(counts.isDense());
+        int[] actual = new int[size];
+        counts.forEach((ordinal, count) -> actual[ordinal] = count);
+        for (int ordinal = 0; ordinal < size; ordinal++) {
+            assertEquals(expected[ordinal], actual[ordinal]);
+            assertEquals(expected[ordinal], counts.get(ordinal));
+        }
+    }
+
+    @Test
+    void testAddAllMergesSparseAndDense() {
+        OrdinalCounts sparse = new OrdinalCounts(1_000, 2);
+        sparse.increment(0);
+        sparse.add(999, 3);
+        OrdinalCounts dense = new OrdinalCounts(1_000, 1_000);
+        dense.increment(999);
+        dense.increment(5);
+
+        OrdinalCounts merged = sparse.addAll(dense);
+        assertSame(dense, merged);
+        assertEquals(1, merged.get(0));
+        assertEquals(1, merged.get(5));
+        assertEquals(4, merged.get(999));
+
+        OrdinalCounts other = new OrdinalCounts(1_000, 2);
+        other.increment(5);
+        assertSame(other, other.addAll(new OrdinalCounts(1_000, 1)));
+        assertEquals(0, other.get(6));
+    }
+}
@@ -0,0 +1,22 @@
+package ru.filmogram.util;
+
+import org.junit.jupiter.api.Test;
+import ru.filmogram.exceptions.ValidationException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class UtilTest {
+
+    @Test
+    void testCursorAndChangeTokenAreNotInterchangeable() throws ValidationException {
+        String cursor = Util.encodeCursor(42L);
+        String token = Util.encodeChangeToken(42L);
+
+        assertEquals(42L, Util.decodeCursor(cursor));
+        assertEquals(42L, Util.decodeChangeToken(token));
+        assertThrows(ValidationException.class, () -> Util.decodeChangeToken(cursor));
+        assertThrows(ValidationException.class, () -> Util.decodeCursor(token));
+        assertThrows(ValidationException.class, () -> Util.decodeChangeToken("не base64"));
+    }
+}